@@ -0,0 +1,74 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An additive-increase/multiplicative-decrease concurrency limit. Each request that finishes under the target latency
+ * while the limit is nearly in use raises the limit by roughly one per limit's worth of requests. A request that runs
+ * over the target, or fails because the database was busy, cuts the limit by a fixed fraction, but only if it started
+ * after the last cut. One stall that slows every request in flight is one congestion event, so it cuts the limit once
+ * rather than once per request. Requests over the current limit are rejected immediately instead of queuing behind
+ * slow ones.
+ */
+public class AdaptiveLimiter {
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private long lastDecreaseNanos;
+    private boolean decreased;
+
+    public AdaptiveLimiter(int minLimit, int maxLimit, long targetLatencyMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = targetLatencyMillis * 1000000L;
+        this.limit = maxLimit;
+    }
+
+    public static AdaptiveLimiter fromJSON(JSONObject json) {
+        if (json == null) json = new JSONObject();
+        return new AdaptiveLimiter(json.optInt("min_limit", 8), json.optInt("max_limit", 256), json.optLong("target_latency_ms", 250));
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) return false;
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * @param latencyNanos How long the request took.
+     * @param overloaded   Whether the request failed because a downstream resource was saturated.
+     */
+    public void release(long latencyNanos, boolean overloaded) {
+        int current = inFlight.getAndDecrement();
+        final long now = System.nanoTime();
+        synchronized (this) {
+            if (overloaded || latencyNanos > targetLatencyNanos) {
+                // Requests already running at the last cut were slowed by the same event, so don't cut again for them
+                if (!decreased || now - latencyNanos > lastDecreaseNanos) {
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    lastDecreaseNanos = now;
+                    decreased = true;
+                }
+            } else if (current >= limit / 2) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,203 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Takes consistent snapshots of the SQLite database while the server is running, using {@code VACUUM INTO} on a
+ * dedicated connection. In WAL mode that only holds a read transaction, so writers are never blocked and live requests
+ * can't time out waiting on a backup. Snapshots are optionally gzipped, written under a temporary name and renamed
+ * into place when complete, and the oldest are pruned beyond a configured count.
+ * <p>
+ * A sharded database's shards are snapshotted one after another alongside it, named after the same time. Each user's
+ * points and settings live in a single shard, so every user's data is consistent within a backup.
+ */
+public class BackupManager implements Closeable {
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final String PREFIX = "backup-";
+
+    private final File sqliteFile;
+    private final List<File> shardFiles;
+    private final File directory;
+    private final boolean compress;
+    private final int keep;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param bytes The size of the snapshot and its shards.
+     */
+    public record Backup(File file, List<File> shardFiles, long bytes, long millis) {
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject()
+                    .put("file", file.getName())
+                    .put("bytes", bytes)
+                    .put("millis", millis);
+            if (!shardFiles.isEmpty()) json.put("shards", shardFiles.stream().map(File::getName).toList());
+            return json;
+        }
+    }
+
+    /**
+     * @param keep            How many snapshots to keep in directory, or 0 to keep all.
+     * @param intervalMinutes How often to take a snapshot automatically, or 0 to only take them on request.
+     */
+    public BackupManager(File sqliteFile, File directory, boolean compress, int keep, long intervalMinutes) {
+        this(sqliteFile, List.of(), directory, compress, keep, intervalMinutes);
+    }
+
+    /**
+     * @param shardFiles The database's shards, see {@link SQLManager#getShards()}.
+     */
+    public BackupManager(File sqliteFile, List<File> shardFiles, File directory, boolean compress, int keep, long intervalMinutes) {
+        this.sqliteFile = sqliteFile;
+        this.shardFiles = shardFiles;
+        this.directory = directory;
+        this.compress = compress;
+        this.keep = keep;
+        if (intervalMinutes > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "BackupManager");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    tryBackup().ifPresent(backup -> Main.info("Scheduled backup written to " + backup.file() + " in " + backup.millis() + "ms"));
+                } catch (Exception e) {
+                    Main.print("Scheduled backup failed", e);
+                }
+            }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @param json The "backup" section of the server config. If null, backups are only taken on request.
+     */
+    public static BackupManager fromJSON(File sqliteFile, List<File> shardFiles, JSONObject json) {
+        if (json == null) {
+            return new BackupManager(sqliteFile, shardFiles, new File("backups"), true, 7, 0);
+        }
+        return new BackupManager(sqliteFile, shardFiles,
+                new File(json.optString("directory", "backups")),
+                json.optBoolean("compress", true),
+                json.optInt("keep", 7),
+                json.optLong("interval_minutes", 360));
+    }
+
+    /**
+     * @return The snapshot taken, or empty if another backup is already running.
+     */
+    public Optional<Backup> tryBackup() throws SQLException, IOException {
+        if (!lock.tryLock()) return Optional.empty();
+        try {
+            return Optional.of(backup());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Backup backup() throws SQLException, IOException {
+        final long start = System.currentTimeMillis();
+        Files.createDirectories(directory.toPath());
+        String stem = PREFIX + NAME_FORMAT.format(LocalDateTime.now());
+        File target = snapshot(sqliteFile, stem + ".db");
+        long bytes = target.length();
+        List<File> shards = new ArrayList<>();
+        for (int i = 0; i < shardFiles.size(); i++) {
+            File shard = snapshot(shardFiles.get(i), stem + ".shard" + i + ".db");
+            shards.add(shard);
+            bytes += shard.length();
+        }
+
+        prune();
+        return new Backup(target, shards, bytes, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return The finished snapshot of source.
+     */
+    private File snapshot(File source, String name) throws SQLException, IOException {
+        File snapshot = new File(directory, name + ".tmp");
+        File target = new File(directory, compress ? name + ".gz" : name);
+        File compressed = new File(directory, target.getName() + ".tmp");
+        Files.deleteIfExists(snapshot.toPath());
+
+        try {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + source.getAbsolutePath())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("PRAGMA busy_timeout=10000");
+                }
+                try (PreparedStatement statement = connection.prepareStatement("VACUUM INTO ?")) {
+                    statement.setString(1, snapshot.getAbsolutePath());
+                    statement.execute();
+                }
+            }
+
+            if (compress) {
+                try (InputStream in = new FileInputStream(snapshot);
+                     OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 1 << 16)) {
+                    in.transferTo(out);
+                }
+                Files.move(compressed.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.move(snapshot.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            Files.deleteIfExists(snapshot.toPath());
+            Files.deleteIfExists(compressed.toPath());
+        }
+        return target;
+    }
+
+    private void prune() {
+        if (keep <= 0) return;
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && !name.endsWith(".tmp"));
+        if (files == null) return;
+        // A backup is every file named after the same time. Names sort by time.
+        TreeMap<String, List<File>> backups = new TreeMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            backups.computeIfAbsent(name.substring(0, name.indexOf('.')), k -> new ArrayList<>()).add(file);
+        }
+        while (backups.size() > keep) {
+            for (File file : backups.pollFirstEntry().getValue()) {
+                if (!file.delete()) {
+                    Main.warning("Failed to delete old backup " + file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,322 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Periodically removes expired sessions, rows left behind by deleted accounts, and IPs and emails which are no longer
+ * used, then, when the server is quiet,
+ * refreshes the query planner's statistics and returns free pages to the filesystem. Deletes run in small batches,
+ * each its own short transaction with a pause after it, so live requests are never held behind maintenance for long.
+ * <p>
+ * Tables owned by KshLib are only touched when their shape confirms what their columns mean: ID tables must have a
+ * single integer primary key, and sets must have a single column. Anything else is skipped and reported.
+ */
+public class DatabaseMaintenance implements Closeable {
+    static final String SESSION_LAST_USED = "last_used";
+    /**
+     * 2001-09-09. Any millisecond timestamp written by this server is larger, any in seconds is far smaller.
+     */
+    private static final long MIN_MILLIS = 1_000_000_000_000L;
+
+    private final SQLManager sqlManager;
+    private final int batchSize;
+    private final long batchPauseMillis;
+    private final int vacuumPages;
+    private final long ipRetentionMillis;
+    private final BooleanSupplier isQuiet;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+    private volatile Report lastReport;
+
+    /**
+     * @param deleted    Rows deleted, by table.
+     * @param pagesFreed Pages returned to the filesystem by incremental vacuum.
+     * @param skipped    Steps that were skipped, and why.
+     */
+    public record Report(long started, long millis, Map<String, Integer> deleted, boolean analyzed, long pagesFreed, List<String> skipped) {
+        public JSONObject toJSON() {
+            return new JSONObject()
+                    .put("started", started)
+                    .put("millis", millis)
+                    .put("deleted", new JSONObject(deleted))
+                    .put("analyzed", analyzed)
+                    .put("pages_freed", pagesFreed)
+                    .put("skipped", skipped);
+        }
+    }
+
+    /**
+     * @param batchSize        Rows deleted per transaction.
+     * @param batchPauseMillis Pause after each batch, to let queued writes through.
+     * @param vacuumPages       Pages freed per incremental vacuum transaction.
+     * @param ipRetentionMillis How long after its last request an IP which isn't banned is kept.
+     * @param isQuiet           Whether the server is idle enough for ANALYZE and vacuuming.
+     * @param intervalMinutes   How often to run automatically, or 0 to only run on request.
+     */
+    public DatabaseMaintenance(SQLManager sqlManager, int batchSize, long batchPauseMillis, int vacuumPages, long ipRetentionMillis, BooleanSupplier isQuiet, long intervalMinutes) {
+        this.sqlManager = sqlManager;
+        this.batchSize = batchSize;
+        this.batchPauseMillis = batchPauseMillis;
+        this.vacuumPages = vacuumPages;
+        this.ipRetentionMillis = ipRetentionMillis;
+        this.isQuiet = isQuiet;
+        if (intervalMinutes > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "DatabaseMaintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    tryRun().ifPresent(report -> Main.info("Database maintenance: " + report.toJSON()));
+                } catch (Exception e) {
+                    Main.print("Database maintenance failed", e);
+                }
+            }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @param json     The "maintenance" section of the server config, or null for defaults.
+     * @param inFlight The number of requests currently being handled, on every endpoint.
+     */
+    public static DatabaseMaintenance fromJSON(SQLManager sqlManager, JSONObject json, IntSupplier inFlight) {
+        if (json == null) json = new JSONObject();
+        final int quietInFlight = json.optInt("quiet_in_flight", 2);
+        return new DatabaseMaintenance(sqlManager,
+                json.optInt("batch_size", 500),
+                json.optLong("batch_pause_ms", 50),
+                json.optInt("vacuum_pages", 256),
+                json.optLong("ip_retention_days", 30) * 86400000L,
+                () -> inFlight.getAsInt() <= quietInFlight,
+                json.optLong("interval_minutes", 60));
+    }
+
+    /**
+     * @return What was done, or empty if maintenance is already running.
+     */
+    public Optional<Report> tryRun() throws SQLException, BusyException, InterruptedException {
+        if (!lock.tryLock()) return Optional.empty();
+        try {
+            Report report = run();
+            lastReport = report;
+            return Optional.of(report);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Report run() throws SQLException, BusyException, InterruptedException {
+        final long started = System.currentTimeMillis();
+        Map<String, Integer> deleted = new LinkedHashMap<>();
+        List<String> skipped = new ArrayList<>();
+
+        purgeExpiredSessions(deleted, skipped);
+
+        // deleteAccount removes the uid first, so anything keyed by a uid which no longer exists was left behind
+        String uidColumn = getIntegerPrimaryKey("uids", skipped);
+        if (uidColumn != null) {
+            String orphaned = " NOT IN (SELECT " + uidColumn + " FROM uids)";
+            purge(deleted, "accounts", "uid" + orphaned);
+            purge(deleted, "points", "uid" + orphaned);
+            purge(deleted, "points_ledger", "uid" + orphaned);
+            purge(deleted, "points_snapshots", "uid" + orphaned);
+            purge(deleted, "points_redemptions", "uid" + orphaned);
+            if (!sqlManager.getShards().isEmpty()) {
+                skipped.add("points, their history and settings in shards: they can't see the uids table, deleteAccount removes them");
+            }
+            for (String table : List.of("validated_accounts", "admins")) {
+                String column = getSetColumn(table, skipped);
+                if (column != null) purge(deleted, table, column + orphaned);
+            }
+            if (hasColumn("sessions", "uid")) {
+                purge(deleted, "sessions", "uid" + orphaned);
+            } else {
+                skipped.add("sessions: no uid column");
+            }
+        }
+
+        // IPs are recorded for every request but only needed while banned. One is only removed once it hasn't been seen
+        // for a while, and is dropped from the index batch by batch, so it can't be handed out, or banned, after its row
+        // is gone.
+        String ipColumn = getIntegerPrimaryKey("ips", skipped);
+        String bannedColumn = getSetColumn("banned_ips", skipped);
+        if (ipColumn != null && bannedColumn != null) {
+            sqlManager.recordUnseenIPs(ipColumn, started);
+            purgeKeys(deleted, "ips", ipColumn + " IN (SELECT ip_id FROM ip_last_seen WHERE time<" + (started - ipRetentionMillis) + ")"
+                    + " AND " + ipColumn + " NOT IN (SELECT " + bannedColumn + " FROM banned_ips WHERE " + bannedColumn + " IS NOT NULL)", (condition, limit) -> {
+                List<Integer> keys = sqlManager.deleteBatchReturningKeys("ips", ipColumn, condition, limit);
+                keys.forEach(sqlManager.getIPIDManager()::invalidate);
+                return keys;
+            });
+            purge(deleted, "ip_last_seen", "ip_id NOT IN (SELECT " + ipColumn + " FROM ips)");
+        }
+
+        // Emails are only kept while an account or the whitelist references them. Each batch is deleted while no account
+        // is being created, so an ID which was just looked up for a new account is never removed under it.
+        String emailColumn = getIntegerPrimaryKey("email_ids", skipped);
+        String whitelistColumn = getSetColumn("email_whitelist", skipped);
+        if (emailColumn != null && whitelistColumn != null) {
+            purgeKeys(deleted, "email_ids", emailColumn + " NOT IN (SELECT email_id FROM accounts WHERE email_id IS NOT NULL)"
+                    + " AND " + emailColumn + " NOT IN (SELECT " + whitelistColumn + " FROM email_whitelist WHERE " + whitelistColumn + " IS NOT NULL)",
+                    (condition, limit) -> sqlManager.deleteEmailIDBatch(emailColumn, condition, limit));
+        }
+
+        boolean analyzed = false;
+        long pagesFreed = 0;
+        if (isQuiet.getAsBoolean()) {
+            List<SQLManager> databases = new ArrayList<>();
+            databases.add(sqlManager);
+            databases.addAll(sqlManager.getShards());
+            for (SQLManager database : databases) {
+                if (!isQuiet.getAsBoolean()) {
+                    skipped.add("analyze and vacuum of " + database.getSQLiteFile().getName() + ": server busy");
+                    continue;
+                }
+                database.analyze();
+                analyzed = true;
+                pagesFreed += vacuum(database, skipped);
+            }
+        } else {
+            skipped.add("analyze and vacuum: server busy");
+        }
+
+        return new Report(started, System.currentTimeMillis() - started, deleted, analyzed, pagesFreed, skipped);
+    }
+
+    /**
+     * KshLib only refuses expired sessions, it never deletes them. A session expires {@link
+     * dev.kshl.kshlib.sql.SQLSessionTokenManager#getSessionDuration()} after it was last used, which KshLib stores in
+     * milliseconds in {@link #SESSION_LAST_USED}. If the table doesn't look like that, nothing is deleted.
+     */
+    private void purgeExpiredSessions(Map<String, Integer> deleted, List<String> skipped) throws SQLException, BusyException, InterruptedException {
+        final long now = System.currentTimeMillis();
+        boolean hasColumn = sqlManager.getColumns("sessions").stream()
+                .anyMatch(column -> column.name().equals(SESSION_LAST_USED) && column.type().toUpperCase(Locale.ROOT).contains("INT"));
+        if (!hasColumn) {
+            skipSessions(skipped, "no integer " + SESSION_LAST_USED + " column");
+            return;
+        }
+        long newest = sqlManager.getMax("sessions", SESSION_LAST_USED);
+        if (newest != 0 && (newest < MIN_MILLIS || newest > now + 86400000L)) {
+            skipSessions(skipped, SESSION_LAST_USED + " is not a time in milliseconds (newest " + newest + ")");
+            return;
+        }
+        purge(deleted, "sessions", SESSION_LAST_USED + "<" + (now - sqlManager.getTokenManager().getSessionDuration()));
+    }
+
+    private static void skipSessions(List<String> skipped, String reason) {
+        Main.warning("Not purging expired sessions: " + reason);
+        skipped.add("expired sessions: " + reason);
+    }
+
+    /**
+     * Frees pages a batch at a time until none are left or the server gets busy.
+     *
+     * @return Pages freed.
+     */
+    private long vacuum(SQLManager database, List<String> skipped) throws SQLException, BusyException, InterruptedException {
+        if (database.getAutoVacuum() != 2) {
+            skipped.add("vacuum of " + database.getSQLiteFile().getName() + ": auto_vacuum is not INCREMENTAL, run 'PRAGMA auto_vacuum=INCREMENTAL; VACUUM;' once while stopped to enable it");
+            return 0;
+        }
+        long before = database.getFreelistCount();
+        long free = before;
+        while (free > 0 && isQuiet.getAsBoolean()) {
+            database.incrementalVacuum(vacuumPages);
+            long now = database.getFreelistCount();
+            if (now >= free) break;
+            free = now;
+            Thread.sleep(batchPauseMillis);
+        }
+        return before - free;
+    }
+
+    /**
+     * Deletes rows matching condition from table, a batch at a time.
+     *
+     * @return Rows deleted.
+     */
+    private int purge(Map<String, Integer> deleted, String table, String condition) throws SQLException, BusyException, InterruptedException {
+        int total = 0;
+        while (true) {
+            int rows = sqlManager.deleteBatch(table, condition, batchSize);
+            total += rows;
+            if (rows < batchSize) break;
+            Thread.sleep(batchPauseMillis);
+        }
+        deleted.merge(table, total, Integer::sum);
+        return total;
+    }
+
+    /**
+     * Like {@link #purge(Map, String, String)}, with each batch deleted by deleteBatch, which returns the keys of the
+     * rows it deleted after dropping them from any index.
+     */
+    private void purgeKeys(Map<String, Integer> deleted, String table, String condition, KeyedBatchDelete deleteBatch) throws SQLException, BusyException, InterruptedException {
+        int total = 0;
+        while (true) {
+            int rows = deleteBatch.delete(condition, batchSize).size();
+            total += rows;
+            if (rows < batchSize) break;
+            Thread.sleep(batchPauseMillis);
+        }
+        deleted.merge(table, total, Integer::sum);
+    }
+
+    private interface KeyedBatchDelete {
+        List<Integer> delete(String condition, int limit) throws SQLException, BusyException;
+    }
+
+    private String getIntegerPrimaryKey(String table, List<String> skipped) throws SQLException, BusyException {
+        List<SQLManager.Column> key = sqlManager.getColumns(table).stream().filter(column -> column.primaryKey() > 0).toList();
+        if (key.size() != 1 || !key.get(0).type().toUpperCase(Locale.ROOT).contains("INT")) {
+            skipped.add(table + ": expected a single integer primary key");
+            return null;
+        }
+        return key.get(0).name();
+    }
+
+    private String getSetColumn(String table, List<String> skipped) throws SQLException, BusyException {
+        List<SQLManager.Column> columns = sqlManager.getColumns(table);
+        if (columns.size() != 1) {
+            skipped.add(table + ": expected a single column");
+            return null;
+        }
+        return columns.get(0).name();
+    }
+
+    private boolean hasColumn(String table, String column) throws SQLException, BusyException {
+        return sqlManager.getColumns(table).stream().anyMatch(c -> c.name().equalsIgnoreCase(column));
+    }
+
+    /**
+     * @return The most recent report, or null if maintenance hasn't run yet.
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+}
@@ -2,17 +2,18 @@ package dev.kshl.points;
 
 import dev.kshl.kshlib.encryption.CodeGenerator;
 
+import java.io.IOException;
 import java.security.SecureRandom;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class EmailChallenger {
+    private static final long CODE_DURATION = 300000L;
+    private static final String CODE_KEY = "email-code:";
+    private static final String RESET_CODE_KEY = "reset-code:";
+    private static final String FAILURES_KEY = "email-failures:";
+    private static final String LAST_SENT_KEY = "email-sent:";
+
     private final MailHelper mailHelper;
-    private final Map<Integer, Code> codes = new HashMap<>();
-    private final Map<String, ResetCode> resetCodes = new HashMap<>();
-    private final Map<Integer, AtomicInteger> failures = new HashMap<>();
-    private final Map<String, Long> lastEmailSent = new HashMap<>();
+    private final StateStore stateStore;
 
     private static final String EMAIL_FORMAT = """
             <!DOCTYPE html>
@@ -79,18 +80,24 @@ public class EmailChallenger {
             <p class="code"><code><a href=https://snailpoints.com/reset?code=%s>https://snailpoints.com/reset?code=%s</a></code></p>""");
 
     public EmailChallenger(MailHelper mailHelper) {
+        this(mailHelper, new LocalStateStore());
+    }
+
+    /**
+     * @param stateStore Holds outstanding codes, so any node sharing it can complete a challenge started on another.
+     */
+    public EmailChallenger(MailHelper mailHelper, StateStore stateStore) {
         this.mailHelper = mailHelper;
+        this.stateStore = stateStore;
     }
 
     public void startChallenge(int uid, String email, boolean resetPassword) throws Exception {
-        synchronized (lastEmailSent) {
-            final long now = System.currentTimeMillis();
-            lastEmailSent.values().removeIf(time -> now - time > 300000L);
-            Long lastSend = lastEmailSent.get(email.toLowerCase());
-            if (lastSend != null) {
-                throw new IllegalArgumentException("Can't send another email for " + (300000L - (now - lastSend)) / 1000 + " seconds.");
-            }
-            lastEmailSent.put(email.toLowerCase(), now);
+        final long now = System.currentTimeMillis();
+        String lastSentKey = LAST_SENT_KEY + email.toLowerCase();
+        if (!stateStore.putIfAbsent(lastSentKey, String.valueOf(now), CODE_DURATION)) {
+            String lastSend = stateStore.get(lastSentKey);
+            long elapsed = lastSend == null ? CODE_DURATION : now - Long.parseLong(lastSend);
+            throw new IllegalArgumentException("Can't send another email for " + Math.max(0, CODE_DURATION - elapsed) / 1000 + " seconds.");
         }
         StringBuilder code = new StringBuilder();
         if (resetPassword) {
@@ -102,41 +109,32 @@ public class EmailChallenger {
             }
         }
         if (resetPassword) {
-            resetCodes.put(code.toString(), new ResetCode(uid, System.currentTimeMillis() + 300000));
+            stateStore.put(RESET_CODE_KEY + code, String.valueOf(uid), CODE_DURATION);
         } else {
-            codes.put(uid, new Code(code.toString(), System.currentTimeMillis() + 300000));
+            stateStore.put(CODE_KEY + uid, code.toString(), CODE_DURATION);
         }
         mailHelper.sendMailHTML(email,
                 resetPassword ? "SnailPoints Password Reset" : "SnailPoints Account Verification",
                 (resetPassword ? PASSWORD_RESET_EMAIL_FORMAT : VERIFICATION_EMAIL_FORMAT).replace("%s", code));
     }
 
-    public boolean completeChallenge(int uid, String code) {
-        codes.values().removeIf(c -> System.currentTimeMillis() >= c.expires());
-        Code theCode = codes.get(uid);
-        AtomicInteger failureCount = this.failures.computeIfAbsent(uid, u -> new AtomicInteger());
-        if (failureCount.getAndIncrement() > 3) {
-            codes.remove(uid);
-            failures.remove(uid);
+    public boolean completeChallenge(int uid, String code) throws IOException {
+        String theCode = stateStore.get(CODE_KEY + uid);
+        if (stateStore.increment(FAILURES_KEY + uid, CODE_DURATION) > 4) {
+            stateStore.delete(CODE_KEY + uid);
+            stateStore.delete(FAILURES_KEY + uid);
             return false;
         }
         if (theCode == null) return false;
-        if (!theCode.code().equals(code)) return false;
-        codes.remove(uid);
-        failures.remove(uid);
+        if (!theCode.equals(code)) return false;
+        stateStore.delete(CODE_KEY + uid);
+        stateStore.delete(FAILURES_KEY + uid);
         return true;
     }
 
-    public int completeResetChallenge(String code) {
-        resetCodes.values().removeIf(c -> System.currentTimeMillis() >= c.expires());
-        ResetCode resetCode = resetCodes.remove(code);
-        if (resetCode == null) return -1;
-        return resetCode.uid();
-    }
-
-    public record Code(String code, long expires) {
-    }
-
-    public record ResetCode(int uid, long expires) {
+    public int completeResetChallenge(String code) throws IOException {
+        String uid = stateStore.take(RESET_CODE_KEY + code);
+        if (uid == null) return -1;
+        return Integer.parseInt(uid);
     }
 }
@@ -0,0 +1,164 @@
+package dev.kshl.points;
+
+import java.util.Arrays;
+
+/**
+ * A compact, bidirectional in-memory index between IDs and string values. IDs map to values through a plain array
+ * indexed by ID, and values map to IDs through an open-addressed, linearly probed hash table. Nothing is boxed.
+ * <p>
+ * The index holds at most maxEntries values and only IDs below maxEntries * 2. Anything beyond that is simply not
+ * indexed, and the caller falls back to SQL.
+ * <p>
+ * Each ID has at most one key in the hash table, remembered by ID, so removing an ID finds its key directly and
+ * deletes it by shifting the rest of its probe chain back. Nothing is scanned or rehashed. A second spelling of a
+ * value, such as a different case, replaces the first.
+ */
+public class IDIndex {
+    private static final int EMPTY = 0;
+
+    private final int maxEntries;
+    private String[] valuesByID = new String[16];
+    private String[] keysByID = new String[16];
+    private String[] keys = new String[32];
+    private int[] ids = new int[32];
+    private int size;
+
+    public IDIndex(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return The ID of value, or -1 if it's not indexed.
+     */
+    public synchronized int getID(String value) {
+        int slot = find(value);
+        return keys[slot] == null ? -1 : ids[slot];
+    }
+
+    /**
+     * @return The value for id, or null if it's not indexed.
+     */
+    public synchronized String getValue(int id) {
+        if (id <= EMPTY || id >= valuesByID.length) return null;
+        return valuesByID[id];
+    }
+
+    /**
+     * Maps value to id for lookups by value.
+     */
+    public synchronized void putID(String value, int id) {
+        if (id <= EMPTY || value == null || id >= maxEntries * 2L) return;
+        grow(id);
+        String previous = keysByID[id];
+        if (value.equals(previous)) return;
+        if (previous != null) {
+            keysByID[id] = null;
+            delete(previous);
+        }
+        int slot = find(value);
+        if (keys[slot] != null) {
+            // value now belongs to a different ID
+            keysByID[ids[slot]] = null;
+            ids[slot] = id;
+            keysByID[id] = value;
+            return;
+        }
+        if (size >= maxEntries) return;
+        keys[slot] = value;
+        ids[slot] = id;
+        keysByID[id] = value;
+        if (++size * 2 > keys.length) rehash(keys.length * 2);
+    }
+
+    /**
+     * Maps id to value for lookups by ID.
+     */
+    public synchronized void putValue(int id, String value) {
+        if (id <= EMPTY || value == null || id >= maxEntries * 2L) return;
+        grow(id);
+        valuesByID[id] = value;
+    }
+
+    /**
+     * Removes id and the value that maps to it.
+     */
+    public synchronized void remove(int id) {
+        if (id <= EMPTY || id >= valuesByID.length) return;
+        valuesByID[id] = null;
+        String key = keysByID[id];
+        if (key != null) {
+            keysByID[id] = null;
+            delete(key);
+        }
+    }
+
+    public synchronized void clear() {
+        valuesByID = new String[16];
+        keysByID = new String[16];
+        keys = new String[32];
+        ids = new int[32];
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void grow(int id) {
+        if (id < valuesByID.length) return;
+        int length = (int) Math.min(Math.max(id + 1L, valuesByID.length * 2L), maxEntries * 2L);
+        valuesByID = Arrays.copyOf(valuesByID, length);
+        keysByID = Arrays.copyOf(keysByID, length);
+    }
+
+    /**
+     * @return The slot holding value, or the empty slot where it would go.
+     */
+    private int find(String value) {
+        int mask = keys.length - 1;
+        int slot = hash(value) & mask;
+        while (keys[slot] != null && !keys[slot].equals(value)) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Removes key, moving back any later entry in its probe chain which would otherwise become unreachable.
+     */
+    private void delete(String key) {
+        int hole = find(key);
+        if (keys[hole] == null) return;
+        keys[hole] = null;
+        size--;
+        int mask = keys.length - 1;
+        for (int slot = (hole + 1) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            int home = hash(keys[slot]) & mask;
+            // The entry may fill the hole unless its home lies cyclically after the hole, up to its own slot
+            boolean reachable = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (reachable) continue;
+            keys[hole] = keys[slot];
+            ids[hole] = ids[slot];
+            keys[slot] = null;
+            hole = slot;
+        }
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldIDs = ids;
+        keys = new String[capacity];
+        ids = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            ids[slot] = oldIDs[i];
+        }
+    }
+
+    private static int hash(String value) {
+        int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
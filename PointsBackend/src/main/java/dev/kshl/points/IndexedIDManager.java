@@ -0,0 +1,145 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.sql.ConnectionManager;
+import dev.kshl.kshlib.sql.SQLIDManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An ID manager which serves repeat lookups from an {@link IDIndex} instead of SQL. The index is preloaded from the
+ * table, up to its cap, by {@link #preload(Connection)}, and is kept up to date as values are looked up, created and
+ * removed. Misses always fall through to the table. Values are only indexed by ID when they come from the table,
+ * since lookups by value may not match its case.
+ */
+public class IndexedIDManager extends SQLIDManager.Str {
+    private final String table;
+    private final int maxEntries;
+    private final IDIndex index;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public IndexedIDManager(ConnectionManager connectionManager, String table, int maxEntries) {
+        super(connectionManager, table);
+        this.table = table;
+        this.maxEntries = maxEntries;
+        this.index = new IDIndex(maxEntries);
+    }
+
+    /**
+     * Indexes the table's lowest IDs, up to the index's cap. The table is KshLib's, so its layout is checked first: it
+     * must have one integer primary key and one text column. Otherwise the index is left to fill as values are looked
+     * up.
+     */
+    public void preload(Connection connection) throws SQLException {
+        String key = null;
+        List<String> text = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT name, type, pk FROM pragma_table_info(?)")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String type = rs.getString(2).toUpperCase(Locale.ROOT);
+                    if (rs.getInt(3) > 0) {
+                        key = key == null && type.contains("INT") ? rs.getString(1) : "";
+                    } else if (type.contains("CHAR") || type.contains("TEXT") || type.contains("CLOB")) {
+                        text.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        if (key == null || key.isEmpty() || text.size() != 1) {
+            Main.warning("Not preloading the " + table + " index: expected one integer primary key and one text column");
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT " + key + ", " + text.get(0) + " FROM " + table
+                + " WHERE " + key + "<? ORDER BY " + key + " LIMIT ?")) {
+            statement.setLong(1, maxEntries * 2L);
+            statement.setInt(2, maxEntries);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    String value = rs.getString(2);
+                    index.putID(value, id);
+                    index.putValue(id, value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Optional<Integer> getIDOpt(String value, boolean create) throws SQLException, BusyException {
+        if (value != null) {
+            int id = index.getID(value);
+            if (id > 0) {
+                hits.increment();
+                return Optional.of(id);
+            }
+        }
+        misses.increment();
+        Optional<Integer> id = super.getIDOpt(value, create);
+        id.ifPresent(i -> index.putID(value, i));
+        return id;
+    }
+
+    @Override
+    public Optional<String> getValueOpt(int id) throws SQLException, BusyException {
+        String value = index.getValue(id);
+        if (value != null) {
+            hits.increment();
+            return Optional.of(value);
+        }
+        misses.increment();
+        Optional<String> out = super.getValueOpt(id);
+        out.ifPresent(v -> index.putValue(id, v));
+        return out;
+    }
+
+    /**
+     * Removes id from the table and the index. It's dropped from the index again once the row is gone, in case a lookup
+     * re-indexed it meanwhile.
+     */
+    @Override
+    public boolean remove(int id) throws SQLException, BusyException {
+        index.remove(id);
+        try {
+            return super.remove(id);
+        } finally {
+            index.remove(id);
+        }
+    }
+
+    /**
+     * Drops id from the index. Must be called whenever a row is removed from the table other than through
+     * {@link #remove(int)}.
+     */
+    public void invalidate(int id) {
+        index.remove(id);
+    }
+
+    /**
+     * Drops every entry from the index. Must be called after rows are removed from the table in bulk.
+     */
+    public void invalidateAll() {
+        index.clear();
+    }
+
+    public int getIndexSize() {
+        return index.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
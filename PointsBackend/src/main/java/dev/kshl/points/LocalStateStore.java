@@ -0,0 +1,132 @@
+package dev.kshl.points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StateStore} held in this process's heap. Only suitable when a single node serves all users. Expired entries
+ * are dropped when read and swept once a minute.
+ */
+public class LocalStateStore implements StateStore {
+    private static final long PURGE_INTERVAL = 60000L;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong lastPurged = new AtomicLong();
+
+    private record Entry(Object value, long expires) {
+        boolean isExpired(long now) {
+            return expires > 0 && now >= expires;
+        }
+    }
+
+    private static long expiry(long now, long ttlMillis) {
+        return ttlMillis > 0 ? now + ttlMillis : 0;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long ttlMillis) {
+        final long now = purge();
+        boolean[] put = new boolean[1];
+        entries.compute(key, (k, entry) -> {
+            if (entry != null && !entry.isExpired(now)) return entry;
+            put[0] = true;
+            return new Entry(value, expiry(now, ttlMillis));
+        });
+        return put[0];
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) {
+        entries.put(key, new Entry(value, expiry(purge(), ttlMillis)));
+    }
+
+    @Override
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) return null;
+        return (String) entry.value();
+    }
+
+    @Override
+    public String take(String key) {
+        final long now = System.currentTimeMillis();
+        Entry[] taken = new Entry[1];
+        entries.computeIfPresent(key, (k, entry) -> {
+            if (!entry.isExpired(now)) taken[0] = entry;
+            return null;
+        });
+        return taken[0] == null ? null : (String) taken[0].value();
+    }
+
+    @Override
+    public void delete(String key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public boolean deleteIfEquals(String key, String value) {
+        final long now = System.currentTimeMillis();
+        boolean[] deleted = new boolean[1];
+        entries.computeIfPresent(key, (k, entry) -> {
+            if (entry.isExpired(now)) return null;
+            if (!entry.value().equals(value)) return entry;
+            deleted[0] = true;
+            return null;
+        });
+        return deleted[0];
+    }
+
+    @Override
+    public void deletePrefix(String prefix) {
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    @Override
+    public long increment(String key, long ttlMillis) {
+        final long now = purge();
+        return (long) entries.compute(key, (k, entry) -> {
+            if (entry == null || entry.isExpired(now)) return new Entry(1L, expiry(now, ttlMillis));
+            return new Entry((long) entry.value() + 1, entry.expires());
+        }).value();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void addEvent(String key, long time, long retainMillis) {
+        final long now = purge();
+        entries.compute(key, (k, entry) -> {
+            List<Long> events = entry == null || entry.isExpired(now) ? new ArrayList<>() : new ArrayList<>((List<Long>) entry.value());
+            events.removeIf(t -> t < time - retainMillis);
+            events.add(time);
+            return new Entry(List.copyOf(events), expiry(now, retainMillis));
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Long> getEvents(String key, long since) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) return List.of();
+        return ((List<Long>) entry.value()).stream().filter(t -> t >= since).toList();
+    }
+
+    /**
+     * @return The current time.
+     */
+    private long purge() {
+        final long now = System.currentTimeMillis();
+        long lastPurged = this.lastPurged.get();
+        if (now - lastPurged > PURGE_INTERVAL && this.lastPurged.compareAndSet(lastPurged, now)) {
+            entries.values().removeIf(entry -> entry.isExpired(now));
+        }
+        return now;
+    }
+
+    @Override
+    public void close() {
+        entries.clear();
+    }
+}
@@ -13,6 +13,11 @@ import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 public class MailHelper {
+    /**
+     * The grammar {@link Validators#isEmail(String)} implements. Matching it backtracks heavily on some inputs, so it's
+     * kept only as a reference.
+     */
+    @Deprecated
     public static final Pattern EMAIL_PATTERN = Pattern.compile("(?:[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*|\"(?:[\\x01-\\x08\\x0b\\x0c\\x0e-\\x1f\\x21\\x23-\\x5b\\x5d-\\x7f]|\\\\[\\x01-\\x09\\x0b\\x0c\\x0e-\\x7f])*\")@(?:(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?|\\[(?:(2(5[0-5]|[0-4][0-9])|1[0-9][0-9]|[1-9]?[0-9])\\.){3}(?:(2(5[0-5]|[0-4][0-9])|1[0-9][0-9]|[1-9]?[0-9])|[a-z0-9-]*[a-z0-9]:(?:[\\x01-\\x08\\x0b\\x0c\\x0e-\\x1f\\x21-\\x5a\\x53-\\x7f]|\\\\[\\x01-\\x09\\x0b\\x0c\\x0e-\\x7f])+)])");
     private final Mailer mailer;
     private final String from;
@@ -48,7 +53,6 @@ public class MailHelper {
     }
 
     public static boolean isValidEmailAddress(String email) {
-        if (email == null) return false;
-        return EMAIL_PATTERN.matcher(email).matches();
+        return Validators.isEmail(email);
     }
 }
@@ -41,9 +41,11 @@ public class Main {
     }
 
     public static void main(String[] args) {
+        JSONObject env = new JSONObject(FileUtil.read(new File(".env.json")));
+
         SQLManager sqlManager_;
         try {
-            sqlManager_ = new SQLManager(new File("data.db"));
+            sqlManager_ = SQLManager.fromJSON(env.optJSONObject("database"), new File("data.db"), SQLiteOptions.fromJSON(env.optJSONObject("sqlite")));
             sqlManager_.init();
 
             try {
@@ -61,15 +63,15 @@ public class Main {
         }
         final SQLManager sqlManager = sqlManager_;
 
-        JSONObject env = new JSONObject(FileUtil.read(new File(".env.json")));
         JSONObject envMail = env.getJSONObject("email");
 
         MailHelper mailHelper = new MailHelper(envMail.getString("host"), envMail.getInt("port"), envMail.getString("from"), envMail.getString("password"));
 
-        EmailChallenger emailChallenger = new EmailChallenger(mailHelper);
+        StateStore stateStore = StateStore.fromJSON(env.optJSONObject("state_store"));
+        EmailChallenger emailChallenger = new EmailChallenger(mailHelper, stateStore);
         int numberOfProxies = env.optInt("number_of_proxies", 0);
         int port = 8069;
-        PointsWebServer pointsWebServer = new PointsWebServer(port, sqlManager, emailChallenger, numberOfProxies);
+        PointsWebServer pointsWebServer = new PointsWebServer(port, sqlManager, emailChallenger, numberOfProxies, env.optJSONObject("server"), stateStore);
         info("Starting web server on port " + port);
         new Thread(pointsWebServer).start();
     }
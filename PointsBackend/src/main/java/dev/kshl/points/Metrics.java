@@ -0,0 +1,99 @@
+package dev.kshl.points;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-endpoint latency histograms and server-wide counters, rendered in the Prometheus text exposition format.
+ * Recording never takes a lock.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public enum Phase {
+        TOTAL, AUTH, SQL, WAIT;
+
+        private String label() {
+            return toString().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static class EndpointMetrics {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+
+        private EndpointMetrics() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    public void record(String endpoint, long totalNanos, long authNanos, long sqlNanos, long waitNanos) {
+        EndpointMetrics metrics = endpoints.computeIfAbsent(endpoint, e -> new EndpointMetrics());
+        metrics.histograms[Phase.TOTAL.ordinal()].recordNanos(totalNanos);
+        metrics.histograms[Phase.AUTH.ordinal()].recordNanos(authNanos);
+        metrics.histograms[Phase.SQL.ordinal()].recordNanos(sqlNanos);
+        metrics.histograms[Phase.WAIT.ordinal()].recordNanos(waitNanos);
+    }
+
+    public void increment(String counter) {
+        counters.computeIfAbsent(counter, c -> new LongAdder()).increment();
+    }
+
+    public long getCounter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * @param counters Monotonic totals kept elsewhere and sampled by the caller, such as cache hits. Exported as
+     *                 counters alongside this class's own, with a _total suffix.
+     * @param gauges   Point-in-time values sampled by the caller, such as cache sizes or pool depth.
+     */
+    public String toPrometheus(Map<String, Number> counters, Map<String, Number> gauges) {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# TYPE points_request_seconds summary\n");
+        for (Map.Entry<String, EndpointMetrics> entry : new TreeMap<>(endpoints).entrySet()) {
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = entry.getValue().histograms[phase.ordinal()];
+                String labels = String.format("endpoint=\"%s\",phase=\"%s\"", escape(entry.getKey()), phase.label());
+                for (double quantile : QUANTILES) {
+                    out.append("points_request_seconds{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(micros(histogram.getValueAtQuantile(quantile))).append('\n');
+                }
+                out.append("points_request_seconds_sum{").append(labels).append("} ").append(micros(histogram.getSumMicros())).append('\n');
+                out.append("points_request_seconds_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+            }
+        }
+
+        Map<String, Number> allCounters = new TreeMap<>(counters);
+        this.counters.forEach((counter, adder) -> allCounters.put(counter, adder.sum()));
+        for (Map.Entry<String, Number> entry : allCounters.entrySet()) {
+            String name = "points_" + entry.getKey() + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(entry.getValue()).append('\n');
+        }
+
+        for (Map.Entry<String, Number> entry : new TreeMap<>(gauges).entrySet()) {
+            String name = "points_" + entry.getKey();
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(entry.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String micros(long micros) {
+        return String.valueOf(micros / 1000000D);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
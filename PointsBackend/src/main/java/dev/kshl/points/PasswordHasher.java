@@ -0,0 +1,108 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import dev.kshl.kshlib.sql.SQLPasswordManager;
+import org.json.JSONObject;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs password hashing on a small dedicated pool so a burst of logins can't occupy every request thread. When the pool
+ * and its queue are full, new work is rejected with a {@link RejectedExecutionException} rather than queued, which the
+ * web server turns into a 503.
+ */
+public class PasswordHasher {
+    private final SQLPasswordManager passwordManager;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+
+    public record Stats(int threads, int queued, long submitted, long rejected, long completed, long hashNanos) {
+        public JSONObject toJSON() {
+            return new JSONObject()
+                    .put("threads", threads)
+                    .put("queued", queued)
+                    .put("submitted", submitted)
+                    .put("rejected", rejected)
+                    .put("completed", completed)
+                    .put("hash_millis", hashNanos / 1000000L);
+        }
+    }
+
+    /**
+     * @param coreFraction The fraction of available cores to hash on, at least one thread is always used.
+     * @param queueSize    How many hashes may wait for a thread before further requests are rejected.
+     */
+    public PasswordHasher(SQLPasswordManager passwordManager, double coreFraction, int queueSize) {
+        this.passwordManager = passwordManager;
+        int threads = Math.max(1, (int) (Runtime.getRuntime().availableProcessors() * coreFraction));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            Thread thread = new Thread(runnable, "PasswordHasher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static PasswordHasher fromJSON(SQLPasswordManager passwordManager, JSONObject json) {
+        if (json == null) json = new JSONObject();
+        return new PasswordHasher(passwordManager, json.optDouble("core_fraction", 0.5), json.optInt("queue_size", 64));
+    }
+
+    public boolean testPassword(int uid, String password) throws SQLException, BusyException, InterruptedException {
+        return submit(() -> passwordManager.testPassword(uid, password));
+    }
+
+    public void setPassword(int uid, String password) throws SQLException, BusyException, InterruptedException {
+        submit(() -> {
+            passwordManager.setPassword(uid, password, 0);
+            return null;
+        });
+    }
+
+    <T> T submit(Callable<T> callable) throws SQLException, BusyException, InterruptedException {
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return callable.call();
+                } finally {
+                    hashNanos.add(System.nanoTime() - start);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        submitted.increment();
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException sqlException) throw sqlException;
+            if (cause instanceof BusyException busyException) throw busyException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(executor.getMaximumPoolSize(), executor.getQueue().size(), submitted.sum(), rejected.sum(), completed.sum(), hashNanos.sum());
+    }
+}
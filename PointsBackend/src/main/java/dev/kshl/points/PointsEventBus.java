@@ -0,0 +1,180 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans out point mutations to every open stream of the same uid. Each uid keeps a short history of events so a client
+ * reconnecting with its last cursor only receives what it missed. If the cursor has fallen out of the history, the poll
+ * is flagged as a reset and the client should refetch the full list.
+ * <p>
+ * Events are published by the writer as each write commits, so a uid's events are numbered in the order they took
+ * effect. Since they carry absolute values, a client applying them in order ends up with what's stored. A uid's channel
+ * is opened when its list is fetched, with the list's cursor, so nothing between the fetch and the first poll is lost.
+ * <p>
+ * Each poll holds its request thread while it waits, so only maxWaiters may wait at once. Past that, a poll with
+ * nothing to return is rejected rather than parked, and the client retries after a pause.
+ */
+public class PointsEventBus {
+    private static final int HISTORY_SIZE = 64;
+    private static final long IDLE_CHANNEL_MILLIS = 300000L;
+    private static final int DEFAULT_MAX_WAITERS = 128;
+
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final int maxWaiters;
+
+    public PointsEventBus() {
+        this(DEFAULT_MAX_WAITERS);
+    }
+
+    /**
+     * @param maxWaiters Polls which may wait for events at once, across all uids.
+     */
+    public PointsEventBus(int maxWaiters) {
+        this.maxWaiters = maxWaiters;
+    }
+
+    public enum Type {ADD, POINTS, NAME, PRIORITY, DELETE}
+
+    public record Event(long seq, Type type, int id, JSONObject data) {
+        public JSONObject toJSON() {
+            JSONObject out = new JSONObject();
+            out.put("seq", seq);
+            out.put("type", type.toString());
+            out.put("id", id);
+            if (data != null) out.put("data", data);
+            return out;
+        }
+    }
+
+    public record Poll(List<Event> events, long cursor, boolean reset) {
+    }
+
+    /**
+     * Must be called on the writer once the change has committed.
+     */
+    public void publish(int uid, Type type, int id, JSONObject data) {
+        Channel channel = channels.get(uid);
+        if (channel == null) return; // Nobody is listening
+        channel.publish(new Event(sequence.incrementAndGet(), type, id, data));
+    }
+
+    /**
+     * Opens uid's channel, if it isn't already, so events from now on are kept for its next poll. Call before reading
+     * the list the client will apply events to.
+     *
+     * @return The cursor to poll from. Every event newer than it is kept.
+     */
+    public long open(int uid) {
+        pruneIdle();
+        channels.computeIfAbsent(uid, u -> new Channel(sequence.get())).touch();
+        return sequence.get();
+    }
+
+    /**
+     * Waits up to timeoutMillis for events newer than since. Returns immediately if any are already available.
+     *
+     * @param since The cursor returned by the previous poll, or a negative value to only fetch the current cursor.
+     * @throws RejectedExecutionException If there's nothing to return yet and maxWaiters polls are already waiting.
+     */
+    public Poll await(int uid, long since, long timeoutMillis) throws InterruptedException {
+        pruneIdle();
+        Channel channel = channels.computeIfAbsent(uid, u -> new Channel(sequence.get()));
+        if (since < 0) return new Poll(List.of(), sequence.get(), false);
+        if (waiters.incrementAndGet() > maxWaiters) {
+            waiters.decrementAndGet();
+            Poll poll = channel.await(since, 0);
+            if (poll.reset() || !poll.events().isEmpty()) return poll;
+            throw new RejectedExecutionException("Too many open streams");
+        }
+        try {
+            return channel.await(since, timeoutMillis);
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    public long getCursor() {
+        return sequence.get();
+    }
+
+    /**
+     * @return Polls currently waiting for events.
+     */
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    private void pruneIdle() {
+        final long now = System.currentTimeMillis();
+        channels.values().removeIf(channel -> channel.isIdle(now));
+    }
+
+    private static class Channel {
+        private final ArrayDeque<Event> history = new ArrayDeque<>();
+        /**
+         * The newest seq this channel can no longer return: either the last event dropped from the history or, until
+         * one is, the global sequence when the channel opened. The sequence is shared by every uid, so the gaps between
+         * this channel's events are other users' and don't mean anything was missed.
+         */
+        private long evicted;
+        private long lastActivity = System.currentTimeMillis();
+        private int waiters;
+
+        private Channel(long floor) {
+            this.evicted = floor;
+        }
+
+        private synchronized void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        private synchronized void publish(Event event) {
+            history.addLast(event);
+            while (history.size() > HISTORY_SIZE) evicted = history.removeFirst().seq();
+            lastActivity = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        private synchronized Poll await(long since, long timeoutMillis) throws InterruptedException {
+            lastActivity = System.currentTimeMillis();
+            final long deadline = lastActivity + timeoutMillis;
+            waiters++;
+            try {
+                while (true) {
+                    if (since < evicted) {
+                        long cursor = history.isEmpty() ? evicted : history.peekLast().seq();
+                        return new Poll(List.of(), cursor, true);
+                    }
+                    List<Event> out = new ArrayList<>();
+                    for (Event event : history) {
+                        if (event.seq() > since) out.add(event);
+                    }
+                    if (!out.isEmpty()) {
+                        return new Poll(out, out.get(out.size() - 1).seq(), false);
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) return new Poll(List.of(), since, false);
+                    wait(remaining);
+                }
+            } finally {
+                waiters--;
+                lastActivity = System.currentTimeMillis();
+            }
+        }
+
+        private synchronized boolean isIdle(long now) {
+            return waiters == 0 && now - lastActivity > IDLE_CHANNEL_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package dev.kshl.points;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A point's value over a time range, rebuilt from the points ledger. Changes are fed in order with {@link #add(long, int)}.
+ * While there are no more than maxPoints of them, every change is listed. Past that, they're grouped into maxPoints
+ * equal time buckets, each giving the value at its end, its low and high, and how many changes it held, so a long
+ * history always comes back at a size a chart can draw.
+ */
+public class PointsHistory {
+    private final int id;
+    private final long from;
+    private final long to;
+    private final int start;
+    private final int maxPoints;
+    private final long bucketMillis;
+    private final List<long[]> changes = new ArrayList<>();
+    private List<Bucket> buckets;
+    private int value;
+
+    private static final class Bucket {
+        private final long time;
+        private int points;
+        private int min;
+        private int max;
+        private int changes;
+
+        private Bucket(long time, int value) {
+            this.time = time;
+            this.points = value;
+            this.min = value;
+            this.max = value;
+        }
+
+        private void add(int value) {
+            points = value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            changes++;
+        }
+    }
+
+    /**
+     * @param start The value at from.
+     */
+    public PointsHistory(int id, long from, long to, int start, int maxPoints) {
+        this.id = id;
+        this.from = from;
+        this.to = Math.max(from, to);
+        this.start = start;
+        this.maxPoints = Math.max(1, maxPoints);
+        this.bucketMillis = Math.max(1, (this.to - from) / this.maxPoints + 1);
+        this.value = start;
+    }
+
+    /**
+     * Applies the next change, which must be no earlier than the last one.
+     */
+    public void add(long time, int delta) {
+        value += delta;
+        if (buckets == null) {
+            changes.add(new long[]{time, value, delta});
+            if (changes.size() > maxPoints) downsample();
+        } else {
+            bucket(time).add(value);
+        }
+    }
+
+    private void downsample() {
+        buckets = new ArrayList<>();
+        for (long[] change : changes) {
+            bucket(change[0]).add((int) change[1]);
+        }
+        changes.clear();
+    }
+
+    private Bucket bucket(long time) {
+        long bucketStart = from + Math.max(0, Math.min(time - from, to - from)) / bucketMillis * bucketMillis;
+        Bucket last = buckets.isEmpty() ? null : buckets.get(buckets.size() - 1);
+        // A change stamped earlier than the last one, if the clock went back, is counted with it
+        if (last != null && last.time >= bucketStart) return last;
+        Bucket bucket = new Bucket(bucketStart, last == null ? start : last.points);
+        buckets.add(bucket);
+        return bucket;
+    }
+
+    public boolean isDownsampled() {
+        return buckets != null;
+    }
+
+    /**
+     * @return The value after the last change.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public JSONObject toJSON() {
+        JSONArray history = new JSONArray();
+        if (buckets == null) {
+            for (long[] change : changes) {
+                history.put(new JSONObject()
+                        .put("time", change[0])
+                        .put("points", change[1])
+                        .put("delta", change[2]));
+            }
+        } else {
+            for (Bucket bucket : buckets) {
+                history.put(new JSONObject()
+                        .put("time", bucket.time)
+                        .put("points", bucket.points)
+                        .put("min", bucket.min)
+                        .put("max", bucket.max)
+                        .put("changes", bucket.changes));
+            }
+        }
+        JSONObject out = new JSONObject()
+                .put("id", id)
+                .put("from", from)
+                .put("to", to)
+                .put("start", start)
+                .put("downsampled", buckets != null)
+                .put("history", history);
+        if (buckets != null) out.put("bucket_millis", bucketMillis);
+        return out;
+    }
+}
@@ -2,7 +2,6 @@ package dev.kshl.points;
 
 import dev.kshl.kshlib.concurrent.ConcurrentHashMap;
 import dev.kshl.kshlib.exceptions.BusyException;
-import dev.kshl.kshlib.function.ThrowingConsumer;
 import dev.kshl.kshlib.json.JSONCollector;
 import dev.kshl.kshlib.net.HTTPRequestType;
 import dev.kshl.kshlib.net.HTTPResponseCode;
@@ -12,6 +11,8 @@ import dev.kshl.kshlib.sql.SQLSessionTokenManager;
 import dev.kshl.kshlib.sql.SettingManager;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,13 +20,25 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class PointsWebServer extends WebServer {
     private static final long LOGIN_DELAY_TIME = 1000;
+    private static final long STREAM_POLL_TIME = 25000;
+    private static final int HISTORY_DEFAULT_POINTS = 500;
+    private static final int HISTORY_MAX_POINTS = 5000;
+    private static final int MAX_REDEEM_IDS = 100;
+    private static final int LIST_DEFAULT_LIMIT = 100;
+    private static final int LIST_MAX_LIMIT = 1000;
+    private static final int SEARCH_DEFAULT_LIMIT = 20;
+    private static final int SEARCH_MAX_LIMIT = 100;
+    private static final int SEARCH_MAX_QUERY_LENGTH = 100;
 
     public static final class PasswordRequirements {
         public static final int MIN_LENGTH = 12;
@@ -45,11 +58,12 @@ public class PointsWebServer extends WebServer {
             if (password.length() > PasswordRequirements.MAX_LENGTH) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Password must be no more than " + PasswordRequirements.MAX_LENGTH + " characters");
             }
-            if (!password.matches("[a-zA-Z0-9_\\-\\s!@#$%^&*()+=`~'\";\\[\\]{},.<>/?\\\\|]+")) {
-                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Your password contains invalid characters");
-            }
             int upper = 0, lower = 0, special = 0;
-            for (char c : password.toCharArray()) {
+            for (int i = 0; i < password.length(); i++) {
+                char c = password.charAt(i);
+                if (!Validators.isPasswordCharacter(c)) {
+                    throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Your password contains invalid characters");
+                }
                 if (c >= 'A' && c <= 'Z') upper++;
                 else if (c >= 'a' && c <= 'z') lower++;
                 else special++;
@@ -69,44 +83,88 @@ public class PointsWebServer extends WebServer {
         }
     }
 
-    private static class LoginLocker {
-        private final ReentrantLock lock = new ReentrantLock();
-        private final long lastLocked = System.currentTimeMillis();
+    private static final String LOGIN_LOCK_KEY = "login-lock:";
+    private static final String FAILED_USERNAME_KEY = "failed-login-username:";
+    private static final String FAILED_IP_KEY = "failed-login-ip:";
+    private static final String FAILED_PERSISTENT_KEY = "failed-login-persistent:";
+    private static final long LOGIN_LOCK_TTL = 60000L;
+    private static final long LOGIN_LOCK_POLL_INTERVAL = 20L;
+    private static final long FAILED_LOGIN_RETENTION = 60000L * 5;
 
-        public boolean tryLock(long waitMillis) throws InterruptedException {
-            return lock.tryLock(waitMillis, TimeUnit.MILLISECONDS);
-        }
-
-        public void unlock() {
-            lock.unlock();
-        }
-    }
-
-    private final ConcurrentHashMap<String, LoginLocker> loginLock = new ConcurrentHashMap<>(new HashMap<>());
-    private final ConcurrentHashMap<String, List<Long>> failedLoginAttemptUsernames = new ConcurrentHashMap<>(new HashMap<>());
-    private final ConcurrentHashMap<String, List<Long>> failedLoginAttemptIPs = new ConcurrentHashMap<>(new HashMap<>());
-    private final ConcurrentHashMap<String, AtomicInteger> failedLoginAttemptPersistent = new ConcurrentHashMap<>(new HashMap<>());
+    private final StateStore stateStore;
     private final SQLManager sqlManager;
     private final EmailChallenger emailChallenger;
+    private final PasswordHasher passwordHasher;
+    private final AdaptiveLimiter adaptiveLimiter;
+    private final BackupManager backupManager;
+    private final DatabaseMaintenance maintenance;
+    private final StaticAssets staticAssets;
+    private final int maxBodyBytes;
+    private final Metrics metrics = new Metrics();
     private final Map<String, Endpoint> endpoints;
+    private final Set<String> endpointRoots;
 
     public PointsWebServer(int port, SQLManager sqlManager, EmailChallenger emailChallenger, int numberOfProxies) {
+        this(port, sqlManager, emailChallenger, numberOfProxies, new JSONObject());
+    }
+
+    /**
+     * @param config The "server" section of .env.json, or null for defaults
+     */
+    public PointsWebServer(int port, SQLManager sqlManager, EmailChallenger emailChallenger, int numberOfProxies, JSONObject config) {
+        this(port, sqlManager, emailChallenger, numberOfProxies, config, new LocalStateStore());
+    }
+
+    /**
+     * @param stateStore Holds login locks and failed attempt history. Every node serving the same users must share one.
+     */
+    public PointsWebServer(int port, SQLManager sqlManager, EmailChallenger emailChallenger, int numberOfProxies, JSONObject config, StateStore stateStore) {
         super(port, numberOfProxies, 10000, new RateLimitParams(20, 5000), false, "http://localhost:3000", "https://ks-hl.github.io");
+        if (config == null) config = new JSONObject();
 
+        this.stateStore = stateStore;
         this.sqlManager = sqlManager;
         this.emailChallenger = emailChallenger;
+        this.passwordHasher = PasswordHasher.fromJSON(sqlManager.getPasswordManager(), config.optJSONObject("password_hashing"));
+        this.adaptiveLimiter = AdaptiveLimiter.fromJSON(config.optJSONObject("admission"));
+        this.backupManager = sqlManager.isSQLite() ? BackupManager.fromJSON(sqlManager.getSQLiteFile(), sqlManager.getShards().stream().map(SQLManager::getSQLiteFile).toList(), config.optJSONObject("backup")) : null;
+        this.maintenance = sqlManager.isSQLite() ? DatabaseMaintenance.fromJSON(sqlManager, config.optJSONObject("maintenance"), this::getInFlight) : null;
+        this.maxBodyBytes = config.optInt("max_body_bytes", 16 << 10);
+        try {
+            this.staticAssets = StaticAssets.fromJSON(config.optJSONObject("static"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open static asset directory", e);
+        }
         this.endpoints = makeEndpointMap();
+        this.endpointRoots = endpoints.keySet().stream().map(PointsWebServer::rootOf).filter(root -> !root.isEmpty()).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * @return The first segment of path, e.g. "points" for /points/list, or "" for /.
+     */
+    private static String rootOf(String path) {
+        int end = path.indexOf('/', 1);
+        return path.substring(1, end < 0 ? path.length() : end);
+    }
+
+    /**
+     * @return Whether path is, or is under, an API endpoint, e.g. /api/anything, /points/lst or /backup. These get a
+     * 404 when unknown rather than index.html.
+     */
+    private boolean isEndpointPath(String path) {
+        path = path.toLowerCase();
+        return path.startsWith("/api/") || (path.startsWith("/") && endpointRoots.contains(rootOf(path)));
     }
 
     private Map<String, Endpoint> makeEndpointMap() {
         Map<String, Endpoint> endpointMap = new HashMap<>();
 
-        endpointMap.put("/login", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/login", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, Endpoint.Limits.AUTHENTICATION, endpointRequest -> {
             Request request = endpointRequest.request();
             StringBuilder logBuilder = endpointRequest.logBuilder();
 
-            String username = request.bodyJSONOrEmpty().optString("username");
-            String password = request.bodyJSONOrEmpty().optString("password");
+            String username = endpointRequest.body().getString("username");
+            String password = endpointRequest.body().getString("password");
             if (username == null || password == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No login info provided.");
             }
@@ -115,58 +173,55 @@ public class PointsWebServer extends WebServer {
             int uid = sqlManager.getUIDManager().getIDOpt(username, false).orElseThrow(badUsernamePassword);
             logBuilder.append(" (UID=").append(uid).append(")");
 
-            loginLock.removeIfValues(l -> request.requestTime() - l.lastLocked > 60000);
-            LoginLocker lock = loginLock.computeIfAbsent(username.toLowerCase(), u -> new LoginLocker());
-            if (lock.tryLock(3000)) {
+            final String lockKey = LOGIN_LOCK_KEY + username.toLowerCase();
+            final String lockToken = tryLock(lockKey, 3000);
+            if (lockToken != null) {
                 try {
-                    failedLoginAttemptPersistent.computeIfAbsent(request.sender(), s -> new AtomicInteger()).incrementAndGet();
-                    ThrowingConsumer<HashMap<String, List<Long>>, WebException> failedConsumer = failedLoginAttemptUsernames -> {
-                        var chain = failedLoginAttemptUsernames.computeIfAbsent(username.toLowerCase(), u -> new ArrayList<>());
-                        chain.removeIf(l -> request.requestTime() - l > 60000L * 5);
-                        int within5Minutes = chain.size();
-                        int within1Minute = (int) chain.stream().filter(l -> request.requestTime() - l <= 60000L).count();
-                        if (within1Minute >= 3) {
-                            throw new WebException(HTTPResponseCode.FORBIDDEN, "Too many login attempts within 1 minute.");
-                        }
-                        if (within5Minutes >= 5) {
-                            throw new WebException(HTTPResponseCode.FORBIDDEN, "Too many login attempts within 5 minutes.");
-                        }
-                    };
-                    failedLoginAttemptUsernames.consumeThrowing(failedConsumer, 3000);
-                    failedLoginAttemptIPs.consumeThrowing(failedConsumer, 3000);
-
-                    if (uid > 0 && sqlManager.getPasswordManager().testPassword(uid, password)) {
-                        failedLoginAttemptUsernames.remove(username.toLowerCase());
-                        failedLoginAttemptIPs.remove(request.sender());
-                        failedLoginAttemptPersistent.remove(request.sender());
+                    long persistentFailures = stateStore.increment(FAILED_PERSISTENT_KEY + request.sender(), 0);
+                    List<Long> attempts = stateStore.getEvents(FAILED_USERNAME_KEY + username.toLowerCase(), request.requestTime() - FAILED_LOGIN_RETENTION);
+                    int within5Minutes = attempts.size();
+                    int within1Minute = (int) attempts.stream().filter(l -> request.requestTime() - l <= 60000L).count();
+                    if (within1Minute >= 3) {
+                        throw new WebException(HTTPResponseCode.FORBIDDEN, "Too many login attempts within 1 minute.");
+                    }
+                    if (within5Minutes >= 5) {
+                        throw new WebException(HTTPResponseCode.FORBIDDEN, "Too many login attempts within 5 minutes.");
+                    }
+
+                    if (uid > 0 && passwordHasher.testPassword(uid, password)) {
+                        stateStore.delete(FAILED_USERNAME_KEY + username.toLowerCase());
+                        stateStore.delete(FAILED_IP_KEY + request.sender());
+                        stateStore.delete(FAILED_PERSISTENT_KEY + request.sender());
                         return issueSession(uid, username, request.sender());
                     }
                     logBuilder.append("\nIncorrect password");
-                    failedLoginAttemptUsernames.computeIfAbsent(username.toLowerCase(), u -> new ArrayList<>()).add(request.requestTime());
-                    failedLoginAttemptIPs.computeIfAbsent(request.sender(), u -> new ArrayList<>()).add(request.requestTime());
+                    metrics.increment("login_failures");
+                    stateStore.addEvent(FAILED_USERNAME_KEY + username.toLowerCase(), request.requestTime(), FAILED_LOGIN_RETENTION);
+                    stateStore.addEvent(FAILED_IP_KEY + request.sender(), request.requestTime(), FAILED_LOGIN_RETENTION);
 
-                    if (failedLoginAttemptPersistent.get(request.sender()).get() > 30) {
+                    if (persistentFailures > 30) {
                         sqlManager.getBannedIPManager().add(sqlManager.getIPIDManager().getIDOpt(request.sender(), true).orElseThrow());
                         logBuilder.append("\nIP BANNED");
+                        metrics.increment("bans");
                     }
                 } finally {
                     try {
                         long requiredWait = getLoginDelayTime() - (System.currentTimeMillis() - request.requestTime());
                         if (requiredWait > 0) Thread.sleep(requiredWait);
                     } finally {
-                        lock.unlock();
+                        stateStore.deleteIfEquals(lockKey, lockToken);
                     }
                 }
             }
             throw badUsernamePassword.get();
         }));
-        endpointMap.put("/createaccount", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/createaccount", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, Endpoint.Limits.AUTHENTICATION, endpointRequest -> {
             Request request = endpointRequest.request();
             StringBuilder logBuilder = endpointRequest.logBuilder();
 
-            String email = request.bodyJSONOrEmpty().optString("email");
-            String username = request.bodyJSONOrEmpty().optString("username");
-            String password = request.bodyJSONOrEmpty().optString("password");
+            String email = endpointRequest.body().getString("email");
+            String username = endpointRequest.body().getString("username");
+            String password = endpointRequest.body().getString("password");
             if (username == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No login info provided.");
             }
@@ -191,15 +246,15 @@ public class PointsWebServer extends WebServer {
                 throw invalidEmail.get();
             }
 
-            if (username.length() < 4) {
-                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Username must be at least 4 characters");
+            if (username.length() < Validators.MIN_USERNAME_LENGTH) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Username must be at least " + Validators.MIN_USERNAME_LENGTH + " characters");
             }
 
-            if (username.length() > 20) {
-                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Username must be no more than 20 characters");
+            if (username.length() > Validators.MAX_USERNAME_LENGTH) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Username must be no more than " + Validators.MAX_USERNAME_LENGTH + " characters");
             }
 
-            if (!username.matches("[a-zA-Z0-9_]+")) {
+            if (!Validators.isUsername(username)) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Username must be alphanumeric or underscores");
             }
 
@@ -215,7 +270,7 @@ public class PointsWebServer extends WebServer {
 
             logBuilder.append(String.format("\nCreating new account: UID=%s, username=%s, email=%s", uid, username, email));
 
-            sqlManager.getPasswordManager().setPassword(uid, password, 0);
+            setNewAccountPassword(uid, password);
 
             sqlManager.createAccount(uid, email);
 
@@ -223,7 +278,7 @@ public class PointsWebServer extends WebServer {
 
             return issueSession(uid, username, request.sender());
         }));
-        endpointMap.put("/forgotpassword", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/forgotpassword", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, Endpoint.Limits.EMAIL, endpointRequest -> {
             Request request = endpointRequest.request();
             StringBuilder logBuilder = endpointRequest.logBuilder();
 
@@ -244,9 +299,9 @@ public class PointsWebServer extends WebServer {
                 logBuilder.append("\nRequested a password reset for ").append(email).append(", uid=").append(uid);
             } else {
                 logBuilder.append("\nRequested a password reset for invalid email: ").append(email);
-                failedLoginAttemptPersistent.computeIfAbsent(request.sender(), s -> new AtomicInteger()).incrementAndGet();
-                if (failedLoginAttemptPersistent.get(request.sender()).get() > 30) {
+                if (stateStore.increment(FAILED_PERSISTENT_KEY + request.sender(), 0) > 30) {
                     logBuilder.append(", IP BANNED");
+                    metrics.increment("bans");
                     sqlManager.getBannedIPManager().add(sqlManager.getIPIDManager().getIDOpt(request.sender(), true).orElseThrow());
                 }
             }
@@ -255,37 +310,37 @@ public class PointsWebServer extends WebServer {
             if (sleepRequired > 0) Thread.sleep(sleepRequired);
             return new Response().body(new JSONObject().put("success", true));
         }));
-        endpointMap.put("/resetpassword", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/resetpassword", new Endpoint(Endpoint.AuthenticationStage.NONE, HTTPRequestType.POST, Endpoint.Limits.AUTHENTICATION, endpointRequest -> {
             Request request = endpointRequest.request();
             StringBuilder logBuilder = endpointRequest.logBuilder();
 
-            if (request.type() != HTTPRequestType.POST || request.bodyJSON() == null) {
+            if (request.type() != HTTPRequestType.POST || !endpointRequest.body().isPresent()) {
                 throw new WebException(HTTPResponseCode.BAD_REQUEST, "resetpassword should be POST");
             }
 
-            String code = request.bodyJSON().optString("code");
+            String code = endpointRequest.body().getString("code");
             if (code == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No user provided.");
             }
-            int uid = emailChallenger.completeResetChallenge(code);
+            int uid = Validators.isResetCode(code) ? emailChallenger.completeResetChallenge(code) : -1;
             logBuilder.append("\nReset UID ").append(uid);
             if (uid > 0) {
-                String newPassword = request.bodyJSON().optString("new");
+                String newPassword = endpointRequest.body().getString("new");
                 PasswordRequirements.validatePassword(newPassword);
-                sqlManager.getPasswordManager().setPassword(uid, newPassword, 0);
+                passwordHasher.setPassword(uid, newPassword);
 
                 return new Response().body(new JSONObject().put("success", true));
             } else {
-                failedLoginAttemptPersistent.computeIfAbsent(request.sender(), s -> new AtomicInteger()).incrementAndGet();
-                if (failedLoginAttemptPersistent.get(request.sender()).get() > 30) {
+                if (stateStore.increment(FAILED_PERSISTENT_KEY + request.sender(), 0) > 30) {
                     sqlManager.getBannedIPManager().add(sqlManager.getIPIDManager().getIDOpt(request.sender(), true).orElseThrow());
                     logBuilder.append(", IP BANNED");
+                    metrics.increment("bans");
                 }
             }
             throw new WebException(HTTPResponseCode.FORBIDDEN);
         }));
 
-        endpointMap.put("/emailcode", new Endpoint(Endpoint.AuthenticationStage.NEW_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/emailcode", new Endpoint(Endpoint.AuthenticationStage.NEW_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.AUTHENTICATION, endpointRequest -> {
             Request request = endpointRequest.request();
             AuthResult authResult = endpointRequest.authResult();
 
@@ -293,7 +348,7 @@ public class PointsWebServer extends WebServer {
             if (code == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No code provided");
             }
-            if (!code.matches("\\d{6,}")) {
+            if (!Validators.isEmailCode(code)) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid code");
             }
             if (emailChallenger.completeChallenge(authResult.uid(), code)) {
@@ -303,7 +358,7 @@ public class PointsWebServer extends WebServer {
             throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid or expired code");
 
         }));
-        endpointMap.put("/newcode", new Endpoint(Endpoint.AuthenticationStage.NEW_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/newcode", new Endpoint(Endpoint.AuthenticationStage.NEW_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.EMAIL, endpointRequest -> {
             AuthResult authResult = endpointRequest.authResult();
 
             emailChallenger.startChallenge(authResult.uid(), sqlManager.getEmail(authResult.uid()), false);
@@ -317,9 +372,10 @@ public class PointsWebServer extends WebServer {
             body.put("success", true);
             body.put("admin", authResult.admin());
 
+            SQLManager.Settings userSettings = sqlManager.getSettings(authResult.uid());
             JSONObject settings = new JSONObject();
             for (SQLManager.Setting setting : SQLManager.Setting.values()) {
-                settings.put(setting.toString(), setting.toJSON(sqlManager, authResult.uid()));
+                settings.put(setting.toString(), setting.toJSON(userSettings));
             }
 
             body.put("settings", settings);
@@ -337,35 +393,108 @@ public class PointsWebServer extends WebServer {
             sqlManager.logoutEverywhere(authResult.uid());
             return new Response().body(new JSONObject().put("success", true)).header("Set-Cookie", "session=; expires=Thu, 01 Jan 1970 00:00:00 GMT");
         }));
-        endpointMap.put("/changepassword", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
-            Request request = endpointRequest.request();
+        endpointMap.put("/changepassword", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.AUTHENTICATION, endpointRequest -> {
             AuthResult authResult = endpointRequest.authResult();
 
-            String currentPassword = request.bodyJSONOrEmpty().optString("current");
+            String currentPassword = endpointRequest.body().getString("current");
             if (currentPassword == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No password provided.");
             }
 
-            if (!sqlManager.getPasswordManager().testPassword(authResult.uid, currentPassword)) {
+            if (!passwordHasher.testPassword(authResult.uid, currentPassword)) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid current password");
             }
-            String newPassword = request.bodyJSONOrEmpty().optString("new");
+            String newPassword = endpointRequest.body().getString("new");
             PasswordRequirements.validatePassword(newPassword);
 
             if (currentPassword.equalsIgnoreCase(newPassword)) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Your passwords are the same");
             }
 
-            sqlManager.getPasswordManager().setPassword(authResult.uid, newPassword, 0);
+            passwordHasher.setPassword(authResult.uid, newPassword);
             return new Response().body(new JSONObject().put("success", true));
 
         }));
-        endpointMap.put("/points/list", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.GET, endpointRequest -> {
+        endpointMap.put("/points/list", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.GET, Endpoint.Limits.POINTS, endpointRequest -> {
+            Request request = endpointRequest.request();
+            AuthResult authResult = endpointRequest.authResult();
+
+            // Taken before the list is read, so the client can stream every change the list might not include
+            final long cursor = sqlManager.getEventBus().open(authResult.uid());
+
+            // Without paging parameters, the whole list, as before
+            if (request.query().get("after") == null && request.query().get("limit") == null) {
+                return new Response().body(new JSONObject()
+                        .put("points", sqlManager.getPeople(authResult.uid()).stream().map(SQLManager.Person::toJSON).collect(JSONCollector.toJSON()))
+                        .put("cursor", cursor));
+            }
+            long after = endpointRequest.getLongFromQuery("after", Integer.MIN_VALUE);
+            long limit = endpointRequest.getLongFromQuery("limit", LIST_DEFAULT_LIMIT);
+            if (after < Integer.MIN_VALUE || after > Integer.MAX_VALUE) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid after");
+            }
+            if (limit < 1 || limit > LIST_MAX_LIMIT) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "'limit' must be between 1 and " + LIST_MAX_LIMIT);
+            }
+            SQLManager.Page page = sqlManager.getPeople(authResult.uid(), request.query().get("after") == null ? null : (int) after, (int) limit);
+            return new Response().body(new JSONObject()
+                    .put("points", page.people().stream().map(SQLManager.Person::toJSON).collect(JSONCollector.toJSON()))
+                    .put("next", page.next() == null ? JSONObject.NULL : page.next())
+                    .put("cursor", cursor));
+        }));
+        endpointMap.put("/points/stream", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.GET, Endpoint.Limits.STREAM, endpointRequest -> {
+            Request request = endpointRequest.request();
+            AuthResult authResult = endpointRequest.authResult();
+
+            long since = -1;
+            String sinceStr = request.query().get("since");
+            try {
+                if (sinceStr != null) since = Long.parseLong(sinceStr);
+            } catch (IllegalArgumentException e) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid cursor");
+            }
+
+            PointsEventBus.Poll poll = sqlManager.getEventBus().await(authResult.uid(), since, STREAM_POLL_TIME);
+            return new Response().body(new JSONObject()
+                            .put("cursor", poll.cursor())
+                            .put("reset", poll.reset())
+                            .put("events", poll.events().stream().map(PointsEventBus.Event::toJSON).collect(JSONCollector.toJSON())))
+                    .header("Cache-Control", "no-store");
+        }));
+        endpointMap.put("/points/search", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.GET, Endpoint.Limits.POINTS, endpointRequest -> {
+            Request request = endpointRequest.request();
+            AuthResult authResult = endpointRequest.authResult();
+
+            String query = request.query().get("q");
+            if (query == null || query.isBlank() || query.length() > SEARCH_MAX_QUERY_LENGTH) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "'q' must be between 1 and " + SEARCH_MAX_QUERY_LENGTH + " characters");
+            }
+            long limit = endpointRequest.getLongFromQuery("limit", SEARCH_DEFAULT_LIMIT);
+            if (limit < 1 || limit > SEARCH_MAX_LIMIT) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "'limit' must be between 1 and " + SEARCH_MAX_LIMIT);
+            }
+            return new Response().body(new JSONObject().put("points", sqlManager.search(authResult.uid(), query, (int) limit).stream().map(SQLManager.Person::toJSON).collect(JSONCollector.toJSON())));
+        }));
+        endpointMap.put("/points/history", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.GET, Endpoint.Limits.POINTS, endpointRequest -> {
             AuthResult authResult = endpointRequest.authResult();
+            int id = endpointRequest.getPointIDFromQuery();
+
+            long now = System.currentTimeMillis();
+            long from = endpointRequest.getLongFromQuery("from", 0);
+            long to = Math.min(endpointRequest.getLongFromQuery("to", now), now);
+            long maxPoints = endpointRequest.getLongFromQuery("points", HISTORY_DEFAULT_POINTS);
+            if (from > to) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "'from' must not be after 'to'");
+            }
+            if (maxPoints < 1 || maxPoints > HISTORY_MAX_POINTS) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "'points' must be between 1 and " + HISTORY_MAX_POINTS);
+            }
 
-            return new Response().body(new JSONObject().put("points", sqlManager.getPeople(authResult.uid()).stream().map(SQLManager.Person::toJSON).collect(JSONCollector.toJSON())));
+            PointsHistory history = sqlManager.getHistory(authResult.uid(), id, from, to, (int) maxPoints)
+                    .orElseThrow(() -> new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Points not found"));
+            return new Response().body(history.toJSON());
         }));
-        endpointMap.put("/points/new", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/points/new", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.POINTS, endpointRequest -> {
             StringBuilder logBuilder = endpointRequest.logBuilder();
             AuthResult authResult = endpointRequest.authResult();
 
@@ -374,11 +503,10 @@ public class PointsWebServer extends WebServer {
             return new Response().body(person.toJSON());
         }));
         endpointMap.put("/settings/set", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
-            Request request = endpointRequest.request();
             StringBuilder logBuilder = endpointRequest.logBuilder();
             AuthResult authResult = endpointRequest.authResult();
 
-            String settingString = request.bodyJSONOrEmpty().optString("key");
+            String settingString = endpointRequest.body().getString("key");
             SQLManager.Setting setting;
             try {
                 setting = SQLManager.Setting.valueOf(settingString == null ? null : settingString.toUpperCase());
@@ -386,12 +514,12 @@ public class PointsWebServer extends WebServer {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No setting specified");
             }
             try {
-                Object value = request.bodyJSONOrEmpty().opt("value");
+                Object value = endpointRequest.body().get("value");
                 if (value == null) {
                     throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No value provided");
                 }
                 try {
-                    setting.getSettingManager(sqlManager).setFromObject(authResult.uid(), value);
+                    sqlManager.setSetting(authResult.uid(), setting, value);
                     logBuilder.append(String.format("\nSet %s to %s", settingString, value));
                     return new Response().body(new JSONObject().put("setting", setting.toJSON(sqlManager, authResult.uid())));
                 } catch (SettingManager.ArgumentValidationException e) {
@@ -404,7 +532,7 @@ public class PointsWebServer extends WebServer {
                 return new Response().code(e.responseCode).body(new JSONObject().put("error", e.getUserErrorMessage()).put("setting", setting.toJSON(sqlManager, authResult.uid())));
             }
         }));
-        endpointMap.put("/points/set/name", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/points/set/name", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.POINTS, endpointRequest -> {
             Request request = endpointRequest.request();
             AuthResult authResult = endpointRequest.authResult();
             int id = endpointRequest.getPointIDFromQuery();
@@ -420,7 +548,7 @@ public class PointsWebServer extends WebServer {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Points not found");
             }
         }));
-        endpointMap.put("/points/set/points", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/points/set/points", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.POINTS, endpointRequest -> {
             Request request = endpointRequest.request();
             AuthResult authResult = endpointRequest.authResult();
             int id = endpointRequest.getPointIDFromQuery();
@@ -434,7 +562,7 @@ public class PointsWebServer extends WebServer {
             }
 
             if (points < 0) {
-                if (!SQLManager.Setting.ALLOW_NEGATIVE.getSettingManager(sqlManager).getBoolean(authResult.uid())) {
+                if (!sqlManager.getSettings(authResult.uid()).allowNegative()) {
                     int currentPoints = sqlManager.getPerson(authResult.uid(), id).orElseThrow(() -> new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Points not found")).points();
                     if (points < currentPoints) { // Allows raising points from a negative value regardless of the setting
                         throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Setting to allow negative is disabled");
@@ -448,7 +576,19 @@ public class PointsWebServer extends WebServer {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Points not found");
             }
         }));
-        endpointMap.put("/points/delete", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/points/redeem", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.POINTS, endpointRequest -> {
+            StringBuilder logBuilder = endpointRequest.logBuilder();
+            AuthResult authResult = endpointRequest.authResult();
+            List<Integer> ids = endpointRequest.getPointIDsFromQuery(MAX_REDEEM_IDS);
+
+            List<SQLManager.Redemption> redemptions = sqlManager.redeem(authResult.uid(), ids);
+            boolean success = redemptions.stream().allMatch(redemption -> redemption.status() == SQLManager.Redemption.Status.REDEEMED);
+            logBuilder.append("\nRedeemed ").append(redemptions);
+            return new Response().body(new JSONObject()
+                    .put("success", success)
+                    .put("redemptions", redemptions.stream().map(SQLManager.Redemption::toJSON).collect(JSONCollector.toJSON())));
+        }));
+        endpointMap.put("/points/delete", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.POINTS, endpointRequest -> {
             StringBuilder logBuilder = endpointRequest.logBuilder();
             AuthResult authResult = endpointRequest.authResult();
             int id = endpointRequest.getPointIDFromQuery();
@@ -461,7 +601,7 @@ public class PointsWebServer extends WebServer {
             }
             return new Response().body(new JSONObject().put("success", deleted));
         }));
-        endpointMap.put("/points/set/priority", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, endpointRequest -> {
+        endpointMap.put("/points/set/priority", new Endpoint(Endpoint.AuthenticationStage.VALIDATED_ACCOUNT, HTTPRequestType.POST, Endpoint.Limits.POINTS, endpointRequest -> {
             Request request = endpointRequest.request();
             AuthResult authResult = endpointRequest.authResult();
             int id = endpointRequest.getPointIDFromQuery();
@@ -475,16 +615,67 @@ public class PointsWebServer extends WebServer {
             return new Response().body(new JSONObject().put("success", sqlManager.setPriority(authResult.uid(), id, up)));
         }));
 
-        endpointMap.put("/makedemo", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, endpointRequest -> {
-            Request request = endpointRequest.request();
+        endpointMap.put("/metrics", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.GET, Endpoint.Limits.ADMIN, endpointRequest -> {
+            PasswordHasher.Stats hashing = passwordHasher.getStats();
+            Map<String, Number> counters = new HashMap<>();
+            Map<String, Number> gauges = new HashMap<>();
+            gauges.put("password_hash_queued", hashing.queued());
+            counters.put("password_hash_submitted", hashing.submitted());
+            counters.put("password_hash_rejected", hashing.rejected());
+            gauges.put("adaptive_limit", adaptiveLimiter.getLimit());
+            gauges.put("in_flight", getInFlight());
+            gauges.put("adaptive_in_flight", adaptiveLimiter.getInFlight());
+            gauges.put("stream_waiters", sqlManager.getEventBus().getWaiters());
+            counters.put("write_batches", sqlManager.getWriteBatches());
+            counters.put("writes_committed", sqlManager.getWritesCommitted());
+            gauges.put("writes_queued", sqlManager.getWritesQueued());
+            counters.put("shared_reads", sqlManager.getSharedReads());
+            counters.put("settings_cache_hits", sqlManager.getSettingsCacheHits());
+            counters.put("settings_cache_misses", sqlManager.getSettingsCacheMisses());
+            counters.put("uid_index_hits", sqlManager.getUIDManager().getHits());
+            counters.put("uid_index_misses", sqlManager.getUIDManager().getMisses());
+            counters.put("ip_index_hits", sqlManager.getIPIDManager().getHits());
+            counters.put("ip_index_misses", sqlManager.getIPIDManager().getMisses());
+            counters.put("email_index_hits", sqlManager.getEmailIDManager().getHits());
+            counters.put("email_index_misses", sqlManager.getEmailIDManager().getMisses());
+            if (staticAssets != null) {
+                counters.put("static_cache_hits", staticAssets.getCacheHits());
+                counters.put("static_cache_misses", staticAssets.getCacheMisses());
+                gauges.put("static_cache_bytes", staticAssets.getCachedBytes());
+            }
+
+            return new Response().body(metrics.toPrometheus(counters, gauges)).header("Content-Type", "text/plain; version=0.0.4");
+        }));
+        endpointMap.put("/sqlprofile", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.GET, Endpoint.Limits.ADMIN, endpointRequest -> {
+            return new Response().body(new JSONObject().put("statements", sqlManager.getProfiler().toJSON()));
+        }));
+        endpointMap.put("/sqlprofile/reset", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, Endpoint.Limits.ADMIN, endpointRequest -> {
+            return new Response().body(new JSONObject().put("statements", sqlManager.getProfiler().reset()).put("success", true));
+        }));
+        endpointMap.put("/backup", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, Endpoint.Limits.LONG_RUNNING, endpointRequest -> {
+            if (backupManager == null) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Backups are only taken of SQLite databases.");
+            }
+            BackupManager.Backup backup = backupManager.tryBackup().orElseThrow(() -> new WebException(HTTPResponseCode.SERVICE_UNAVAILABLE, "A backup is already running."));
+            endpointRequest.logBuilder().append("\nBackup written to ").append(backup.file());
+            return new Response().body(backup.toJSON().put("success", true));
+        }));
+        endpointMap.put("/maintenance", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, Endpoint.Limits.LONG_RUNNING, endpointRequest -> {
+            if (maintenance == null) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Maintenance only runs on SQLite databases.");
+            }
+            DatabaseMaintenance.Report report = maintenance.tryRun().orElseThrow(() -> new WebException(HTTPResponseCode.SERVICE_UNAVAILABLE, "Maintenance is already running."));
+            return new Response().body(report.toJSON().put("success", true));
+        }));
+        endpointMap.put("/makedemo", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, Endpoint.Limits.ADMIN, endpointRequest -> {
             StringBuilder logBuilder = endpointRequest.logBuilder();
 
-            String user = request.bodyJSONOrEmpty().optString("user");
+            String user = endpointRequest.body().getString("user");
             if (user == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No user provided.");
             }
 
-            String newPassword = request.bodyJSONOrEmpty().optString("new");
+            String newPassword = endpointRequest.body().getString("new");
             PasswordRequirements.validatePassword(newPassword);
 
             logBuilder.append("\nMaking new demo account: ").append(user);
@@ -503,17 +694,16 @@ public class PointsWebServer extends WebServer {
 
             logBuilder.append(String.format("\nCreating new account: UID=%s, username=%s, email=%s", uid, user, email));
 
-            sqlManager.getPasswordManager().setPassword(uid, newPassword, 0);
+            setNewAccountPassword(uid, newPassword);
             sqlManager.createAccount(uid, email);
             sqlManager.getValidatedAccountsManager().add(uid);
 
             return new Response().body(new JSONObject().put("success", true));
         }));
-        endpointMap.put("/setpassword", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, endpointRequest -> {
-            Request request = endpointRequest.request();
+        endpointMap.put("/setpassword", new Endpoint(Endpoint.AuthenticationStage.ADMIN, HTTPRequestType.POST, Endpoint.Limits.ADMIN, endpointRequest -> {
             StringBuilder logBuilder = endpointRequest.logBuilder();
 
-            String user = request.bodyJSONOrEmpty().optString("user");
+            String user = endpointRequest.body().getString("user");
             if (user == null) {
                 throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "No user provided.");
             }
@@ -523,12 +713,12 @@ public class PointsWebServer extends WebServer {
             }
             logBuilder.append("\nSetting password for ").append(user);
 
-            String newPassword = request.bodyJSONOrEmpty().optString("new");
+            String newPassword = endpointRequest.body().getString("new");
             PasswordRequirements.validatePassword(newPassword);
 
-            sqlManager.getPasswordManager().setPassword(targetUID, newPassword, 0);
-            failedLoginAttemptIPs.clear(); // Not sure if there's a better way, we don't know the user's IP very easily. This shouldn't be an issue because this endpoint will rarely be called.
-            failedLoginAttemptUsernames.remove(user.toLowerCase());
+            passwordHasher.setPassword(targetUID, newPassword);
+            stateStore.deletePrefix(FAILED_IP_KEY); // Not sure if there's a better way, we don't know the user's IP very easily. This shouldn't be an issue because this endpoint will rarely be called.
+            stateStore.delete(FAILED_USERNAME_KEY + user.toLowerCase());
             return new Response().body(new JSONObject().put("success", true));
 
         }));
@@ -537,25 +727,103 @@ public class PointsWebServer extends WebServer {
     }
 
     private static class Endpoint {
+        private static final long RATE_WINDOW = 60000L;
+
         private final AuthenticationStage authStage;
         private final HTTPRequestType requestType;
+        private final Limits limits;
         private final EndpointHandler endpointHandler;
+        private final Semaphore concurrency;
+        private final ConcurrentHashMap<String, RateWindow> rateWindows = new ConcurrentHashMap<>(new HashMap<>());
+        private final AtomicLong lastPruned = new AtomicLong();
 
         public enum AuthenticationStage {NONE, NEW_ACCOUNT, VALIDATED_ACCOUNT, ADMIN}
 
+        /**
+         * @param maxConcurrent     Requests to this endpoint which may run at once, across all senders, or
+         *                          {@link #UNBOUNDED}. Endpoints which deliberately sleep are unbounded, since a few
+         *                          senders within their rate budgets could otherwise hold every slot and lock
+         *                          everyone else out. They rely on each sender's rate budget and, for password
+         *                          hashing, the hasher's own queue.
+         * @param requestsPerMinute Requests to this endpoint each sender may make per minute.
+         * @param adaptive          Whether requests count against the server's adaptive concurrency limit. Endpoints
+         *                          which deliberately take a long time shouldn't, since they'd read as overload.
+         */
+        public record Limits(int maxConcurrent, int requestsPerMinute, boolean adaptive) {
+            public static final Limits DEFAULT = new Limits(64, 120, true);
+            public static final int UNBOUNDED = Integer.MAX_VALUE;
+            public static final Limits AUTHENTICATION = new Limits(UNBOUNDED, 10, false);
+            public static final Limits EMAIL = new Limits(UNBOUNDED, 3, false);
+            public static final Limits POINTS = new Limits(256, 600, true);
+            public static final Limits STREAM = new Limits(512, 120, false);
+            public static final Limits ADMIN = new Limits(8, 60, false);
+            public static final Limits LONG_RUNNING = new Limits(2, 6, false);
+        }
+
         @FunctionalInterface
         public interface EndpointHandler {
             Response handle(EndpointRequest endpointRequest) throws Exception;
         }
 
         Endpoint(AuthenticationStage authStage, HTTPRequestType requestType, EndpointHandler endpointHandler) {
+            this(authStage, requestType, Limits.DEFAULT, endpointHandler);
+        }
+
+        Endpoint(AuthenticationStage authStage, HTTPRequestType requestType, Limits limits, EndpointHandler endpointHandler) {
             this.authStage = authStage;
             this.requestType = requestType;
+            this.limits = limits;
             this.endpointHandler = endpointHandler;
+            this.concurrency = new Semaphore(limits.maxConcurrent());
+        }
+
+        /**
+         * Reserves a slot for a request from sender, which must be given back with {@link #release()}.
+         *
+         * @throws WebException If the sender is over its rate budget or the endpoint is at its concurrency limit.
+         */
+        void admit(String sender, long now) throws WebException {
+            long lastPruned = this.lastPruned.get();
+            if (now - lastPruned > RATE_WINDOW && this.lastPruned.compareAndSet(lastPruned, now)) {
+                rateWindows.removeIfValues(window -> window.isExpired(now));
+            }
+            if (!rateWindows.computeIfAbsent(sender, s -> new RateWindow()).tryAcquire(now, limits.requestsPerMinute())) {
+                throw new WebException(HTTPResponseCode.SERVICE_UNAVAILABLE, "Too many requests, please slow down.");
+            }
+            if (!concurrency.tryAcquire()) {
+                throw new WebException(HTTPResponseCode.SERVICE_UNAVAILABLE, "Server busy, please try again.");
+            }
+        }
+
+        void release() {
+            concurrency.release();
+        }
+
+        int getInFlight() {
+            return limits.maxConcurrent() - concurrency.availablePermits();
+        }
+
+        private static class RateWindow {
+            private long start;
+            private int count;
+
+            synchronized boolean tryAcquire(long now, int max) {
+                if (now - start >= RATE_WINDOW) {
+                    start = now;
+                    count = 0;
+                }
+                if (count >= max) return false;
+                count++;
+                return true;
+            }
+
+            synchronized boolean isExpired(long now) {
+                return now - start >= RATE_WINDOW;
+            }
         }
     }
 
-    public record EndpointRequest(Request request, AuthResult authResult, StringBuilder logBuilder) {
+    public record EndpointRequest(Request request, AuthResult authResult, StringBuilder logBuilder, RequestBody body) {
         public int getPointIDFromQuery() throws WebException {
             String idStr = request.query().get("id");
             int id = -1;
@@ -568,6 +836,62 @@ public class PointsWebServer extends WebServer {
             }
             return id;
         }
+
+        /**
+         * @return The comma separated IDs in the id query parameter, in order.
+         */
+        public List<Integer> getPointIDsFromQuery(int max) throws WebException {
+            String idStr = request.query().get("id");
+            if (idStr == null || idStr.isEmpty()) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid ID");
+            }
+            String[] parts = idStr.split(",", max + 1);
+            if (parts.length > max) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "At most " + max + " IDs");
+            }
+            List<Integer> ids = new ArrayList<>(parts.length);
+            for (String part : parts) {
+                int id = -1;
+                try {
+                    id = Integer.parseInt(part.trim());
+                } catch (IllegalArgumentException ignored) {
+                }
+                if (id <= 0) {
+                    throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid ID");
+                }
+                ids.add(id);
+            }
+            return ids;
+        }
+
+        /**
+         * @return The query parameter as a long, or defaultValue if it's missing.
+         */
+        public long getLongFromQuery(String key, long defaultValue) throws WebException {
+            String value = request.query().get(key);
+            if (value == null) return defaultValue;
+            try {
+                return Long.parseLong(value);
+            } catch (IllegalArgumentException e) {
+                throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, "Invalid " + key);
+            }
+        }
+    }
+
+    /**
+     * Takes a lock shared with every node using the same state store, polling until it's free or waitMillis elapses.
+     * The lock expires on its own if this node dies holding it.
+     *
+     * @return A token identifying this holder of the lock, to release it with, or null if it wasn't acquired in time.
+     */
+    private String tryLock(String key, long waitMillis) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + waitMillis;
+        final String token = UUID.randomUUID().toString();
+        while (!stateStore.putIfAbsent(key, token, LOGIN_LOCK_TTL)) {
+            if (System.currentTimeMillis() >= deadline) return null;
+            Thread.sleep(LOGIN_LOCK_POLL_INTERVAL);
+        }
+        return token;
     }
 
     @Override
@@ -585,18 +909,48 @@ public class PointsWebServer extends WebServer {
         Main.warning(s);
     }
 
+    /**
+     * @return Requests being handled across every endpoint, not counting streams waiting for an event.
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            inFlight += endpoint.getInFlight();
+        }
+        return Math.max(0, inFlight - sqlManager.getEventBus().getWaiters());
+    }
+
     private final Map<Request, StringBuilder> requestLoggingMap = new HashMap<>();
 
     @Override
     protected Response handle(Request request) throws WebException {
         StringBuilder logBuilder = new StringBuilder();
+        final long start = System.nanoTime();
+        long authNanos = 0;
+        String metricsEndpoint = null;
+        RequestTimings.reset();
         try {
             int ipID = sqlManager.getIPIDManager().getIDOpt(request.sender(), true).orElseThrow();
             if (sqlManager.getBannedIPManager().contains(ipID)) {
+                metrics.increment("banned_requests");
                 throw new WebException(HTTPResponseCode.FORBIDDEN, "Your IP is banned. Please contact an administrator.");
             }
+            sqlManager.touchIP(ipID);
+
+            // Assets don't need a session, so they're served before one is looked up
+            if (staticAssets != null && request.type() == HTTPRequestType.GET && !isEndpointPath(request.endpoint())) {
+                StaticAssets.Asset asset = staticAssets.get(request.endpoint(), getHeader(request, "Accept-Encoding"), getHeader(request, "If-None-Match"));
+                if (asset != null) {
+                    metricsEndpoint = "static";
+                    Response response = asset.notModified() ? new Response().code(HTTPResponseCode.NOT_MODIFIED) : new Response().body(asset.body());
+                    asset.headers().forEach(response::header);
+                    return response;
+                }
+            }
 
+            final long authStart = System.nanoTime();
             AuthResult authResult = validateSessionCookie(request);
+            authNanos = System.nanoTime() - authStart;
             if (authResult.uid() > 0 && authResult.valid()) {
                 String user;
                 try {
@@ -613,6 +967,7 @@ public class PointsWebServer extends WebServer {
             final String endpointString = (request.endpoint().startsWith("/api/") ? request.endpoint().substring(4) : request.endpoint()).toLowerCase();
             Endpoint endpoint = this.endpoints.get(endpointString);
             if (endpoint != null) {
+                metricsEndpoint = endpointString;
                 if (endpoint.authStage == Endpoint.AuthenticationStage.NONE) {
                     if (authResult.valid()) {
                         throw new WebException(HTTPResponseCode.BAD_REQUEST, "You are already logged in!");
@@ -644,18 +999,42 @@ public class PointsWebServer extends WebServer {
                     throw new WebException(HTTPResponseCode.UNPROCESSABLE_ENTITY, endpointString + " must be " + endpoint.requestType);
                 }
 
-                return endpoint.endpointHandler.handle(new EndpointRequest(request, authResult, logBuilder));
+                RequestBody body = request.type() == HTTPRequestType.POST ? RequestBody.of(request, maxBodyBytes) : new RequestBody(null);
+                endpoint.admit(request.sender(), request.requestTime());
+                final boolean adaptive = endpoint.limits.adaptive();
+                if (adaptive && !adaptiveLimiter.tryAcquire()) {
+                    endpoint.release();
+                    throw new WebException(HTTPResponseCode.SERVICE_UNAVAILABLE, "Server busy, please try again.");
+                }
+                final long handlerStart = System.nanoTime();
+                boolean overloaded = false;
+                try {
+                    return endpoint.endpointHandler.handle(new EndpointRequest(request, authResult, logBuilder, body));
+                } catch (BusyException | RejectedExecutionException e) {
+                    overloaded = true;
+                    throw e;
+                } finally {
+                    endpoint.release();
+                    if (adaptive) adaptiveLimiter.release(System.nanoTime() - handlerStart, overloaded);
+                }
             }
 
             return null;
         } catch (WebException e) {
+            if (e.responseCode.getCode() == HTTPResponseCode.SERVICE_UNAVAILABLE.getCode()) {
+                metrics.increment("unavailable");
+            }
             throw e;
-        } catch (BusyException e) {
+        } catch (BusyException | RejectedExecutionException e) {
+            metrics.increment("unavailable");
             throw new WebException(HTTPResponseCode.SERVICE_UNAVAILABLE);
         } catch (Throwable t) {
             Main.print("An error occurred with endpoint " + request.endpoint(), t);
             throw new WebException(HTTPResponseCode.INTERNAL_SERVER_ERROR);
         } finally {
+            if (metricsEndpoint != null) {
+                metrics.record(metricsEndpoint, System.nanoTime() - start, authNanos, RequestTimings.getSQLNanos(), RequestTimings.getWaitNanos());
+            }
             synchronized (requestLoggingMap) {
                 requestLoggingMap.put(request, logBuilder);
             }
@@ -695,6 +1074,32 @@ public class PointsWebServer extends WebServer {
         return response;
     }
 
+    /**
+     * Sets the password of an account whose username was just reserved. If that fails, such as when hashing is shed
+     * under load, the username is given back so the account can be created again.
+     */
+    private void setNewAccountPassword(int uid, String password) throws SQLException, BusyException, InterruptedException {
+        try {
+            passwordHasher.setPassword(uid, password);
+        } catch (Throwable t) {
+            try {
+                sqlManager.getUIDManager().remove(uid);
+            } catch (SQLException | BusyException e) {
+                t.addSuppressed(e);
+            }
+            throw t;
+        }
+    }
+
+    private static String getHeader(Request request, String name) {
+        for (Map.Entry<String, List<String>> header : request.headers().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return String.join(", ", header.getValue());
+            }
+        }
+        return null;
+    }
+
     AuthResult validateSessionCookie(Request request) throws WebException {
         List<String> cookie = request.headers().get("Cookie");
         if (cookie == null || cookie.isEmpty()) return AuthResult.fail();
@@ -749,6 +1154,43 @@ public class PointsWebServer extends WebServer {
 
     }
 
+    public PasswordHasher getPasswordHasher() {
+        return passwordHasher;
+    }
+
+    public StateStore getStateStore() {
+        return stateStore;
+    }
+
+    /**
+     * @return The backup manager, or null if the database isn't SQLite.
+     */
+    public BackupManager getBackupManager() {
+        return backupManager;
+    }
+
+    /**
+     * @return The maintenance scheduler, or null if the database isn't SQLite.
+     */
+    public DatabaseMaintenance getMaintenance() {
+        return maintenance;
+    }
+
+    /**
+     * @return The frontend asset stage, or null if the server doesn't serve the frontend.
+     */
+    public StaticAssets getStaticAssets() {
+        return staticAssets;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public AdaptiveLimiter getAdaptiveLimiter() {
+        return adaptiveLimiter;
+    }
+
     protected long getLoginDelayTime() {
         return LOGIN_DELAY_TIME;
     }
@@ -0,0 +1,123 @@
+package dev.kshl.points;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Aggregates execution time, lock wait time and rows per distinct SQL text, and reports statements slower than a
+ * threshold to a slow query logger. Recording is lock-free.
+ */
+public class QueryProfiler {
+    private static final long EXPLAIN_INTERVAL = 60000L;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final long slowQueryNanos;
+    private final BiConsumer<String, Long> slowQueryLogger;
+
+    /**
+     * @param slowQueryMillis Statements which take longer than this, including waiting for a connection, are logged.
+     * @param slowQueryLogger Called with the SQL and total milliseconds of each slow statement.
+     */
+    public QueryProfiler(long slowQueryMillis, BiConsumer<String, Long> slowQueryLogger) {
+        this.slowQueryNanos = slowQueryMillis * 1000000L;
+        this.slowQueryLogger = slowQueryLogger;
+    }
+
+    private static class Stats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder executeNanos = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong lastExplained = new AtomicLong();
+    }
+
+    /**
+     * @param sql          The statement, or a label for a multi-statement transaction.
+     * @param executeNanos Time spent executing.
+     * @param waitNanos    Time spent waiting for a connection or the write lock beforehand.
+     * @param rows         Rows returned or changed, or -1 if unknown.
+     * @return Whether the statement was slow and hasn't been explained recently, in which case the caller may log its
+     * query plan.
+     */
+    public boolean record(String sql, long executeNanos, long waitNanos, long rows) {
+        Stats stats = this.stats.computeIfAbsent(sql, s -> new Stats());
+        stats.count.increment();
+        stats.executeNanos.add(executeNanos);
+        stats.waitNanos.add(waitNanos);
+        if (rows > 0) stats.rows.add(rows);
+        long total = executeNanos + waitNanos;
+        if (total > stats.maxNanos.get()) stats.maxNanos.accumulateAndGet(total, Math::max);
+        if (total <= slowQueryNanos) return false;
+
+        stats.slow.increment();
+        slowQueryLogger.accept(sql, total / 1000000L);
+        long now = System.currentTimeMillis();
+        long lastExplained = stats.lastExplained.get();
+        return now - lastExplained > EXPLAIN_INTERVAL && stats.lastExplained.compareAndSet(lastExplained, now);
+    }
+
+    /**
+     * @return A best-effort row count for a query's result.
+     */
+    public static long rowsOf(Object result) {
+        if (result == null) return 0;
+        if (result instanceof Collection<?> collection) return collection.size();
+        if (result instanceof Optional<?> optional) return optional.isPresent() ? 1 : 0;
+        return 1;
+    }
+
+    /**
+     * Clears every statement's statistics.
+     *
+     * @return The statistics as they were, in the format of {@link #toJSON()}, so none are lost between a read and a
+     * reset. A statement still being recorded as the reset runs may be missing from both.
+     */
+    public JSONArray reset() {
+        Map<String, Stats> removed = new HashMap<>();
+        for (String sql : stats.keySet()) {
+            Stats stats = this.stats.remove(sql);
+            if (stats != null) removed.put(sql, stats);
+        }
+        return toJSON(removed);
+    }
+
+    /**
+     * @return Every statement's statistics, most total time first.
+     */
+    public JSONArray toJSON() {
+        return toJSON(stats);
+    }
+
+    private static JSONArray toJSON(Map<String, Stats> statements) {
+        JSONArray out = new JSONArray();
+        statements.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Stats> entry) -> entry.getValue().executeNanos.sum() + entry.getValue().waitNanos.sum()).reversed())
+                .forEach(entry -> {
+                    Stats stats = entry.getValue();
+                    long count = stats.count.sum();
+                    long executeNanos = stats.executeNanos.sum();
+                    out.put(new JSONObject()
+                            .put("sql", entry.getKey())
+                            .put("count", count)
+                            .put("execute_ms", executeNanos / 1000000D)
+                            .put("wait_ms", stats.waitNanos.sum() / 1000000D)
+                            .put("avg_execute_ms", count == 0 ? 0 : executeNanos / 1000000D / count)
+                            .put("max_ms", stats.maxNanos.get() / 1000000D)
+                            .put("rows", stats.rows.sum())
+                            .put("slow", stats.slow.sum()));
+                });
+        return out;
+    }
+}
@@ -0,0 +1,95 @@
+package dev.kshl.points;
+
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of read-only connections to a WAL mode SQLite database. In WAL mode readers don't block the writer or
+ * each other, so queries run through this pool in parallel instead of queuing behind writes on the ConnectionManager.
+ */
+public class ReadConnectionPool implements AutoCloseable {
+    private final BlockingQueue<Connection> idle;
+    private final List<Connection> connections = new ArrayList<>();
+    private volatile boolean closed;
+
+    @FunctionalInterface
+    public interface ResultSetFunction<T> {
+        T apply(ResultSet rs) throws SQLException;
+    }
+
+    public ReadConnectionPool(File sqliteFile, SQLiteOptions options) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, options.readConnections()));
+
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setBusyTimeout(3000);
+        String url = "jdbc:sqlite:" + sqliteFile.getAbsolutePath();
+        try {
+            for (int i = 0; i < options.readConnections(); i++) {
+                Connection connection = DriverManager.getConnection(url, config.toProperties());
+                options.apply(connection);
+                connections.add(connection);
+                idle.add(connection);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return An idle connection, or null if none became available within waitMillis.
+     */
+    public Connection borrow(long waitMillis) {
+        if (closed) return null;
+        try {
+            return idle.poll(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public void release(Connection connection) {
+        if (closed) {
+            closeQuietly(connection);
+            return;
+        }
+        idle.offer(connection);
+    }
+
+    public static <T> T query(Connection connection, String sql, ResultSetFunction<T> function, Object... args) throws SQLException {
+        return StatementCache.query(connection, sql, function, args);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections) {
+            closeQuietly(connection);
+        }
+        idle.clear();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        StatementCache.close(connection);
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link StateStore} kept in Redis (6.2 or later, or any server speaking the same protocol), so several nodes can
+ * share it. Connections are pooled and opened on demand. Every key is prefixed so one Redis database can be shared with
+ * other applications.
+ * <p>
+ * Event lists are sorted sets scored by time. Counters are given their TTL by the increment which creates them, in the
+ * same script so a counter can't be left without one.
+ */
+public class RedisStateStore implements StateStore {
+    static final String DELETE_IF_EQUALS_SCRIPT = "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0";
+    static final String INCREMENT_SCRIPT = "local value = redis.call('INCR', KEYS[1]) if value == 1 and tonumber(ARGV[1]) > 0 then redis.call('PEXPIRE', KEYS[1], ARGV[1]) end return value";
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int database;
+    private final String prefix;
+    private final int timeoutMillis;
+    private final int maxConnections;
+    private final BlockingQueue<RedisConnection> idle;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean closed;
+
+    public RedisStateStore(String host, int port, String password, int database, String prefix, int timeoutMillis, int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.database = database;
+        this.prefix = prefix;
+        this.timeoutMillis = timeoutMillis;
+        this.maxConnections = maxConnections;
+        this.idle = new ArrayBlockingQueue<>(maxConnections);
+    }
+
+    public static RedisStateStore fromJSON(JSONObject json) {
+        return new RedisStateStore(json.optString("host", "127.0.0.1"),
+                json.optInt("port", 6379),
+                json.optString("password", null),
+                json.optInt("database", 0),
+                json.optString("prefix", "points:"),
+                json.optInt("timeout_ms", 2000),
+                json.optInt("connections", 8));
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, String value, long ttlMillis) throws IOException {
+        Object reply = ttlMillis > 0
+                ? command("SET", prefix + key, value, "PX", String.valueOf(ttlMillis), "NX")
+                : command("SET", prefix + key, value, "NX");
+        return reply != null;
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws IOException {
+        if (ttlMillis > 0) {
+            command("SET", prefix + key, value, "PX", String.valueOf(ttlMillis));
+        } else {
+            command("SET", prefix + key, value);
+        }
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        return (String) command("GET", prefix + key);
+    }
+
+    @Override
+    public String take(String key) throws IOException {
+        return (String) command("GETDEL", prefix + key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        command("DEL", prefix + key);
+    }
+
+    @Override
+    public boolean deleteIfEquals(String key, String value) throws IOException {
+        return (long) command("EVAL", DELETE_IF_EQUALS_SCRIPT, "1", prefix + key, value) == 1;
+    }
+
+    @Override
+    public void deletePrefix(String prefix) throws IOException {
+        String pattern = (this.prefix + prefix).replaceAll("([*?\\[\\]\\\\])", "\\\\$1") + "*";
+        String cursor = "0";
+        do {
+            List<?> reply = (List<?>) command("SCAN", cursor, "MATCH", pattern, "COUNT", "1000");
+            cursor = (String) reply.get(0);
+            List<?> keys = (List<?>) reply.get(1);
+            if (!keys.isEmpty()) {
+                String[] del = new String[keys.size() + 1];
+                del[0] = "DEL";
+                for (int i = 0; i < keys.size(); i++) {
+                    del[i + 1] = (String) keys.get(i);
+                }
+                command(del);
+            }
+        } while (!cursor.equals("0"));
+    }
+
+    @Override
+    public long increment(String key, long ttlMillis) throws IOException {
+        return (long) command("EVAL", INCREMENT_SCRIPT, "1", prefix + key, String.valueOf(ttlMillis));
+    }
+
+    @Override
+    public void addEvent(String key, long time, long retainMillis) throws IOException {
+        String member = time + ":" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        pipeline(new String[]{"ZADD", prefix + key, String.valueOf(time), member},
+                new String[]{"ZREMRANGEBYSCORE", prefix + key, "-inf", "(" + (time - retainMillis)},
+                new String[]{"PEXPIRE", prefix + key, String.valueOf(retainMillis)});
+    }
+
+    @Override
+    public List<Long> getEvents(String key, long since) throws IOException {
+        List<?> members = (List<?>) command("ZRANGEBYSCORE", prefix + key, String.valueOf(since), "+inf");
+        List<Long> out = new ArrayList<>(members.size());
+        for (Object member : members) {
+            String string = (String) member;
+            out.add(Long.parseLong(string.substring(0, string.indexOf(':'))));
+        }
+        return out;
+    }
+
+    private Object command(String... args) throws IOException {
+        return pipeline(args).get(0);
+    }
+
+    /**
+     * Sends every command before reading any reply, on one connection.
+     */
+    private List<Object> pipeline(String[]... commands) throws IOException {
+        RedisConnection connection = borrow();
+        List<Object> replies = new ArrayList<>(commands.length);
+        RedisException error = null;
+        try {
+            for (String[] command : commands) {
+                connection.write(command);
+            }
+            connection.flush();
+            for (int i = 0; i < commands.length; i++) {
+                try {
+                    replies.add(connection.read());
+                } catch (RedisException e) {
+                    if (error == null) error = e;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(connection);
+            throw e;
+        }
+        if (closed || !idle.offer(connection)) discard(connection);
+        if (error != null) throw error;
+        return replies;
+    }
+
+    private void discard(RedisConnection connection) {
+        connection.close();
+        open.decrementAndGet();
+    }
+
+    private RedisConnection borrow() throws IOException {
+        if (closed) throw new IOException("State store is closed");
+        RedisConnection connection = idle.poll();
+        if (connection != null) return connection;
+        while (true) {
+            int open = this.open.get();
+            if (open >= maxConnections) break;
+            if (this.open.compareAndSet(open, open + 1)) {
+                try {
+                    return connect();
+                } catch (IOException e) {
+                    this.open.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+        try {
+            connection = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a state store connection", e);
+        }
+        if (connection == null) throw new IOException("Timed out waiting for a state store connection");
+        return connection;
+    }
+
+    private RedisConnection connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            RedisConnection connection = new RedisConnection(socket);
+            if (password != null) {
+                connection.write("AUTH", password);
+            }
+            if (database != 0) {
+                connection.write("SELECT", String.valueOf(database));
+            }
+            connection.flush();
+            if (password != null) connection.read();
+            if (database != 0) connection.read();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        RedisConnection connection;
+        while ((connection = idle.poll()) != null) {
+            discard(connection);
+        }
+    }
+
+    /**
+     * An error reply. The connection remains usable.
+     */
+    public static class RedisException extends IOException {
+        public RedisException(String message) {
+            super(message);
+        }
+    }
+
+    private static class RedisConnection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private RedisConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void write(String... args) throws IOException {
+            out.write(('*' + String.valueOf(args.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                out.write(('$' + String.valueOf(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(bytes);
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * @return A String, Long, List or null.
+         * @throws RedisException If the reply was an error, after it has been fully consumed.
+         */
+        private Object read() throws IOException {
+            int type = in.read();
+            if (type < 0) throw new EOFException("State store closed the connection");
+            String line = readLine();
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    throw new RedisException(line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$': {
+                    int length = Integer.parseInt(line);
+                    if (length < 0) return null;
+                    byte[] bytes = in.readNBytes(length);
+                    if (bytes.length < length) throw new EOFException("State store closed the connection");
+                    readLine();
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+                case '*': {
+                    int length = Integer.parseInt(line);
+                    if (length < 0) return null;
+                    List<Object> list = new ArrayList<>(length);
+                    RedisException error = null;
+                    for (int i = 0; i < length; i++) {
+                        try {
+                            list.add(read());
+                        } catch (RedisException e) {
+                            if (error == null) error = e;
+                        }
+                    }
+                    if (error != null) throw error;
+                    return list;
+                }
+                default:
+                    throw new IOException("Unexpected reply type from state store: " + (char) type);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c < 0) throw new EOFException("State store closed the connection");
+                line.append((char) c);
+            }
+            if (in.read() != '\n') throw new IOException("Malformed reply from state store");
+            return line.toString();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.net.HTTPResponseCode;
+import dev.kshl.kshlib.net.WebServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request's JSON body, parsed at most once and only if a handler reads it. Every body the frontend sends is a flat
+ * object of strings, numbers and booleans, so that case is read by a small scanner straight into a map. A body with
+ * nested objects or arrays falls back to {@link JSONObject}. A body which isn't a JSON object reads as empty.
+ * <p>
+ * Accessors follow {@link JSONObject}'s opt methods: missing keys read as the empty string, or the given default.
+ */
+public class RequestBody {
+    private final String raw;
+    private Map<String, Object> values;
+    private boolean present;
+
+    public RequestBody(String raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Checks the declared and actual size of a request's body against maxBytes, without parsing it.
+     *
+     * @throws WebServer.WebException If the body is larger than maxBytes.
+     */
+    public static RequestBody of(WebServer.Request request, int maxBytes) throws WebServer.WebException {
+        for (Map.Entry<String, List<String>> header : request.headers().entrySet()) {
+            if (!header.getKey().equalsIgnoreCase("Content-Length")) continue;
+            for (String value : header.getValue()) {
+                long length;
+                try {
+                    length = Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    throw new WebServer.WebException(HTTPResponseCode.BAD_REQUEST, "Invalid Content-Length");
+                }
+                if (length > maxBytes) {
+                    throw new WebServer.WebException(HTTPResponseCode.BAD_REQUEST, "Request body too large");
+                }
+            }
+        }
+        String raw = request.body();
+        // Characters never outnumber UTF-8 bytes, so this can only under-count
+        if (raw != null && raw.length() > maxBytes) {
+            throw new WebServer.WebException(HTTPResponseCode.BAD_REQUEST, "Request body too large");
+        }
+        return new RequestBody(raw);
+    }
+
+    /**
+     * @return Whether the body is a JSON object.
+     */
+    public boolean isPresent() {
+        parse();
+        return present;
+    }
+
+    /**
+     * @return The value of key as a String, Integer, Long, Double, Boolean, JSONObject, JSONArray or
+     * {@link JSONObject#NULL}, or null if it's missing.
+     */
+    public Object get(String key) {
+        parse();
+        return values.get(key);
+    }
+
+    public String getString(String key) {
+        Object value = get(key);
+        if (value == null || value == JSONObject.NULL) return "";
+        return value.toString();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object value = get(key);
+        if (value instanceof Number number) return number.intValue();
+        if (value instanceof String string) {
+            try {
+                return Integer.parseInt(string.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = get(key);
+        if (value instanceof Boolean bool) return bool;
+        if (value instanceof String string) {
+            if (string.equalsIgnoreCase("true")) return true;
+            if (string.equalsIgnoreCase("false")) return false;
+        }
+        return defaultValue;
+    }
+
+    private void parse() {
+        if (values != null) return;
+        values = new HashMap<>();
+        if (raw == null || raw.isBlank()) return;
+        Scanner scanner = new Scanner(raw);
+        try {
+            present = scanner.object(values);
+        } catch (IllegalArgumentException e) {
+            present = false;
+        }
+        if (!present) {
+            values.clear();
+            if (scanner.nested) {
+                try {
+                    JSONObject json = new JSONObject(raw);
+                    for (String key : json.keySet()) {
+                        values.put(key, json.get(key));
+                    }
+                    present = true;
+                } catch (JSONException ignored) {
+                    values.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a flat JSON object. Gives up, setting nested, at the first object or array value.
+     */
+    private static class Scanner {
+        private final String in;
+        private int i;
+        private boolean nested;
+
+        private Scanner(String in) {
+            this.in = in;
+        }
+
+        /**
+         * @return Whether the whole input was a flat object.
+         * @throws IllegalArgumentException If the input is malformed.
+         */
+        private boolean object(Map<String, Object> out) {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                i++;
+                return end();
+            }
+            while (true) {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                char c = peek();
+                if (c == '{' || c == '[') {
+                    nested = true;
+                    return false;
+                }
+                out.put(key, value());
+                skipWhitespace();
+                char next = next();
+                if (next == '}') return end();
+                if (next != ',') throw new IllegalArgumentException("Expected , or } at " + (i - 1));
+            }
+        }
+
+        private boolean end() {
+            skipWhitespace();
+            if (i != in.length()) throw new IllegalArgumentException("Trailing characters at " + i);
+            return true;
+        }
+
+        private Object value() {
+            char c = peek();
+            if (c == '"') return string();
+            if (c == 't') return literal("true", Boolean.TRUE);
+            if (c == 'f') return literal("false", Boolean.FALSE);
+            if (c == 'n') return literal("null", JSONObject.NULL);
+            return number();
+        }
+
+        private Object literal(String word, Object value) {
+            if (!in.startsWith(word, i)) throw new IllegalArgumentException("Expected " + word + " at " + i);
+            i += word.length();
+            return value;
+        }
+
+        private Object number() {
+            int start = i;
+            boolean integral = true;
+            if (i < in.length() && in.charAt(i) == '-') i++;
+            while (i < in.length()) {
+                char c = in.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    i++;
+                } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    integral = false;
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            String number = in.substring(start, i);
+            try {
+                if (integral) {
+                    long value = Long.parseLong(number);
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+                    return value;
+                }
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number at " + start);
+            }
+        }
+
+        private String string() {
+            expect('"');
+            int start = i;
+            // Most strings have no escapes and can be taken as they are
+            while (i < in.length()) {
+                char c = in.charAt(i);
+                if (c == '"') return in.substring(start, i++);
+                if (c == '\\') break;
+                i++;
+            }
+            StringBuilder out = new StringBuilder(in.length() - start).append(in, start, i);
+            while (true) {
+                char c = next();
+                if (c == '"') return out.toString();
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case '"', '\\', '/' -> out.append(escaped);
+                    case 'b' -> out.append('\b');
+                    case 'f' -> out.append('\f');
+                    case 'n' -> out.append('\n');
+                    case 'r' -> out.append('\r');
+                    case 't' -> out.append('\t');
+                    case 'u' -> {
+                        if (i + 4 > in.length()) throw new IllegalArgumentException("Truncated escape at " + i);
+                        try {
+                            out.append((char) Integer.parseInt(in, i, i + 4, 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid escape at " + i);
+                        }
+                        i += 4;
+                    }
+                    default -> throw new IllegalArgumentException("Invalid escape at " + (i - 1));
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (i < in.length() && Character.isWhitespace(in.charAt(i))) i++;
+        }
+
+        private char peek() {
+            if (i >= in.length()) throw new IllegalArgumentException("Unexpected end");
+            return in.charAt(i);
+        }
+
+        private char next() {
+            char c = peek();
+            i++;
+            return c;
+        }
+
+        private void expect(char c) {
+            if (next() != c) throw new IllegalArgumentException("Expected " + c + " at " + (i - 1));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package dev.kshl.points;
+
+/**
+ * Accumulates the time the current request thread spends waiting for and running SQL. The web server resets it when a
+ * request starts and reads it when the request finishes.
+ */
+public final class RequestTimings {
+    private static final ThreadLocal<long[]> timings = ThreadLocal.withInitial(() -> new long[2]);
+    private static final int SQL = 0;
+    private static final int WAIT = 1;
+
+    private RequestTimings() {
+    }
+
+    public static void reset() {
+        long[] current = timings.get();
+        current[SQL] = 0;
+        current[WAIT] = 0;
+    }
+
+    public static void addSQLNanos(long nanos) {
+        timings.get()[SQL] += nanos;
+    }
+
+    public static void addWaitNanos(long nanos) {
+        timings.get()[WAIT] += nanos;
+    }
+
+    public static long getSQLNanos() {
+        return timings.get()[SQL];
+    }
+
+    public static long getWaitNanos() {
+        return timings.get()[WAIT];
+    }
+}
@@ -2,7 +2,6 @@ package dev.kshl.points;
 
 import dev.kshl.kshlib.exceptions.BusyException;
 import dev.kshl.kshlib.sql.ConnectionManager;
-import dev.kshl.kshlib.sql.SQLIDManager;
 import dev.kshl.kshlib.sql.SQLPasswordManager;
 import dev.kshl.kshlib.sql.SQLSessionTokenManager;
 import dev.kshl.kshlib.sql.SQLSet;
@@ -13,23 +12,65 @@ import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
 
 public class SQLManager extends ConnectionManager {
-    private final SQLSessionTokenManager tokenManager;
-    private final SQLPasswordManager passwordManager;
-    private final SQLIDManager.Str uidManager;
-    private final SQLIDManager.Str ipIDManager;
-    private final SQLIDManager.Str emailIDManager;
-    private final SQLSet.Int bannedIPManager;
-    private final SQLSet.Int validatedAccountsManager;
-    private final SQLSet.Int adminManager;
-    private final SQLSet.Int emailWhitelistManager;
-    private final SettingManager.Bool allowNegativePointsSetting = new SettingManager.Bool(this, "setting_allow_negative", true);
-    private final SettingManager.Int redeemCostSetting = new SettingManager.Int(this, "setting_redeem_cost", 20) {
+    private final File sqliteFile;
+    private final SQLiteOptions sqliteOptions;
+    /**
+     * Holds every user's points and settings, by {@link #shardIndex(int, int)}, or null if they're kept here.
+     */
+    private final SQLManager[] shards;
+    private final boolean isShard;
+    private volatile boolean fullTextSearch;
+    private volatile ReadConnectionPool readPool;
+    /**
+     * Every write to the tables SQLManager creates goes through here. KshLib's managers (IDs, sets, sessions, passwords
+     * and settings) can't be handed a connection, so their writes run on their own, outside it.
+     */
+    private final WriteQueue writeQueue;
+    private QueryProfiler profiler;
+    private SQLSessionTokenManager tokenManager;
+    private SQLPasswordManager passwordManager;
+    private IndexedIDManager uidManager;
+    private IndexedIDManager ipIDManager;
+    private IndexedIDManager emailIDManager;
+    private SQLSet.Int bannedIPManager;
+    private SQLSet.Int validatedAccountsManager;
+    private SQLSet.Int adminManager;
+    private SQLSet.Int emailWhitelistManager;
+    private final PointsEventBus eventBus;
+    /**
+     * Held shared by {@link #createAccount(int, String)} from finding the email's ID until the account referencing it
+     * is inserted, and exclusively while unreferenced email IDs are deleted.
+     */
+    private final ReentrantReadWriteLock emailIDLock = new ReentrantReadWriteLock();
+    private final SettingManager.Bool allowNegativePointsSetting = new SettingManager.Bool(this, Setting.ALLOW_NEGATIVE.table, (Boolean) Setting.ALLOW_NEGATIVE.defaultValue);
+    private final SettingManager.Int redeemCostSetting = new SettingManager.Int(this, Setting.REDEEM_COST.table, (Integer) Setting.REDEEM_COST.defaultValue) {
         @Override
         public void validate(Integer value) throws ArgumentValidationException {
             if (value <= 0) {
@@ -42,7 +83,28 @@ public class SQLManager extends ConnectionManager {
     };
 
     public enum Setting {
-        ALLOW_NEGATIVE, REDEEM_COST;
+        ALLOW_NEGATIVE("setting_allow_negative", true), REDEEM_COST("setting_redeem_cost", 20);
+
+        private final String table;
+        private final Object defaultValue;
+
+        Setting(String table, Object defaultValue) {
+            this.table = table;
+            this.defaultValue = defaultValue;
+        }
+
+        /**
+         * Reads this setting's value from column of rs, as its manager would return it, or its default if the column is
+         * null.
+         */
+        private Object read(ResultSet rs, int column) throws SQLException {
+            Object value = rs.getObject(column);
+            if (value == null) return defaultValue;
+            return switch (this) {
+                case ALLOW_NEGATIVE -> value instanceof Number number ? number.intValue() != 0 : Boolean.parseBoolean(value.toString());
+                case REDEEM_COST -> value instanceof Number number ? number.intValue() : Integer.parseInt(value.toString());
+            };
+        }
 
         public SettingManager<?> getSettingManager(SQLManager sqlManager) {
             return switch (this) {
@@ -59,15 +121,170 @@ public class SQLManager extends ConnectionManager {
         }
 
         public JSONObject toJSON(SQLManager sqlManager, int uid) throws SQLException, BusyException {
+            return toJSON(sqlManager.getSettings(uid));
+        }
+
+        public JSONObject toJSON(Settings settings) {
             return new JSONObject()
                     .put("key", toString())
-                    .put("value", getSettingManager(sqlManager).get(uid))
+                    .put("value", settings.get(this))
                     .put("formatted", getFormatted());
         }
     }
 
+    /**
+     * A snapshot of every setting for one uid, indexed by {@link Setting#ordinal()}.
+     */
+    public record Settings(Object[] values) {
+        public Object get(Setting setting) {
+            return values[setting.ordinal()];
+        }
+
+        public boolean allowNegative() {
+            return (Boolean) get(Setting.ALLOW_NEGATIVE);
+        }
+
+        public int redeemCost() {
+            return (Integer) get(Setting.REDEEM_COST);
+        }
+    }
+
+    private static final int MAX_CACHED_SETTINGS = 10000;
+
+    private enum Read {
+        PEOPLE, SETTINGS
+    }
+
+    private record ReadKey(Read read, int uid) {
+    }
+
+    private final SingleFlight<ReadKey, Object> reads = new SingleFlight<>();
+    private final AtomicLong settingsVersion = new AtomicLong();
+    /**
+     * Reads every setting of one uid in one statement, or null to ask each setting's manager.
+     */
+    private volatile String settingsSQL;
+    private final LongAdder settingsCacheHits = new LongAdder();
+    private final LongAdder settingsCacheMisses = new LongAdder();
+    private final Map<Integer, Settings> settingsCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Settings> eldest) {
+            return size() > MAX_CACHED_SETTINGS;
+        }
+    };
+
+    private static final long CLOSE_WAIT_MILLIS = 30000L;
+    private static final int MAX_TRACKED_IPS = 10000;
+    private static final long IP_SEEN_RESOLUTION = 3600000L;
+
+    /**
+     * When each recently seen IP was last written to ip_last_seen, so it's written at most once an hour.
+     */
+    private final Map<Integer, Long> ipsSeen = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > MAX_TRACKED_IPS;
+        }
+    };
+
     public SQLManager(File sqliteFile) throws IOException, SQLException, ClassNotFoundException {
-        super(sqliteFile);
+        this(sqliteFile, SQLiteOptions.DEFAULT);
+    }
+
+    public SQLManager(File sqliteFile, SQLiteOptions sqliteOptions) throws IOException, SQLException, ClassNotFoundException {
+        this(sqliteFile, sqliteOptions, 0);
+    }
+
+    /**
+     * @param shards If more than 0, points and settings are split by uid across this many files next to sqliteFile,
+     *               each with its own writer, leaving accounts, sessions and IDs in sqliteFile. Can't be changed once
+     *               the database is sharded. An unsharded database is moved into shards the first time it's opened
+     *               with them.
+     */
+    public SQLManager(File sqliteFile, SQLiteOptions sqliteOptions, int shards) throws IOException, SQLException, ClassNotFoundException {
+        super(enableWAL(sqliteFile));
+        this.sqliteFile = sqliteFile;
+        this.sqliteOptions = sqliteOptions;
+        this.isShard = false;
+        this.eventBus = new PointsEventBus();
+        this.writeQueue = createWriteQueue(sqliteFile.getName());
+        createManagers();
+        if (shards > 0) {
+            this.shards = new SQLManager[shards];
+            for (int i = 0; i < shards; i++) {
+                this.shards[i] = new SQLManager(getShardFile(sqliteFile, i), this);
+            }
+        } else {
+            this.shards = null;
+        }
+    }
+
+    /**
+     * A shard of global, holding only points and settings. Shares global's event bus and query profile.
+     */
+    private SQLManager(File shardFile, SQLManager global) throws IOException, SQLException, ClassNotFoundException {
+        super(enableWAL(shardFile));
+        this.sqliteFile = shardFile;
+        this.sqliteOptions = global.sqliteOptions;
+        this.isShard = true;
+        this.shards = null;
+        this.eventBus = global.eventBus;
+        this.profiler = global.profiler;
+        this.writeQueue = createWriteQueue(shardFile.getName());
+    }
+
+    /**
+     * Connects to a MySQL or MariaDB server through ConnectionManager's connection pool. The schema and queries are the
+     * same as for SQLite. Of sqliteOptions, only the engine-independent options apply.
+     *
+     * @param host     The server's host, with an optional :port
+     * @param poolSize Connections held open to the server, shared by readers and writers
+     */
+    public SQLManager(String host, String database, String user, String password, int poolSize, SQLiteOptions sqliteOptions) throws SQLException, ClassNotFoundException {
+        super(host, database, user, password, poolSize);
+        this.sqliteFile = null;
+        this.sqliteOptions = sqliteOptions;
+        this.isShard = false;
+        this.shards = null;
+        this.eventBus = new PointsEventBus();
+        this.writeQueue = createWriteQueue(database);
+        createManagers();
+    }
+
+    /**
+     * @param json              The "database" section of .env.json, or null to use SQLite.
+     * @param defaultSqliteFile Used if json doesn't name a file.
+     */
+    public static SQLManager fromJSON(JSONObject json, File defaultSqliteFile, SQLiteOptions sqliteOptions) throws IOException, SQLException, ClassNotFoundException {
+        if (json == null) json = new JSONObject();
+        String type = json.optString("type", "sqlite").toLowerCase(Locale.ROOT);
+        return switch (type) {
+            case "sqlite" -> {
+                String file = json.optString("file", null);
+                yield new SQLManager(file == null ? defaultSqliteFile : new File(file), sqliteOptions, json.optInt("shards", 0));
+            }
+            case "mysql", "mariadb" -> {
+                if (json.optInt("shards", 0) > 0) {
+                    throw new IllegalArgumentException("Sharding is only supported for SQLite");
+                }
+                yield new SQLManager(json.getString("host"), json.getString("database"), json.getString("user"),
+                        json.optString("password", ""), json.optInt("pool_size", 10), sqliteOptions);
+            }
+            default -> throw new IllegalArgumentException("Unsupported database type '" + type + "', expected sqlite, mysql or mariadb");
+        };
+    }
+
+    private WriteQueue createWriteQueue(String name) {
+        return new WriteQueue(name, batch -> {
+            executeTransaction(connection -> {
+                batch.run(connection);
+                return null;
+            }, 30000L);
+        }, sqliteOptions.writeWindowMicros(), sqliteOptions.writeBatchSize(), sqliteOptions.writeQueueSize());
+    }
+
+    private void createManagers() {
+        profiler = new QueryProfiler(sqliteOptions.slowQueryMillis(), (sql, millis) -> Main.warning(String.format("Slow query (%sms): %s", millis, sql)));
 
         try {
             tokenManager = new SQLSessionTokenManager(this, "sessions", 3600000L * 24 * 7, true);
@@ -75,33 +292,93 @@ public class SQLManager extends ConnectionManager {
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        uidManager = new SQLIDManager.Str(this, "uids");
-        ipIDManager = new SQLIDManager.Str(this, "ips");
-        emailIDManager = new SQLIDManager.Str(this, "email_ids");
+        uidManager = new IndexedIDManager(this, "uids", sqliteOptions.idIndexSize());
+        ipIDManager = new IndexedIDManager(this, "ips", sqliteOptions.idIndexSize());
+        emailIDManager = new IndexedIDManager(this, "email_ids", sqliteOptions.idIndexSize());
         bannedIPManager = new SQLSet.Int(this, "banned_ips", true);
         validatedAccountsManager = new SQLSet.Int(this, "validated_accounts", true);
         adminManager = new SQLSet.Int(this, "admins", true);
         emailWhitelistManager = new SQLSet.Int(this, "email_whitelist", true);
     }
 
+    /**
+     * WAL mode is persistent in the database file, so it is set once on a short-lived connection before the
+     * ConnectionManager opens its own. Changing the journal mode is not allowed from within a transaction. Incremental
+     * auto-vacuum is requested at the same time, but only takes effect if the database has no tables yet.
+     */
+    private static File enableWAL(File sqliteFile) throws SQLException {
+        File parent = sqliteFile.getAbsoluteFile().getParentFile();
+        if (parent != null) //noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqliteFile.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA auto_vacuum=INCREMENTAL");
+            statement.execute("PRAGMA journal_mode=WAL");
+        }
+        return sqliteFile;
+    }
+
+    /**
+     * @return Whether this is backed by a local SQLite file, rather than a database server.
+     */
+    public boolean isSQLite() {
+        return sqliteFile != null;
+    }
+
     @Override
     protected void init(Connection connection) throws SQLException {
-        tokenManager.init(connection);
-        passwordManager.init(connection);
-        uidManager.init(connection);
-        ipIDManager.init(connection);
-        emailIDManager.init(connection);
-        bannedIPManager.init(connection);
-        validatedAccountsManager.init(connection);
-        adminManager.init(connection);
-        emailWhitelistManager.init(connection);
+        if (isSQLite()) {
+            for (String pragma : sqliteOptions.getConnectionPragmas()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(pragma);
+                } catch (SQLException e) {
+                    // Some pragmas can't be changed inside a transaction. SQLite's defaults are safe, just slower.
+                    Main.warning("Failed to apply '" + pragma + "' to " + databaseName() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        if (!isShard) {
+            tokenManager.init(connection);
+            passwordManager.init(connection);
+            uidManager.init(connection);
+            ipIDManager.init(connection);
+            emailIDManager.init(connection);
+            uidManager.preload(connection);
+            ipIDManager.preload(connection);
+            emailIDManager.preload(connection);
+            bannedIPManager.init(connection);
+            validatedAccountsManager.init(connection);
+            adminManager.init(connection);
+            emailWhitelistManager.init(connection);
+        }
 
         for (Setting setting : Setting.values()) {
             setting.getSettingManager(this).init(connection);
         }
+        settingsSQL = isSQLite() ? buildSettingsSQL(connection) : null;
 
         execute(connection, "CREATE TABLE IF NOT EXISTS points (id INTEGER PRIMARY KEY " + autoincrement() + ", uid INT, name TEXT, points INT, priority INT)");
-        execute(connection, "CREATE TABLE IF NOT EXISTS accounts (time_created BIGINT, uid INT PRIMARY KEY, email_id INT, admin BOOLEAN, UNIQUE(email_id))");
+        // Serves listing, paging, appending and reordering a user's points
+        createIndex(connection, "points_uid_priority", "points", "uid, priority");
+        backfillPriorities(connection);
+        // Every change to a point's value, and its value every LEDGER_SNAPSHOT_INTERVAL changes. The unique constraints
+        // can't be violated, seq is unique, they're there for their (id, time) index, which both engines create.
+        execute(connection, "CREATE TABLE IF NOT EXISTS points_ledger (seq INTEGER PRIMARY KEY " + autoincrement() + ", id INT, uid INT, delta INT, time BIGINT, UNIQUE(id, time, seq))");
+        execute(connection, "CREATE TABLE IF NOT EXISTS points_snapshots (id INT, uid INT, seq BIGINT, time BIGINT, points INT, UNIQUE(id, time, seq))");
+        execute(connection, "CREATE TABLE IF NOT EXISTS points_redemptions (seq INTEGER PRIMARY KEY " + autoincrement() + ", id INT, uid INT, cost INT, time BIGINT)");
+        fullTextSearch = isSQLite() && initFullTextSearch(connection);
+        if (!isShard) {
+            execute(connection, "CREATE TABLE IF NOT EXISTS accounts (time_created BIGINT, uid INT PRIMARY KEY, email_id INT, admin BOOLEAN, UNIQUE(email_id))");
+            // When each IP last made a request, to the hour, so maintenance only removes IPs that have gone away
+            execute(connection, "CREATE TABLE IF NOT EXISTS ip_last_seen (ip_id INT PRIMARY KEY, time BIGINT)");
+            initShards(connection);
+        }
+
+        // A server's own pool already serves reads concurrently with writes
+        if (isSQLite() && readPool == null && sqliteOptions.readConnections() > 0) {
+            readPool = new ReadConnectionPool(sqliteFile, sqliteOptions);
+        }
 //        try {
 //            query(connection, "SELECT email FROM accounts", rs -> {
 //                while (rs.next()) {
@@ -120,36 +397,586 @@ public class SQLManager extends ConnectionManager {
 //        }
     }
 
+    /**
+     * Indexes the names of points for {@link #search(int, String, int)} in an FTS5 table which reads its content from
+     * points, kept in sync by triggers. The uid is indexed too, so a search only walks the user's own matches, and
+     * prefixes of up to {@link #SEARCH_PREFIX_LENGTH} characters are indexed so a short prefix is one lookup rather
+     * than a merge of every word starting with it. The first time, the index is built from the existing points.
+     *
+     * @return Whether full text search is available. If SQLite was built without FTS5, it isn't.
+     */
+    private boolean initFullTextSearch(Connection connection) {
+        try {
+            String existing = StatementCache.query(connection, "SELECT sql FROM sqlite_master WHERE name='points_fts'", rs -> {
+                return rs.next() ? rs.getString(1) : null;
+            });
+            // Made before prefixes were indexed
+            if (existing != null && !existing.contains("prefix")) execute(connection, "DROP TABLE points_fts");
+            execute(connection, "CREATE VIRTUAL TABLE IF NOT EXISTS points_fts USING fts5(name, uid, content='points', content_rowid='id', prefix='1 2 3')");
+            execute(connection, "CREATE TRIGGER IF NOT EXISTS points_fts_insert AFTER INSERT ON points BEGIN "
+                    + "INSERT INTO points_fts (rowid, name, uid) VALUES (new.id, new.name, new.uid); END");
+            execute(connection, "CREATE TRIGGER IF NOT EXISTS points_fts_delete AFTER DELETE ON points BEGIN "
+                    + "INSERT INTO points_fts (points_fts, rowid, name, uid) VALUES ('delete', old.id, old.name, old.uid); END");
+            execute(connection, "CREATE TRIGGER IF NOT EXISTS points_fts_update AFTER UPDATE OF name, uid ON points BEGIN "
+                    + "INSERT INTO points_fts (points_fts, rowid, name, uid) VALUES ('delete', old.id, old.name, old.uid); "
+                    + "INSERT INTO points_fts (rowid, name, uid) VALUES (new.id, new.name, new.uid); END");
+            if (existing == null || !existing.contains("prefix")) rebuildFullTextSearch(connection);
+            return true;
+        } catch (SQLException e) {
+            Main.warning("Full text search is unavailable, searching each user's points instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Moves points with no priority, which predate every insert setting one, to the end of their user's list in ID
+     * order. Paging seeks by priority and would never reach them.
+     */
+    private void backfillPriorities(Connection connection) throws SQLException {
+        List<int[]> missing = StatementCache.query(connection, "SELECT id, uid FROM points WHERE priority IS NULL ORDER BY uid, id", rs -> {
+            List<int[]> out = new ArrayList<>();
+            while (rs.next()) out.add(new int[]{rs.getInt(1), rs.getInt(2)});
+            return out;
+        });
+        Map<Integer, Integer> last = new HashMap<>();
+        for (int[] point : missing) {
+            int uid = point[1];
+            Integer priority = last.get(uid);
+            if (priority == null) {
+                priority = StatementCache.query(connection, "SELECT COALESCE(MAX(priority), 0) FROM points WHERE uid=?", rs -> {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }, uid);
+            }
+            last.put(uid, ++priority);
+            execute(connection, "UPDATE points SET priority=? WHERE id=?", priority, point[0]);
+        }
+        if (!missing.isEmpty()) Main.info("Gave " + missing.size() + " points without a priority one");
+    }
+
+    private void rebuildFullTextSearch(Connection connection) throws SQLException {
+        execute(connection, "INSERT INTO points_fts (points_fts) VALUES ('rebuild')");
+    }
+
+    /**
+     * Creates an index if it doesn't exist. MySQL has no IF NOT EXISTS for indexes, so there an existing one is
+     * recognised by its error instead.
+     */
+    private void createIndex(Connection connection, String name, String table, String columns) throws SQLException {
+        if (isSQLite()) {
+            execute(connection, "CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")");
+            return;
+        }
+        try {
+            execute(connection, "CREATE INDEX " + name + " ON " + table + " (" + columns + ")");
+        } catch (SQLException e) {
+            // ER_DUP_KEYNAME
+            if (e.getErrorCode() != 1061) throw e;
+        }
+    }
+
+    /**
+     * Checks the database is split into as many shards as are configured, opens them, and the first time an unsharded
+     * database is opened with shards, moves its points and settings into them.
+     */
+    private void initShards(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE IF NOT EXISTS shard_config (shards INT)");
+        Integer stored = StatementCache.query(connection, "SELECT shards FROM shard_config", rs -> {
+            return rs.next() ? rs.getInt(1) : null;
+        });
+        int configured = shards == null ? 0 : shards.length;
+        if (stored != null && stored > 0 && stored != configured) {
+            throw new SQLException("The database is split into " + stored + " shards, but " + configured + " are configured");
+        }
+        if (shards == null) {
+            if (stored == null) execute(connection, "INSERT INTO shard_config (shards) VALUES (0)");
+            return;
+        }
+
+        for (SQLManager shard : shards) {
+            try {
+                shard.init();
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException("Failed to open shard " + shard.getSQLiteFile(), e);
+            }
+        }
+        if (stored == null || stored == 0) {
+            List<String> tables = StatementCache.query(connection, "SELECT name FROM sqlite_master WHERE type='table' AND (name='points' OR name LIKE 'points\\_%' ESCAPE '\\' OR name LIKE 'setting\\_%' ESCAPE '\\') AND name NOT LIKE 'points\\_fts%' ESCAPE '\\'", rs -> {
+                List<String> out = new ArrayList<>();
+                while (rs.next()) out.add(rs.getString(1));
+                return out;
+            });
+            for (String table : tables) {
+                moveToShards(connection, table);
+            }
+            // Rows replaced by a rerun of an interrupted move were deleted without firing the delete trigger
+            for (SQLManager shard : shards) {
+                if (!shard.fullTextSearch) continue;
+                try {
+                    shard.transaction("rebuild points_fts", c -> {
+                        shard.rebuildFullTextSearch(c);
+                        return 0;
+                    }, r -> 0, 30000L);
+                } catch (BusyException e) {
+                    throw new SQLException("Timed out rebuilding search index of " + shard.getSQLiteFile(), e);
+                }
+            }
+            execute(connection, "DELETE FROM shard_config");
+            execute(connection, "INSERT INTO shard_config (shards) VALUES (?)", shards.length);
+        }
+    }
+
+    private record RowBatch(List<String> columns, Map<Integer, List<Object[]>> byShard, long lastRowID, int size) {
+    }
+
+    /**
+     * Copies every row of table into the shard of its uid column, then empties it. Copies replace, so if this is
+     * interrupted it's safe to run again, though the replaced rows' search index entries must then be rebuilt.
+     */
+    private void moveToShards(Connection connection, String table) throws SQLException {
+        long after = Long.MIN_VALUE;
+        int moved = 0;
+        while (true) {
+            RowBatch batch = StatementCache.query(connection, "SELECT rowid, * FROM " + table + " WHERE rowid>? ORDER BY rowid LIMIT 1000", rs -> {
+                ResultSetMetaData meta = rs.getMetaData();
+                List<String> columns = new ArrayList<>();
+                int uidColumn = -1;
+                for (int i = 2; i <= meta.getColumnCount(); i++) {
+                    columns.add(meta.getColumnName(i));
+                    if (meta.getColumnName(i).equalsIgnoreCase("uid")) uidColumn = i;
+                }
+                Map<Integer, List<Object[]>> byShard = new HashMap<>();
+                long last = Long.MIN_VALUE;
+                int size = 0;
+                while (rs.next()) {
+                    if (uidColumn < 0) break;
+                    last = rs.getLong(1);
+                    Object[] row = new Object[columns.size()];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = rs.getObject(i + 2);
+                    }
+                    byShard.computeIfAbsent(shardIndex(rs.getInt(uidColumn), shards.length), k -> new ArrayList<>()).add(row);
+                    size++;
+                }
+                return uidColumn < 0 ? null : new RowBatch(columns, byShard, last, size);
+            }, after);
+            if (batch == null) {
+                Main.warning("Can't move " + table + " into shards, it has no uid column");
+                return;
+            }
+            if (batch.size() == 0) break;
+            try {
+                for (Map.Entry<Integer, List<Object[]>> entry : batch.byShard().entrySet()) {
+                    shards[entry.getKey()].insertRows(table, batch.columns(), entry.getValue());
+                }
+            } catch (BusyException e) {
+                throw new SQLException("Timed out moving " + table + " into shards", e);
+            }
+            moved += batch.size();
+            after = batch.lastRowID();
+        }
+        execute(connection, "DELETE FROM " + table);
+        if (moved > 0) Main.info("Moved " + moved + " rows of " + table + " into " + shards.length + " shards");
+    }
+
+    private void insertRows(String table, List<String> columns, List<Object[]> rows) throws SQLException, BusyException {
+        String sql = "INSERT OR REPLACE INTO " + table + " (\"" + String.join("\", \"", columns) + "\") VALUES (" + "?, ".repeat(columns.size() - 1) + "?)";
+        transaction(sql, connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (Object[] row : rows) {
+                    StatementCache.bind(statement, row);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            return rows.size();
+        }, count -> count, 30000L);
+    }
+
+    /**
+     * Spreads uids evenly, even though they're allocated sequentially. Must never change, rows are stored by it.
+     */
+    static int shardIndex(int uid, int shards) {
+        int h = uid;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shards);
+    }
+
+    static File getShardFile(File sqliteFile, int index) {
+        String name = sqliteFile.getName();
+        if (name.endsWith(".db")) name = name.substring(0, name.length() - 3);
+        return new File(sqliteFile.getAbsoluteFile().getParentFile(), name + ".shard" + index + ".db");
+    }
+
+    /**
+     * @return The manager holding uid's points and settings.
+     */
+    private SQLManager shardOf(int uid) {
+        return shards[shardIndex(uid, shards.length)];
+    }
+
+    /**
+     * @return Every shard, or an empty list if points and settings are kept in this database.
+     */
+    public List<SQLManager> getShards() {
+        return shards == null ? List.of() : List.of(shards);
+    }
+
+    private static final int LEDGER_SNAPSHOT_INTERVAL = 64;
+
+    // Appends to the end of the user's list in the same statement, so a row never exists without a priority
+    private static final String INSERT_POINT_SQL = "INSERT INTO points (uid, name, points, priority) SELECT ?, ?, 0, COALESCE(MAX(priority), 0) + 1 FROM points WHERE uid=?";
+
     public Person add(int uid, String name) throws SQLException, BusyException {
-        int id = executeReturnGenerated("INSERT INTO points (uid, name, points) VALUES (?,?,0)", 3000, uid, name);
-        execute("UPDATE points SET priority=id WHERE uid=? AND id=?", 3000L, uid, id);
-        return new Person(id, name, 0);
+        return addAll(uid, List.of(name), 3000L).get(0);
+    }
+
+    /**
+     * Adds all names to the end of the user's list, in order, in a single transaction.
+     */
+    public List<Person> addAll(int uid, List<String> names) throws SQLException, BusyException {
+        return addAll(uid, names, 10000L);
+    }
+
+    private List<Person> addAll(int uid, List<String> names, long wait) throws SQLException, BusyException {
+        if (shards != null) return shardOf(uid).addAll(uid, names, wait);
+        if (names.isEmpty()) return List.of();
+        return transaction(INSERT_POINT_SQL, connection -> {
+            List<Person> out = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_POINT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (String name : names) {
+                    StatementCache.bind(statement, uid, name, uid);
+                    statement.executeUpdate();
+                    try (ResultSet rs = statement.getGeneratedKeys()) {
+                        if (!rs.next()) throw new SQLException("No ID generated for " + name);
+                        out.add(new Person(rs.getInt(1), name, 0));
+                    }
+                }
+            }
+            return out;
+        }, List::size, out -> {
+            for (Person person : out) {
+                changed(uid, PointsEventBus.Type.ADD, person.id(), person.toJSON());
+            }
+        }, wait);
+    }
+
+    /**
+     * Called on the writer once a change to one of uid's points commits: drops the cached list before announcing the
+     * change, so a client refetching on the event sees it.
+     */
+    private void changed(int uid, PointsEventBus.Type type, int id, JSONObject data) {
+        reads.invalidate(new ReadKey(Read.PEOPLE, uid));
+        eventBus.publish(uid, type, id, data);
     }
 
     public boolean remove(int uid, int id) throws SQLException, BusyException {
-        return executeReturnRows("DELETE FROM points WHERE id=? AND uid=?", 3000, id, uid) > 0;
+        if (shards != null) return shardOf(uid).remove(uid, id);
+        final String sql = "DELETE FROM points WHERE id=? AND uid=?";
+        return transaction(sql, connection -> StatementCache.executeUpdate(connection, sql, id, uid) > 0, r -> r ? 1 : 0, r -> {
+            if (r) changed(uid, PointsEventBus.Type.DELETE, id, null);
+        }, 3000L);
     }
 
+    /**
+     * Sets the point's value and appends the change to the points ledger, in one transaction.
+     */
     public boolean setPoints(int uid, int id, int points) throws SQLException, BusyException {
-        return executeReturnRows("UPDATE points SET points=? WHERE id=? AND uid=?", 3000, points, id, uid) > 0;
+        if (shards != null) return shardOf(uid).setPoints(uid, id, points);
+        return transaction("TRANSACTION setPoints", connection -> {
+            Integer previous = StatementCache.query(connection, "SELECT points FROM points WHERE id=? AND uid=?", rs -> {
+                return rs.next() ? rs.getInt(1) : null;
+            }, id, uid);
+            if (previous == null) return false;
+            StatementCache.executeUpdate(connection, "UPDATE points SET points=? WHERE id=? AND uid=?", points, id, uid);
+            appendToLedger(connection, uid, id, previous, points - previous, System.currentTimeMillis());
+            return true;
+        }, r -> r ? 1 : 0, r -> {
+            if (r) changed(uid, PointsEventBus.Type.POINTS, id, new JSONObject().put("points", points));
+        }, 3000L);
+    }
+
+    /**
+     * Records a change of delta to a point whose value was previous. Its first change is preceded by a snapshot of
+     * previous, so its history starts from a known value even if it predates the ledger.
+     */
+    private void appendToLedger(Connection connection, int uid, int id, int previous, int delta, long time) throws SQLException {
+        if (delta == 0) return;
+        // time, seq
+        long[] snapshot = StatementCache.query(connection, "SELECT time, seq FROM points_snapshots WHERE id=? ORDER BY time DESC, seq DESC LIMIT 1", rs -> {
+            return rs.next() ? new long[]{rs.getLong(1), rs.getLong(2)} : null;
+        }, id);
+        if (snapshot == null) {
+            StatementCache.executeUpdate(connection, "INSERT INTO points_snapshots (id, uid, seq, time, points) VALUES (?,?,0,?,?)", id, uid, time, previous);
+            snapshot = new long[]{time, 0};
+        }
+        long seq;
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO points_ledger (id, uid, delta, time) VALUES (?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
+            StatementCache.bind(statement, id, uid, delta, time);
+            statement.executeUpdate();
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                if (!rs.next()) throw new SQLException("No sequence number generated for ledger entry");
+                seq = rs.getLong(1);
+            }
+        }
+        // Bounded by the interval, and answered from the (id, time, seq) index
+        int sinceSnapshot = StatementCache.query(connection, "SELECT COUNT(*) FROM points_ledger WHERE id=? AND time>=? AND seq>?", rs -> {
+            return rs.next() ? rs.getInt(1) : 0;
+        }, id, snapshot[0], snapshot[1]);
+        if (sinceSnapshot >= LEDGER_SNAPSHOT_INTERVAL) {
+            StatementCache.executeUpdate(connection, "INSERT INTO points_snapshots (id, uid, seq, time, points) VALUES (?,?,?,?,?)", id, uid, seq, time, previous + delta);
+        }
+    }
+
+    /**
+     * Rebuilds a point's value between from and to from the ledger, starting at the latest snapshot no later than from.
+     * History only goes back to the point's first change since the ledger was added, so from is moved up to that.
+     *
+     * @param maxPoints Past this many changes, the history is downsampled into this many time buckets.
+     * @return The history, or empty if the user has no such point and it has no history.
+     */
+    public Optional<PointsHistory> getHistory(int uid, int id, long from, long to, int maxPoints) throws SQLException, BusyException {
+        if (shards != null) return shardOf(uid).getHistory(uid, id, from, to, maxPoints);
+        // seq, time, points
+        long[] snapshot = readQuery("SELECT seq, time, points FROM points_snapshots WHERE id=? AND uid=? AND time<=? ORDER BY time DESC, seq DESC LIMIT 1", rs -> {
+            return rs.next() ? new long[]{rs.getLong(1), rs.getLong(2), rs.getInt(3)} : null;
+        }, 3000, id, uid, from);
+        if (snapshot == null) {
+            snapshot = readQuery("SELECT seq, time, points FROM points_snapshots WHERE id=? AND uid=? ORDER BY time ASC, seq ASC LIMIT 1", rs -> {
+                return rs.next() ? new long[]{rs.getLong(1), rs.getLong(2), rs.getInt(3)} : null;
+            }, 3000, id, uid);
+            if (snapshot == null) {
+                // Never changed, so it has been at its current value throughout
+                final long since = from;
+                return getPerson(uid, id).map(person -> new PointsHistory(id, since, to, person.points(), maxPoints));
+            }
+            from = Math.max(from, snapshot[1]);
+        }
+        final long seq = snapshot[0];
+        final long start = from;
+        int startValue = (int) snapshot[2] + readQuery("SELECT COALESCE(SUM(delta), 0) FROM points_ledger WHERE id=? AND time>=? AND time<? AND seq>?", rs -> {
+            return rs.next() ? rs.getInt(1) : 0;
+        }, 3000, id, snapshot[1], start, seq);
+        return Optional.of(readQuery("SELECT time, delta FROM points_ledger WHERE id=? AND uid=? AND time>=? AND time<=? AND seq>? ORDER BY time, seq", rs -> {
+            PointsHistory history = new PointsHistory(id, start, to, startValue, maxPoints);
+            while (rs.next()) {
+                history.add(rs.getLong(1), rs.getInt(2));
+            }
+            return history;
+        }, 3000, id, uid, start, to, seq));
+    }
+
+    public record Redemption(int id, Status status, int points) {
+        public enum Status {
+            REDEEMED, INSUFFICIENT_POINTS, NOT_FOUND
+        }
+
+        public JSONObject toJSON() {
+            JSONObject out = new JSONObject()
+                    .put("id", id)
+                    .put("status", status.toString().toLowerCase(Locale.ROOT));
+            if (status != Status.NOT_FOUND) out.put("points", points);
+            return out;
+        }
+    }
+
+    /**
+     * Deducts the user's redeem cost from each point, in order, in one transaction. Each deduction is a single
+     * conditional UPDATE, which only takes a point below the cost if the user allows negative points, so concurrent
+     * redemptions can't overdraw a point whatever order they commit in. Each one succeeds or fails on its own, and is
+     * recorded in the ledger and the redemptions table.
+     *
+     * @param ids The points to redeem. A point listed twice is redeemed twice.
+     */
+    public List<Redemption> redeem(int uid, List<Integer> ids) throws SQLException, BusyException {
+        if (shards != null) return shardOf(uid).redeem(uid, ids);
+        if (ids.isEmpty()) return List.of();
+        Settings settings = getSettings(uid);
+        final int cost = settings.redeemCost();
+        final boolean allowNegative = settings.allowNegative();
+        final long time = System.currentTimeMillis();
+        return transaction("TRANSACTION redeem", connection -> {
+            List<Redemption> out = new ArrayList<>();
+            for (int id : ids) {
+                int updated = StatementCache.executeUpdate(connection, "UPDATE points SET points=points-? WHERE id=? AND uid=? AND (? OR points>=?)", cost, id, uid, allowNegative, cost);
+                Integer points = StatementCache.query(connection, "SELECT points FROM points WHERE id=? AND uid=?", rs -> {
+                    return rs.next() ? rs.getInt(1) : null;
+                }, id, uid);
+                if (points == null) {
+                    out.add(new Redemption(id, Redemption.Status.NOT_FOUND, 0));
+                } else if (updated <= 0) {
+                    out.add(new Redemption(id, Redemption.Status.INSUFFICIENT_POINTS, points));
+                } else {
+                    appendToLedger(connection, uid, id, points + cost, -cost, time);
+                    StatementCache.executeUpdate(connection, "INSERT INTO points_redemptions (id, uid, cost, time) VALUES (?,?,?,?)", id, uid, cost, time);
+                    out.add(new Redemption(id, Redemption.Status.REDEEMED, points));
+                }
+            }
+            return out;
+        }, out -> out.stream().filter(redemption -> redemption.status() == Redemption.Status.REDEEMED).count(), out -> {
+            for (Redemption redemption : out) {
+                if (redemption.status() != Redemption.Status.REDEEMED) continue;
+                changed(uid, PointsEventBus.Type.POINTS, redemption.id(), new JSONObject().put("points", redemption.points()));
+            }
+        }, 3000L);
     }
 
     public boolean setName(int uid, int id, String name) throws SQLException, BusyException {
-        return executeReturnRows("UPDATE points SET name=? WHERE id=? AND uid=?", 3000, name, id, uid) > 0;
+        if (shards != null) return shardOf(uid).setName(uid, id, name);
+        final String sql = "UPDATE points SET name=? WHERE id=? AND uid=?";
+        return transaction(sql, connection -> StatementCache.executeUpdate(connection, sql, name, id, uid) > 0, r -> r ? 1 : 0, r -> {
+            if (r) changed(uid, PointsEventBus.Type.NAME, id, new JSONObject().put("name", name));
+        }, 3000L);
     }
 
+    /**
+     * Removes the account's points, history and account row through the write queue. Its uid, sessions and password
+     * are KshLib's, removed by KshLib outside the queue, uid first so the account is gone even if a later step fails.
+     * Anything left behind is removed by {@link DatabaseMaintenance}.
+     */
     public boolean deleteAccount(int uid) throws SQLException, BusyException {
         if (!getUIDManager().remove(uid)) {
             return false;
         }
-        execute("DELETE FROM points WHERE uid=?", 3000, uid);
+        deletePoints(uid);
+        executeCached("DELETE FROM accounts WHERE uid=?", 3000L, uid);
         getTokenManager().remove(uid);
         getPasswordManager().remove(uid);
-
-        //TODO remove from anywhere else?
         return true;
     }
 
+    private void deletePoints(int uid) throws SQLException, BusyException {
+        if (shards != null) {
+            shardOf(uid).deletePoints(uid);
+            return;
+        }
+        transaction("TRANSACTION deletePoints", connection -> {
+            int rows = 0;
+            for (String table : List.of("points", "points_ledger", "points_snapshots", "points_redemptions")) {
+                rows += StatementCache.executeUpdate(connection, "DELETE FROM " + table + " WHERE uid=?", uid);
+            }
+            return rows;
+        }, rows -> rows, 3000L);
+        reads.invalidate(new ReadKey(Read.PEOPLE, uid));
+        invalidateSettings(uid);
+    }
+
+    public Settings getSettings(int uid) throws SQLException, BusyException {
+        if (shards != null) return shardOf(uid).getSettings(uid);
+        synchronized (settingsCache) {
+            Settings settings = settingsCache.get(uid);
+            if (settings != null) {
+                settingsCacheHits.increment();
+                return settings;
+            }
+        }
+        settingsCacheMisses.increment();
+        return (Settings) reads.get(new ReadKey(Read.SETTINGS, uid), () -> {
+            final long version = settingsVersion.get();
+            Setting[] all = Setting.values();
+            Object[] values = new Object[all.length];
+            final String sql = settingsSQL;
+            if (sql != null) {
+                Object[] args = new Object[all.length];
+                Arrays.fill(args, uid);
+                readQuery(sql, rs -> {
+                    rs.next();
+                    for (Setting setting : all) {
+                        values[setting.ordinal()] = setting.read(rs, setting.ordinal() + 1);
+                    }
+                    return values;
+                }, 3000, args);
+            } else {
+                for (Setting setting : all) {
+                    values[setting.ordinal()] = setting.getSettingManager(this).get(uid);
+                }
+            }
+            Settings settings = new Settings(values);
+            synchronized (settingsCache) {
+                // Don't cache a snapshot that may have been read before a concurrent change
+                if (settingsVersion.get() == version) settingsCache.put(uid, settings);
+            }
+            return settings;
+        });
+    }
+
+    /**
+     * Builds the statement which reads every setting of one uid at once, one column per setting, bound with the uid once
+     * per setting. The tables are KshLib's, so each must have an integer primary key, the uid, and one other column,
+     * the value. Otherwise each setting is read by its manager.
+     */
+    private String buildSettingsSQL(Connection connection) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        for (Setting setting : Setting.values()) {
+            String key = null;
+            List<String> values = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT name, type, pk FROM pragma_table_info(?)")) {
+                statement.setString(1, setting.table);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        if (rs.getInt(3) > 0) {
+                            key = key == null && rs.getString(2).toUpperCase(Locale.ROOT).contains("INT") ? rs.getString(1) : "";
+                        } else {
+                            values.add(rs.getString(1));
+                        }
+                    }
+                }
+            }
+            if (key == null || key.isEmpty() || values.size() != 1) {
+                Main.warning("Reading settings one at a time: expected " + setting.table + " to have an integer primary key and one value column");
+                return null;
+            }
+            columns.add("(SELECT " + values.get(0) + " FROM " + setting.table + " WHERE " + key + "=?)");
+        }
+        return "SELECT " + String.join(", ", columns);
+    }
+
+    private void invalidateSettings(int uid) {
+        synchronized (settingsCache) {
+            settingsVersion.incrementAndGet();
+            settingsCache.remove(uid);
+        }
+        reads.invalidate(new ReadKey(Read.SETTINGS, uid));
+    }
+
+    public void setSetting(int uid, Setting setting, Object value) throws SQLException, BusyException, SettingManager.ArgumentValidationException {
+        if (shards != null) {
+            shardOf(uid).setSetting(uid, setting, value);
+            return;
+        }
+        try {
+            setting.getSettingManager(this).setFromObject(uid, value);
+        } finally {
+            invalidateSettings(uid);
+        }
+    }
+
+    /**
+     * Records that ipID made a request, for {@link DatabaseMaintenance}. Only written once an hour per IP, and a failed
+     * write is tried again on the IP's next request, since maintenance treats IPs it has no record of as just seen.
+     */
+    public void touchIP(int ipID) {
+        final long now = System.currentTimeMillis();
+        synchronized (ipsSeen) {
+            Long last = ipsSeen.get(ipID);
+            if (last != null && now - last < IP_SEEN_RESOLUTION) return;
+            ipsSeen.put(ipID, now);
+        }
+        try {
+            executeCached("REPLACE INTO ip_last_seen (ip_id, time) VALUES (?, ?)", 3000L, ipID, now);
+        } catch (SQLException | BusyException | RejectedExecutionException e) {
+            synchronized (ipsSeen) {
+                ipsSeen.remove(ipID);
+            }
+            if (e instanceof SQLException) Main.print("Failed to record IP " + ipID, e);
+        }
+    }
+
     public boolean logout(int uid, int token_id) throws SQLException, BusyException {
         return getTokenManager().remove(uid, token_id);
     }
@@ -158,14 +985,411 @@ public class SQLManager extends ConnectionManager {
         return getTokenManager().remove(uid);
     }
 
+    /**
+     * @return The user's list, in order. Concurrent calls for the same user share one query, so the list is shared too
+     * and can't be modified.
+     */
     public List<Person> getPeople(int uid) throws SQLException, BusyException {
-        List<Person> out = new ArrayList<>();
-        query("SELECT * FROM POINTS WHERE uid=? ORDER BY priority ASC", rs -> {
+        if (shards != null) return shardOf(uid).getPeople(uid);
+        //noinspection unchecked
+        return (List<Person>) reads.get(new ReadKey(Read.PEOPLE, uid), () -> {
+            return readQuery("SELECT * FROM points WHERE uid=? ORDER BY priority ASC", rs -> {
+                List<Person> out = new ArrayList<>();
+                while (rs.next()) {
+                    out.add(new Person(rs.getInt("id"), rs.getString("name"), rs.getInt("points")));
+                }
+                return Collections.unmodifiableList(out);
+            }, 3000, uid);
+        });
+    }
+
+    /**
+     * @param next The cursor for the following page, or null if this is the last.
+     */
+    public record Page(List<Person> people, Integer next) {
+    }
+
+    /**
+     * Reads limit points of the user's list, in order, starting after the given priority. Seeks through the
+     * (uid, priority) index, so any page costs the same however deep into the list it is.
+     *
+     * @param after The previous page's cursor, or null for the first page.
+     */
+    public Page getPeople(int uid, Integer after, int limit) throws SQLException, BusyException {
+        if (shards != null) return shardOf(uid).getPeople(uid, after, limit);
+        // One extra row tells whether there's a page after this one
+        return readQuery("SELECT id, name, points, priority FROM points WHERE uid=? AND priority>? ORDER BY priority ASC LIMIT ?", rs -> {
+            List<Person> people = new ArrayList<>();
+            int lastPriority = 0;
             while (rs.next()) {
-                out.add(new Person(rs.getInt("id"), rs.getString("name"), rs.getInt("points")));
+                if (people.size() == limit) return new Page(people, lastPriority);
+                people.add(new Person(rs.getInt(1), rs.getString(2), rs.getInt(3)));
+                lastPriority = rs.getInt(4);
             }
-        }, 3000, uid);
-        return out;
+            return new Page(people, null);
+        }, 3000, uid, after == null ? Long.MIN_VALUE : after, limit + 1);
+    }
+
+    private static final int MAX_SEARCH_TERMS = 8;
+    /**
+     * The longest prefix points_fts indexes. Longer terms are looked up by their first this many characters, then
+     * checked in full against each name found.
+     */
+    private static final int SEARCH_PREFIX_LENGTH = 3;
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Finds the user's points with a word in their name starting with each word of query. If more than limit match,
+     * it's the first limit of them by when they were created, returned in list order.
+     * <p>
+     * With full text search, the user's uid and each term's prefix are looked up in the index and walked together in
+     * rowid order until limit points match, so a search reads no more than the index entries of the user's own points
+     * and never sorts more than limit rows. Without it, the user's points are read in rowid order and checked the same
+     * way until limit match. Either way, other users' points cost nothing.
+     *
+     * @return Up to limit points, or none if query has no words.
+     */
+    public List<Person> search(int uid, String query, int limit) throws SQLException, BusyException {
+        if (shards != null) return shardOf(uid).search(uid, query, limit);
+        List<String> terms = getSearchTerms(query);
+        if (terms.isEmpty()) return List.of();
+        List<String> normalized = terms.stream().map(SQLManager::normalizeSearchTerm).toList();
+        record Found(Person person, int priority) {
+        }
+        ReadConnectionPool.ResultSetFunction<List<Found>> collect = rs -> {
+            List<Found> out = new ArrayList<>();
+            while (out.size() < limit && rs.next()) {
+                String name = rs.getString(2);
+                if (!startsWords(name, normalized)) continue;
+                out.add(new Found(new Person(rs.getInt(1), name, rs.getInt(3)), rs.getInt(4)));
+            }
+            return out;
+        };
+        List<Found> found;
+        if (fullTextSearch) {
+            // Terms are only letters and digits, so quoting them is enough
+            StringBuilder match = new StringBuilder("uid : \"").append(uid).append("\" AND name : (");
+            for (int i = 0; i < terms.size(); i++) {
+                String term = terms.get(i);
+                int end = term.offsetByCodePoints(0, Math.min(SEARCH_PREFIX_LENGTH, term.codePointCount(0, term.length())));
+                if (i > 0) match.append(" AND ");
+                match.append('"').append(term, 0, end).append("\"*");
+            }
+            match.append(')');
+            // CROSS JOIN keeps the index as the outer loop, so rows arrive in rowid order as they're found
+            found = readQuery("SELECT p.id, p.name, p.points, p.priority FROM points_fts f CROSS JOIN points p ON p.id=f.rowid WHERE points_fts MATCH ? AND p.uid=? ORDER BY f.rowid", collect, 3000, match.toString(), uid);
+        } else {
+            // LIKE can't narrow this down: a term matches anywhere in the name, not just at a word, and isn't folded the
+            // way the tokenizer folds case and diacritics, so it would both let through and miss names
+            found = readQuery("SELECT id, name, points, priority FROM points WHERE uid=? ORDER BY id", collect, 3000, uid);
+        }
+        return found.stream().sorted(Comparator.comparingInt(Found::priority)).map(Found::person).toList();
+    }
+
+    /**
+     * Searches by reading the user's points, as when SQLite was built without FTS5.
+     */
+    void disableFullTextSearch() {
+        fullTextSearch = false;
+    }
+
+    /**
+     * Splits query into words the way FTS5's default tokenizer does, on anything that isn't a letter or digit.
+     */
+    static List<String> getSearchTerms(String query) {
+        List<String> terms = getWords(query);
+        return terms.size() > MAX_SEARCH_TERMS ? terms.subList(0, MAX_SEARCH_TERMS) : terms;
+    }
+
+    private static List<String> getWords(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) return words;
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+            int codePoint = text.codePointAt(i);
+            if (Character.isLetterOrDigit(codePoint)) {
+                word.appendCodePoint(codePoint);
+            } else if (!word.isEmpty()) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (!word.isEmpty()) words.add(word.toString());
+        return words;
+    }
+
+    /**
+     * Folds case and strips diacritics, as FTS5's default tokenizer does.
+     */
+    static String normalizeSearchTerm(String term) {
+        return COMBINING_MARKS.matcher(Normalizer.normalize(term.toLowerCase(Locale.ROOT), Normalizer.Form.NFD)).replaceAll("");
+    }
+
+    /**
+     * @param terms Normalized with {@link #normalizeSearchTerm(String)}.
+     * @return Whether each of terms starts a word of name.
+     */
+    static boolean startsWords(String name, List<String> terms) {
+        List<String> words = getWords(name).stream().map(SQLManager::normalizeSearchTerm).toList();
+        for (String term : terms) {
+            if (words.stream().noneMatch(word -> word.startsWith(term))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a single statement on the write queue, using the writer connection's statement cache.
+     */
+    private int executeCached(String sql, long wait, Object... args) throws SQLException, BusyException {
+        return transaction(sql, connection -> StatementCache.executeUpdate(connection, sql, args), rows -> rows, wait);
+    }
+
+    @FunctionalInterface
+    private interface TransactionFunction<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Runs function on the write queue, in a transaction shared with whatever other writes are queued alongside it,
+     * recording how long the calling request waited for the writer and how long until its write committed.
+     *
+     * @param sql  The statement being run, or a label if the transaction runs several, for the query profile.
+     * @param rows Counts the rows changed from the result, for the query profile.
+     * @param wait How long the write may wait for the writer before it's rejected.
+     */
+    private <T> T transaction(String sql, TransactionFunction<T> function, ToLongFunction<T> rows, long wait) throws SQLException, BusyException {
+        return transaction(sql, function, rows, null, wait);
+    }
+
+    /**
+     * Like {@link #transaction(String, TransactionFunction, ToLongFunction, long)}, passing the result to onCommit on the
+     * writer as soon as the write commits. Events are published from there, so they're numbered in commit order.
+     */
+    private <T> T transaction(String sql, TransactionFunction<T> function, ToLongFunction<T> rows, Consumer<T> onCommit, long wait) throws SQLException, BusyException {
+        WriteQueue.Task<T> task = writeQueue.submit(function::apply, onCommit);
+        T result = null;
+        try {
+            result = writeQueue.await(task, wait);
+            return result;
+        } finally {
+            long waitNanos = task.getWaitNanos();
+            long executeNanos = task.getExecuteNanos();
+            RequestTimings.addWaitNanos(waitNanos);
+            RequestTimings.addSQLNanos(executeNanos);
+            if (profiler.record(sql, executeNanos, waitNanos, result == null ? -1 : rows.applyAsLong(result))) {
+                explain(sql);
+            }
+        }
+    }
+
+    /**
+     * Runs a query on the read pool, falling back to the writer connection if no read connection frees up in time.
+     * The fallback only gets what is left of wait, so the whole call never waits longer than wait.
+     */
+    private <T> T readQuery(String sql, ReadConnectionPool.ResultSetFunction<T> function, long wait, Object... args) throws SQLException, BusyException {
+        ReadConnectionPool readPool = this.readPool;
+        final long called = System.nanoTime();
+        Connection connection = readPool == null ? null : readPool.borrow(wait);
+        final long borrowed = System.nanoTime();
+        T result = null;
+        try {
+            if (connection == null) {
+                long remaining = Math.max(1, wait - TimeUnit.NANOSECONDS.toMillis(borrowed - called));
+                result = query(sql, rs -> {
+                    return function.apply(rs);
+                }, remaining, args);
+            } else {
+                result = ReadConnectionPool.query(connection, sql, function, args);
+            }
+            return result;
+        } finally {
+            if (connection != null) readPool.release(connection);
+            long executeNanos = System.nanoTime() - borrowed;
+            RequestTimings.addWaitNanos(borrowed - called);
+            RequestTimings.addSQLNanos(executeNanos);
+            if (profiler.record(sql, executeNanos, borrowed - called, QueryProfiler.rowsOf(result))) {
+                explain(sql);
+            }
+        }
+    }
+
+    /**
+     * Logs the query plan of a slow statement. Runs on the read pool, so it never waits on the writer.
+     */
+    private void explain(String sql) {
+        String upper = sql.trim().toUpperCase(Locale.ROOT);
+        if (!sqliteOptions.explainSlowQueries() || !(upper.startsWith("SELECT") || upper.startsWith("UPDATE") || upper.startsWith("DELETE") || upper.startsWith("INSERT"))) {
+            return;
+        }
+        ReadConnectionPool readPool = this.readPool;
+        Connection connection = readPool == null ? null : readPool.borrow(0);
+        if (connection == null) return;
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("EXPLAIN QUERY PLAN " + sql)) {
+            StringBuilder plan = new StringBuilder("Query plan for ").append(sql);
+            while (rs.next()) {
+                plan.append("\n  ").append(rs.getString("detail"));
+            }
+            Main.warning(plan.toString());
+        } catch (SQLException e) {
+            Main.warning("Failed to explain " + sql + ": " + e.getMessage());
+        } finally {
+            readPool.release(connection);
+        }
+    }
+
+    /**
+     * A column of a table, as described by SQLite's table_info pragma.
+     *
+     * @param primaryKey The column's position in the primary key, or 0 if it isn't part of it.
+     */
+    record Column(String name, String type, int primaryKey) {
+    }
+
+    /**
+     * @return The table's columns, or an empty list if it doesn't exist.
+     */
+    List<Column> getColumns(String table) throws SQLException, BusyException {
+        return readQuery("SELECT name, type, pk FROM pragma_table_info(?)", rs -> {
+            List<Column> out = new ArrayList<>();
+            while (rs.next()) {
+                out.add(new Column(rs.getString(1), rs.getString(2), rs.getInt(3)));
+            }
+            return out;
+        }, 3000, table);
+    }
+
+    /**
+     * Deletes up to limit rows matching condition in a short transaction. table and condition must be trusted SQL.
+     *
+     * @return The number of rows deleted.
+     */
+    int deleteBatch(String table, String condition, int limit) throws SQLException, BusyException {
+        return executeCached("DELETE FROM " + table + " WHERE rowid IN (SELECT rowid FROM " + table + " WHERE " + condition + " LIMIT ?)", 3000L, limit);
+    }
+
+    /**
+     * Like {@link #deleteBatch(String, String, int)}, but returns the integer key of each row deleted so they can be
+     * dropped from an index. table, key and condition must be trusted SQL.
+     */
+    List<Integer> deleteBatchReturningKeys(String table, String key, String condition, int limit) throws SQLException, BusyException {
+        final String select = "SELECT " + key + " FROM " + table + " WHERE " + condition + " LIMIT ?";
+        final String delete = "DELETE FROM " + table + " WHERE " + key + "=?";
+        return transaction(select, connection -> {
+            List<Integer> keys = StatementCache.query(connection, select, rs -> {
+                List<Integer> out = new ArrayList<>();
+                while (rs.next()) out.add(rs.getInt(1));
+                return out;
+            }, limit);
+            for (int k : keys) {
+                StatementCache.executeUpdate(connection, delete, k);
+            }
+            return keys;
+        }, List::size, 3000L);
+    }
+
+    /**
+     * Like {@link #deleteBatchReturningKeys(String, String, String, int)} on email_ids, while no account is being
+     * created, so an ID can't be deleted between createAccount finding it and inserting the account which references
+     * it. The deleted IDs are dropped from the index before any account can be created again.
+     */
+    List<Integer> deleteEmailIDBatch(String key, String condition, int limit) throws SQLException, BusyException {
+        emailIDLock.writeLock().lock();
+        try {
+            List<Integer> keys = deleteBatchReturningKeys("email_ids", key, condition, limit);
+            keys.forEach(emailIDManager::invalidate);
+            return keys;
+        } finally {
+            emailIDLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds every IP missing from ip_last_seen as seen at time. Only for SQLite. ipColumn must be trusted SQL.
+     */
+    int recordUnseenIPs(String ipColumn, long time) throws SQLException, BusyException {
+        return executeCached("INSERT OR IGNORE INTO ip_last_seen (ip_id, time) SELECT " + ipColumn + ", ? FROM ips", 3000L, time);
+    }
+
+    /**
+     * @return The largest value of column, or 0 if the table is empty. table and column must be trusted SQL.
+     */
+    long getMax(String table, String column) throws SQLException, BusyException {
+        return readQuery("SELECT MAX(" + column + ") FROM " + table, rs -> {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }, 3000);
+    }
+
+    void analyze() throws SQLException, BusyException {
+        transaction("ANALYZE", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ANALYZE");
+            }
+            return 0;
+        }, r -> 0, 10000L);
+    }
+
+    /**
+     * Returns up to pages free pages to the filesystem. Only has an effect if auto_vacuum is INCREMENTAL.
+     */
+    void incrementalVacuum(int pages) throws SQLException, BusyException {
+        transaction("PRAGMA incremental_vacuum", connection -> {
+            // Each step of the pragma frees one page, so its (empty) rows must be stepped through to completion
+            try (Statement statement = connection.createStatement()) {
+                if (statement.execute("PRAGMA incremental_vacuum(" + pages + ")")) {
+                    try (ResultSet rs = statement.getResultSet()) {
+                        //noinspection StatementWithEmptyBody
+                        while (rs.next()) ;
+                    }
+                }
+            }
+            return 0;
+        }, r -> 0, 3000L);
+    }
+
+    long getFreelistCount() throws SQLException, BusyException {
+        return readQuery("PRAGMA freelist_count", rs -> {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }, 3000);
+    }
+
+    /**
+     * @return 0 for NONE, 1 for FULL or 2 for INCREMENTAL.
+     */
+    int getAutoVacuum() throws SQLException, BusyException {
+        return readQuery("PRAGMA auto_vacuum", rs -> {
+            return rs.next() ? rs.getInt(1) : 0;
+        }, 3000);
+    }
+
+    /**
+     * Closes the shards, then stops the writer once its current batch commits and closes the read pool and connection.
+     */
+    @Override
+    public void close() {
+        if (shards != null) {
+            for (SQLManager shard : shards) {
+                shard.close();
+            }
+        }
+        writeQueue.close();
+        try {
+            if (!writeQueue.awaitTermination(CLOSE_WAIT_MILLIS)) {
+                Main.warning("Writer of " + databaseName() + " didn't stop within " + CLOSE_WAIT_MILLIS + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ReadConnectionPool readPool = this.readPool;
+        if (readPool != null) readPool.close();
+        try {
+            super.close();
+        } catch (Exception e) {
+            Main.print("Failed to close " + databaseName(), e);
+        }
+    }
+
+    private String databaseName() {
+        return sqliteFile == null ? "the database" : sqliteFile.getName();
     }
 
     @Override
@@ -185,27 +1409,36 @@ public class SQLManager extends ConnectionManager {
     public Optional<Integer> getUID(String email) throws SQLException, BusyException {
         Optional<Integer> emailID = emailIDManager.getIDOpt(email, false);
         if (emailID.isEmpty()) return Optional.empty();
-        return query("SELECT uid FROM accounts WHERE email_id=?", rs -> {
-            if (!rs.next()) return Optional.empty();
+        return readQuery("SELECT uid FROM accounts WHERE email_id=?", rs -> {
+            if (!rs.next()) return Optional.<Integer>empty();
             return Optional.of(rs.getInt(1));
         }, 3000, emailID.get());
     }
 
     public void createAccount(int uid, String email) throws SQLException, BusyException {
-        execute("INSERT INTO accounts (time_created, uid, email_id) VALUES (?,?,?)", 10000L, System.currentTimeMillis(), uid, emailIDManager.getIDOpt(email, true).orElseThrow());
+        emailIDLock.readLock().lock();
+        try {
+            int emailID = emailIDManager.getIDOpt(email, true).orElseThrow();
+            executeCached("INSERT INTO accounts (time_created, uid, email_id) VALUES (?,?,?)", 10000L, System.currentTimeMillis(), uid, emailID);
+        } finally {
+            emailIDLock.readLock().unlock();
+        }
     }
 
     public String getEmail(int uid) throws SQLException, BusyException {
-        return query("SELECT email_id FROM accounts WHERE uid=?", rs -> {
+        Integer emailID = readQuery("SELECT email_id FROM accounts WHERE uid=?", rs -> {
             if (!rs.next()) return null;
-            return emailIDManager.getValueOpt(rs.getInt(1)).orElse(null);
+            return rs.getInt(1);
         }, 3000, uid);
+        if (emailID == null) return null;
+        return emailIDManager.getValueOpt(emailID).orElse(null);
     }
 
     public boolean setPriority(int uid, int id, boolean up) throws SQLException, BusyException {
-        return executeTransaction(connection -> {
+        if (shards != null) return shardOf(uid).setPriority(uid, id, up);
+        return transaction("TRANSACTION setPriority", connection -> {
             // Fetch current priority of the target entry
-            int currentPriority = query(connection, "SELECT priority FROM points WHERE uid=? AND id=?", rs -> {
+            int currentPriority = StatementCache.query(connection, "SELECT priority FROM points WHERE uid=? AND id=?", rs -> {
                 if (!rs.next()) return -1;
                 return rs.getInt(1);
             }, uid, id);
@@ -217,7 +1450,7 @@ public class SQLManager extends ConnectionManager {
             } else {
                 getAdjacentEntrySql += ">? ORDER BY priority ASC LIMIT 1";
             }
-            int[] adjacent = query(connection, getAdjacentEntrySql, rs -> {
+            int[] adjacent = StatementCache.query(connection, getAdjacentEntrySql, rs -> {
                 if (!rs.next()) return null;
                 return new int[]{rs.getInt(1), rs.getInt(2)};
             }, uid, currentPriority);
@@ -229,11 +1462,13 @@ public class SQLManager extends ConnectionManager {
 
             // Swap the priorities
             String updatePrioritySql = "UPDATE points SET priority=? WHERE uid=? AND id=?";
-            execute(connection, updatePrioritySql, adjacentPriority, uid, id);
-            execute(connection, updatePrioritySql, currentPriority, uid, adjacentId);
+            StatementCache.executeUpdate(connection, updatePrioritySql, adjacentPriority, uid, id);
+            StatementCache.executeUpdate(connection, updatePrioritySql, currentPriority, uid, adjacentId);
 
             return true;
 
+        }, r -> r ? 2 : 0, r -> {
+            if (r) changed(uid, PointsEventBus.Type.PRIORITY, id, new JSONObject().put("up", up));
         }, 3000L);
     }
 
@@ -257,6 +1492,74 @@ public class SQLManager extends ConnectionManager {
         return getPeople(uid).stream().filter(p -> p.id() == id).findAny();
     }
 
+    public long getSettingsCacheHits() {
+        long hits = settingsCacheHits.sum();
+        for (SQLManager shard : getShards()) hits += shard.getSettingsCacheHits();
+        return hits;
+    }
+
+    public long getSettingsCacheMisses() {
+        long misses = settingsCacheMisses.sum();
+        for (SQLManager shard : getShards()) misses += shard.getSettingsCacheMisses();
+        return misses;
+    }
+
+    /**
+     * @return Reads of a user's list or settings answered by joining an identical read already running, across every
+     * shard.
+     */
+    public long getSharedReads() {
+        long shared = reads.getShared();
+        for (SQLManager shard : getShards()) shared += shard.getSharedReads();
+        return shared;
+    }
+
+    /**
+     * @return Write transactions committed, across every shard.
+     */
+    public long getWriteBatches() {
+        long batches = writeQueue.getBatches();
+        for (SQLManager shard : getShards()) batches += shard.getWriteBatches();
+        return batches;
+    }
+
+    /**
+     * @return Writes committed, across every shard.
+     */
+    public long getWritesCommitted() {
+        long committed = writeQueue.getCommitted();
+        for (SQLManager shard : getShards()) committed += shard.getWritesCommitted();
+        return committed;
+    }
+
+    /**
+     * @return Writes waiting for a writer, across every shard.
+     */
+    public int getWritesQueued() {
+        int queued = writeQueue.getQueued();
+        for (SQLManager shard : getShards()) queued += shard.getWritesQueued();
+        return queued;
+    }
+
+    /**
+     * @return The database file, or null if this isn't backed by SQLite.
+     */
+    public File getSQLiteFile() {
+        return sqliteFile;
+    }
+
+    public SQLiteOptions getSQLiteOptions() {
+        return sqliteOptions;
+    }
+
+    public QueryProfiler getProfiler() {
+        return profiler;
+    }
+
+    public PointsEventBus getEventBus() {
+        return eventBus;
+    }
+
     public SQLSessionTokenManager getTokenManager() {
         return tokenManager;
     }
@@ -265,15 +1568,15 @@ public class SQLManager extends ConnectionManager {
         return passwordManager;
     }
 
-    public SQLIDManager.Str getUIDManager() {
+    public IndexedIDManager getUIDManager() {
         return uidManager;
     }
 
-    public SQLIDManager.Str getIPIDManager() {
+    public IndexedIDManager getIPIDManager() {
         return ipIDManager;
     }
 
-    public SQLIDManager.Str getEmailIDManager() {
+    public IndexedIDManager getEmailIDManager() {
         return emailIDManager;
     }
 
@@ -0,0 +1,96 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * SQLite storage tuning, read from the "sqlite" section of .env.json.
+ *
+ * @param synchronous     OFF, NORMAL, FULL or EXTRA. NORMAL is durable across application crashes in WAL mode.
+ * @param cacheSize       Page cache size. Negative values are in KiB, positive values are in pages.
+ * @param mmapSize        Bytes of the database to memory map, 0 to disable.
+ * @param tempStore       DEFAULT, FILE or MEMORY.
+ * @param readConnections Number of read-only connections used for queries, 0 to read through the writer.
+ * @param idIndexSize     Maximum number of usernames, emails and IPs each held in memory by their ID managers.
+ * @param slowQueryMillis Statements slower than this, including time waiting for a connection, are logged.
+ * @param explainSlowQueries Whether to log the query plan of slow statements.
+ * @param writeWindowMicros How long the writer waits to gather more writes into a transaction, 0 to only batch writes
+ *                          which queued up during the previous commit.
+ * @param writeBatchSize  Writes committed per transaction, at most.
+ * @param writeQueueSize  Writes which may wait for the writer before further ones are rejected.
+ */
+public record SQLiteOptions(String synchronous, int cacheSize, long mmapSize, String tempStore, int readConnections, int idIndexSize,
+                            long slowQueryMillis, boolean explainSlowQueries, long writeWindowMicros, int writeBatchSize, int writeQueueSize) {
+    public static final SQLiteOptions DEFAULT = new SQLiteOptions("NORMAL", -16000, 256L * 1024 * 1024, "MEMORY", Math.max(2, Runtime.getRuntime().availableProcessors()), 100000,
+            250, true, 0, 256, 4096);
+
+    private static final Set<String> SYNCHRONOUS_MODES = Set.of("OFF", "NORMAL", "FULL", "EXTRA");
+    private static final Set<String> TEMP_STORES = Set.of("DEFAULT", "FILE", "MEMORY");
+
+    public SQLiteOptions {
+        synchronous = synchronous.toUpperCase(Locale.ROOT);
+        tempStore = tempStore.toUpperCase(Locale.ROOT);
+        if (!SYNCHRONOUS_MODES.contains(synchronous)) {
+            throw new IllegalArgumentException("Invalid synchronous mode: " + synchronous);
+        }
+        if (!TEMP_STORES.contains(tempStore)) {
+            throw new IllegalArgumentException("Invalid temp_store: " + tempStore);
+        }
+        if (mmapSize < 0) {
+            throw new IllegalArgumentException("mmap_size must be >= 0");
+        }
+        if (readConnections < 0) {
+            throw new IllegalArgumentException("read_connections must be >= 0");
+        }
+        if (idIndexSize < 0) {
+            throw new IllegalArgumentException("id_index_size must be >= 0");
+        }
+        if (writeWindowMicros < 0) {
+            throw new IllegalArgumentException("write_window_us must be >= 0");
+        }
+        if (writeBatchSize < 1 || writeQueueSize < 1) {
+            throw new IllegalArgumentException("write_batch_size and write_queue_size must be > 0");
+        }
+    }
+
+    public static SQLiteOptions fromJSON(JSONObject json) {
+        if (json == null) return DEFAULT;
+        return new SQLiteOptions(
+                json.optString("synchronous", DEFAULT.synchronous()),
+                json.optInt("cache_size", DEFAULT.cacheSize()),
+                json.optLong("mmap_size", DEFAULT.mmapSize()),
+                json.optString("temp_store", DEFAULT.tempStore()),
+                json.optInt("read_connections", DEFAULT.readConnections()),
+                json.optInt("id_index_size", DEFAULT.idIndexSize()),
+                json.optLong("slow_query_ms", DEFAULT.slowQueryMillis()),
+                json.optBoolean("explain_slow_queries", DEFAULT.explainSlowQueries()),
+                json.optLong("write_window_us", DEFAULT.writeWindowMicros()),
+                json.optInt("write_batch_size", DEFAULT.writeBatchSize()),
+                json.optInt("write_queue_size", DEFAULT.writeQueueSize()));
+    }
+
+    /**
+     * @return The pragmas which only apply to the connection they are executed on, in the order they should be applied.
+     */
+    public List<String> getConnectionPragmas() {
+        return List.of(
+                "PRAGMA synchronous=" + synchronous,
+                "PRAGMA cache_size=" + cacheSize,
+                "PRAGMA mmap_size=" + mmapSize,
+                "PRAGMA temp_store=" + tempStore);
+    }
+
+    public void apply(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String pragma : getConnectionPragmas()) {
+                statement.execute(pragma);
+            }
+        }
+    }
+}
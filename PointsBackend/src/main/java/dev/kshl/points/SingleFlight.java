@@ -0,0 +1,93 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets concurrent identical reads share one query. The first caller for a key runs the load, and anyone asking for the
+ * same key while it's running waits for and gets the same result, or the same exception. Nothing is kept once the load
+ * finishes, so this only removes duplicate work that overlaps, such as several tabs reloading at once.
+ * <p>
+ * A write must {@link #invalidate(Object)} its key once it has committed, so that reads which start after it don't
+ * join a load which may have read from before it.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    @FunctionalInterface
+    public interface Loader<V> {
+        V load() throws SQLException, BusyException;
+    }
+
+    public V get(K key, Loader<V> loader) throws SQLException, BusyException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            shared.increment();
+            return join(existing);
+        }
+        loads.increment();
+        try {
+            V value = loader.load();
+            flight.complete(value);
+            return value;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> flight) throws SQLException, BusyException {
+        boolean interrupted = false;
+        try {
+            // The load has its own timeouts, so this always finishes
+            while (true) {
+                try {
+                    return flight.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException sqlException) throw sqlException;
+            if (cause instanceof BusyException busyException) throw busyException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            if (cause instanceof Error error) throw error;
+            throw new SQLException(cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops later reads of key from joining the load currently running for it, if any.
+     */
+    public void invalidate(K key) {
+        flights.remove(key);
+    }
+
+    /**
+     * @return Loads run.
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return Reads answered by joining another's load.
+     */
+    public long getShared() {
+        return shared.sum();
+    }
+}
@@ -0,0 +1,71 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Short-lived security state which every node serving the same users must agree on: login locks, failed attempt
+ * history and email challenge codes. Keys are namespaced by the caller. A TTL of 0 means the entry never expires.
+ */
+public interface StateStore extends Closeable {
+    /**
+     * @return Whether value was stored, false if key already held a live value.
+     */
+    boolean putIfAbsent(String key, String value, long ttlMillis) throws IOException;
+
+    void put(String key, String value, long ttlMillis) throws IOException;
+
+    /**
+     * @return The value, or null if there is none or it has expired.
+     */
+    String get(String key) throws IOException;
+
+    /**
+     * Atomically gets and deletes key, so at most one caller receives each value.
+     */
+    String take(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    /**
+     * Atomically deletes key if it holds value, so a lock is only released by the caller which took it.
+     *
+     * @return Whether key was deleted.
+     */
+    boolean deleteIfEquals(String key, String value) throws IOException;
+
+    void deletePrefix(String prefix) throws IOException;
+
+    /**
+     * @param ttlMillis Applied when the counter is created, not refreshed by later increments.
+     * @return The counter's new value.
+     */
+    long increment(String key, long ttlMillis) throws IOException;
+
+    /**
+     * Appends a timestamp to the event list at key, discarding events older than retainMillis.
+     */
+    void addEvent(String key, long time, long retainMillis) throws IOException;
+
+    /**
+     * @return Timestamps of events at key no older than since, oldest first.
+     */
+    List<Long> getEvents(String key, long since) throws IOException;
+
+    /**
+     * @param json The "state_store" section of .env.json, or null for an in-process store.
+     */
+    static StateStore fromJSON(JSONObject json) {
+        if (json == null) return new LocalStateStore();
+        String type = json.optString("type", "local").toLowerCase(Locale.ROOT);
+        return switch (type) {
+            case "local" -> new LocalStateStore();
+            case "redis" -> RedisStateStore.fromJSON(json);
+            default -> throw new IllegalArgumentException("Unknown state store type: " + type);
+        };
+    }
+}
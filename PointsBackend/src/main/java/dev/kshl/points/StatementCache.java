@@ -0,0 +1,108 @@
+package dev.kshl.points;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of prepared statements for a single connection, keyed by SQL text. Statements
+ * are closed when they're evicted. Caches are tracked per connection, and the caches of connections that have since
+ * been recycled and closed are dropped whenever a cache is created for a new connection.
+ * <p>
+ * Like the connection itself, a cache must only be used by one thread at a time.
+ */
+public class StatementCache {
+    private static final int MAX_STATEMENTS = 64;
+    private static final Map<Connection, StatementCache> caches = new IdentityHashMap<>();
+
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= MAX_STATEMENTS) return false;
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+
+    private StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    public static StatementCache of(Connection connection) {
+        synchronized (caches) {
+            StatementCache cache = caches.get(connection);
+            if (cache == null) {
+                caches.entrySet().removeIf(entry -> isClosed(entry.getKey()));
+                caches.put(connection, cache = new StatementCache(connection));
+            }
+            return cache;
+        }
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            statement.clearParameters();
+            return statement;
+        }
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+        return statement;
+    }
+
+    public static <T> T query(Connection connection, String sql, ReadConnectionPool.ResultSetFunction<T> function, Object... args) throws SQLException {
+        PreparedStatement statement = of(connection).prepare(sql);
+        bind(statement, args);
+        try (ResultSet rs = statement.executeQuery()) {
+            return function.apply(rs);
+        }
+    }
+
+    public static int executeUpdate(Connection connection, String sql, Object... args) throws SQLException {
+        PreparedStatement statement = of(connection).prepare(sql);
+        bind(statement, args);
+        return statement.executeUpdate();
+    }
+
+    public static void bind(PreparedStatement statement, Object... args) throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            statement.setObject(i + 1, args[i]);
+        }
+    }
+
+    public void close() {
+        statements.values().forEach(StatementCache::closeQuietly);
+        statements.clear();
+        synchronized (caches) {
+            caches.remove(connection);
+        }
+    }
+
+    public static void close(Connection connection) {
+        StatementCache cache;
+        synchronized (caches) {
+            cache = caches.get(connection);
+        }
+        if (cache != null) cache.close();
+    }
+
+    private static boolean isClosed(Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the built frontend (points-frontend/build) so one process can host the whole app. Each file is described once
+ * by its size, modification time and a strong ETag over its bytes, and is re-described if either changes on disk.
+ * <p>
+ * Precompressed siblings ({@code app.js.br}, {@code app.js.gz}) are preferred when the client accepts them, each
+ * with its own ETag. Files whose names contain a content hash, as the build emits for everything under static/, are
+ * cached by clients forever; everything else must be revalidated, which costs a 304 when unchanged.
+ * <p>
+ * Small files are kept in memory in an LRU bounded by total bytes. Larger ones are memory-mapped, copied out once per
+ * version and kept until the file changes, so they are read from the page cache rather than through the heap in
+ * chunks, and never more than once. Only the build's few large files (sounds, source maps) take this path.
+ */
+public class StaticAssets {
+    private static final Pattern HASHED_NAME = Pattern.compile(".*[.-][0-9a-f]{8,}\\.(chunk\\.)?[a-z0-9]+$");
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("otf", "font/otf"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("wav", "audio/wav"),
+            Map.entry("ogg", "audio/ogg")
+    );
+
+    private final Path root;
+    private final long cacheBytes;
+    private final long maxCachedFileBytes;
+    private final boolean spaFallback;
+    private final Map<Path, Descriptor> descriptors = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private long cachedBytes;
+    private final Map<Path, Cached> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Cached> large = new ConcurrentHashMap<>();
+
+    /**
+     * @param body    The bytes to send, or null for a 304.
+     * @param headers Content-Type, Cache-Control, ETag, Vary and, if precompressed, Content-Encoding.
+     */
+    public record Asset(byte[] body, Map<String, String> headers) {
+        public boolean notModified() {
+            return body == null;
+        }
+    }
+
+    private record Descriptor(long size, long modified, String etag) {
+    }
+
+    /**
+     * @param etag The ETag of bytes, so a cached copy is only served for the version of the file it was read from.
+     */
+    private record Cached(String etag, byte[] bytes) {
+    }
+
+    /**
+     * @param cacheBytes         Total bytes of small files kept in memory.
+     * @param maxCachedFileBytes Files larger than this are kept outside the LRU, one copy each.
+     * @param spaFallback        Whether unknown paths without an extension are served index.html, for client-side routes.
+     */
+    public StaticAssets(File root, long cacheBytes, long maxCachedFileBytes, boolean spaFallback) throws IOException {
+        this.root = root.toPath().toRealPath();
+        this.cacheBytes = cacheBytes;
+        this.maxCachedFileBytes = maxCachedFileBytes;
+        this.spaFallback = spaFallback;
+    }
+
+    /**
+     * @param json The "static" section of the server config. If null, static assets aren't served.
+     */
+    public static StaticAssets fromJSON(JSONObject json) throws IOException {
+        if (json == null) return null;
+        return new StaticAssets(new File(json.optString("directory", "../points-frontend/build")),
+                json.optLong("cache_bytes", 32L << 20),
+                json.optLong("cache_max_file_bytes", 512L << 10),
+                json.optBoolean("spa_fallback", true));
+    }
+
+    /**
+     * @param path           The request path, e.g. /static/js/main.1a2b3c4d.js
+     * @param acceptEncoding The Accept-Encoding header, or null.
+     * @param ifNoneMatch    The If-None-Match header, or null.
+     * @return The asset, or null if there's no such file.
+     */
+    public Asset get(String path, String acceptEncoding, String ifNoneMatch) throws IOException {
+        Path file = resolve(path);
+        if (file == null) return null;
+
+        String name = file.getFileName().toString();
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", CONTENT_TYPES.getOrDefault(extension(name), "application/octet-stream"));
+        headers.put("Cache-Control", HASHED_NAME.matcher(name.toLowerCase(Locale.ROOT)).matches() ? IMMUTABLE : REVALIDATE);
+        headers.put("Vary", "Accept-Encoding");
+
+        Path representation = file;
+        for (String encoding : new String[]{"br", "gzip"}) {
+            if (!accepts(acceptEncoding, encoding)) continue;
+            Path compressed = file.resolveSibling(name + (encoding.equals("br") ? ".br" : ".gz"));
+            if (Files.isRegularFile(compressed)) {
+                representation = compressed;
+                headers.put("Content-Encoding", encoding);
+                break;
+            }
+        }
+
+        Descriptor descriptor = describe(representation);
+        if (descriptor == null) return null;
+        if (ifNoneMatch != null && matches(ifNoneMatch, descriptor.etag())) {
+            headers.put("ETag", descriptor.etag());
+            return new Asset(null, headers);
+        }
+        // The file may have changed since it was described, so the ETag is always that of the bytes sent
+        Cached content = read(representation, descriptor);
+        headers.put("ETag", content.etag());
+        return new Asset(content.bytes(), headers);
+    }
+
+    /**
+     * @return The file under root for path, or null if there isn't one or path tries to leave root.
+     */
+    private Path resolve(String path) {
+        if (path == null || path.indexOf('\0') >= 0 || path.indexOf('\\') >= 0) return null;
+        String relative = path.startsWith("/") ? path.substring(1) : path;
+        if (relative.isEmpty()) relative = "index.html";
+        for (String segment : relative.split("/")) {
+            if (segment.equals("..")) return null;
+        }
+        // Precompressed siblings are chosen by Accept-Encoding, never requested by name
+        if (relative.endsWith(".br") || relative.endsWith(".gz")) return null;
+
+        Path file = root.resolve(relative).normalize();
+        if (!file.startsWith(root)) return null;
+        if (Files.isRegularFile(file)) return file;
+        if (spaFallback && extension(file.getFileName().toString()).isEmpty()) {
+            Path index = root.resolve("index.html");
+            if (Files.isRegularFile(index)) return index;
+        }
+        return null;
+    }
+
+    private Descriptor describe(Path file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        Descriptor descriptor = descriptors.get(file);
+        if (descriptor != null && descriptor.size() == size && descriptor.modified() == modified) {
+            return descriptor;
+        }
+
+        String etag;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            etag = etag(size > 0 ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : ByteBuffer.allocate(0));
+        }
+        descriptor = new Descriptor(size, modified, etag);
+        descriptors.put(file, descriptor);
+        return descriptor;
+    }
+
+    /**
+     * @return A strong ETag over the remaining bytes of buffer: the first 128 bits of their SHA-256, quoted.
+     */
+    private static String etag(ByteBuffer buffer) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(buffer);
+        return '"' + HexFormat.of().formatHex(digest.digest(), 0, 16) + '"';
+    }
+
+    /**
+     * @return The file's bytes and their ETag, from memory if they're still the version descriptor describes.
+     */
+    private Cached read(Path file, Descriptor descriptor) throws IOException {
+        boolean small = descriptor.size() <= maxCachedFileBytes;
+        Cached cached;
+        if (small) {
+            synchronized (cache) {
+                cached = cache.get(file);
+            }
+        } else {
+            cached = large.get(file);
+        }
+        if (cached != null && cached.etag().equals(descriptor.etag())) {
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+        cacheMisses.incrementAndGet();
+
+        byte[] bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes = new byte[(int) channel.size()];
+            if (bytes.length > 0) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes.length);
+                mapped.get(bytes);
+            }
+        }
+        // Stored under their own ETag rather than the descriptor's, so a lookup for the other version misses instead of
+        // being served these bytes. If they differ, the file changed after it was described, so describe it again.
+        cached = new Cached(etag(ByteBuffer.wrap(bytes)), bytes);
+        if (!cached.etag().equals(descriptor.etag())) {
+            descriptors.remove(file, descriptor);
+        }
+        if (!small) {
+            large.put(file, cached);
+            return cached;
+        }
+        synchronized (cache) {
+            Cached previous = cache.put(file, cached);
+            cachedBytes += bytes.length - (previous == null ? 0 : previous.bytes().length);
+            Iterator<Cached> eldest = cache.values().iterator();
+            while (cachedBytes > cacheBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().bytes().length;
+                eldest.remove();
+            }
+        }
+        return cached;
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) return false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            if (!params[0].trim().equalsIgnoreCase(encoding)) continue;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package dev.kshl.points;
+
+/**
+ * Input checks for values taken from requests. Every check caps the length first and then makes a single pass over the
+ * input, so the cost of a request is bounded no matter what it contains. None of them use regular expressions.
+ */
+public final class Validators {
+    /**
+     * The longest address which fits in an SMTP path (RFC 5321 4.5.3.1.3).
+     */
+    public static final int MAX_EMAIL_LENGTH = 254;
+    public static final int MIN_USERNAME_LENGTH = 4;
+    public static final int MAX_USERNAME_LENGTH = 20;
+    public static final int MIN_EMAIL_CODE_LENGTH = 6;
+    public static final int MAX_EMAIL_CODE_LENGTH = 16;
+    public static final int MAX_RESET_CODE_LENGTH = 64;
+
+    // Character classes, indexed by ASCII code
+    private static final boolean[] ATEXT = new boolean[128];
+    private static final boolean[] QTEXT = new boolean[128];
+    private static final boolean[] QUOTED_PAIR = new boolean[128];
+    private static final boolean[] DTEXT = new boolean[128];
+    private static final boolean[] LABEL = new boolean[128];
+    private static final boolean[] USERNAME = new boolean[128];
+    private static final boolean[] PASSWORD = new boolean[128];
+
+    static {
+        set(ATEXT, 'a', 'z');
+        set(ATEXT, '0', '9');
+        for (char c : "!#$%&'*+/=?^_`{|}~-".toCharArray()) ATEXT[c] = true;
+
+        set(QTEXT, 0x01, 0x08);
+        set(QTEXT, 0x0b, 0x0c);
+        set(QTEXT, 0x0e, 0x1f);
+        QTEXT[0x21] = true;
+        set(QTEXT, 0x23, 0x5b);
+        set(QTEXT, 0x5d, 0x7f);
+
+        set(QUOTED_PAIR, 0x01, 0x09);
+        set(QUOTED_PAIR, 0x0b, 0x0c);
+        set(QUOTED_PAIR, 0x0e, 0x7f);
+
+        set(DTEXT, 0x01, 0x08);
+        set(DTEXT, 0x0b, 0x0c);
+        set(DTEXT, 0x0e, 0x1f);
+        set(DTEXT, 0x21, 0x7f);
+
+        set(LABEL, 'a', 'z');
+        set(LABEL, '0', '9');
+
+        set(USERNAME, 'a', 'z');
+        set(USERNAME, 'A', 'Z');
+        set(USERNAME, '0', '9');
+        USERNAME['_'] = true;
+
+        set(PASSWORD, 'a', 'z');
+        set(PASSWORD, 'A', 'Z');
+        set(PASSWORD, '0', '9');
+        for (char c : "_- \t\n\u000b\f\r!@#$%^&*()+=`~'\";[]{},.<>/?\\|".toCharArray()) PASSWORD[c] = true;
+    }
+
+    private Validators() {
+    }
+
+    private static void set(boolean[] table, int from, int to) {
+        for (int c = from; c <= to; c++) table[c] = true;
+    }
+
+    private static boolean in(boolean[] table, char c) {
+        return c < 128 && table[c];
+    }
+
+    /**
+     * Accepts exactly what {@link MailHelper#EMAIL_PATTERN} does (the RFC 5322 grammar, lower case only), up to
+     * {@link #MAX_EMAIL_LENGTH} characters.
+     */
+    public static boolean isEmail(String email) {
+        if (email == null || email.isEmpty() || email.length() > MAX_EMAIL_LENGTH) return false;
+        int at = localPartEnd(email);
+        if (at < 0 || at >= email.length() || email.charAt(at) != '@') return false;
+        int start = at + 1;
+        if (start < email.length() && email.charAt(start) == '[') {
+            return isDomainLiteral(email, start + 1);
+        }
+        return isHostname(email, start);
+    }
+
+    /**
+     * @return The index just past the local part, or -1 if there isn't a valid one.
+     */
+    private static int localPartEnd(String s) {
+        int i = 0;
+        if (s.charAt(0) == '"') {
+            i = 1;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if (c == '"') return i + 1;
+                if (c == '\\') {
+                    if (i + 1 >= s.length() || !in(QUOTED_PAIR, s.charAt(i + 1))) return -1;
+                    i += 2;
+                } else if (in(QTEXT, c)) {
+                    i++;
+                } else {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+        // Dot-atom: atoms separated by single dots
+        boolean atomStarted = false;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (in(ATEXT, c)) {
+                atomStarted = true;
+            } else if (c == '.') {
+                if (!atomStarted) return -1;
+                atomStarted = false;
+            } else {
+                break;
+            }
+            i++;
+        }
+        return atomStarted ? i : -1;
+    }
+
+    /**
+     * Two or more dot separated labels of lower case letters, digits and inner hyphens, running to the end of s.
+     */
+    private static boolean isHostname(String s, int i) {
+        int labels = 0;
+        while (true) {
+            int end = labelEnd(s, i);
+            if (end < 0) return false;
+            labels++;
+            if (end == s.length()) return labels >= 2;
+            if (s.charAt(end) != '.') return false;
+            i = end + 1;
+        }
+    }
+
+    /**
+     * @return The index just past the label starting at i, or -1 if there isn't one.
+     */
+    private static int labelEnd(String s, int i) {
+        if (i >= s.length() || !in(LABEL, s.charAt(i))) return -1;
+        int lastAlphanumeric = i++;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (in(LABEL, c)) lastAlphanumeric = i;
+            else if (c != '-') break;
+            i++;
+        }
+        // A trailing run of hyphens isn't part of the label
+        return lastAlphanumeric + 1;
+    }
+
+    /**
+     * The inside of {@code [...]}, starting after the bracket: three octets and dots, then either a fourth octet or a
+     * tag, a colon and general text.
+     */
+    private static boolean isDomainLiteral(String s, int i) {
+        if (s.charAt(s.length() - 1) != ']') return false;
+        final int close = s.length() - 1;
+        for (int octet = 0; octet < 3; octet++) {
+            i = octetEnd(s, i, close);
+            if (i < 0 || i >= close || s.charAt(i) != '.') return false;
+            i++;
+        }
+        int end = octetEnd(s, i, close);
+        if (end == close) return true;
+        return isTaggedLiteral(s, i, close);
+    }
+
+    /**
+     * @return The index just past a decimal 0-255 without leading zeros starting at i, or -1.
+     */
+    private static int octetEnd(String s, int i, int limit) {
+        int value = 0;
+        int digits = 0;
+        while (i + digits < limit && digits < 3) {
+            char c = s.charAt(i + digits);
+            if (c < '0' || c > '9') break;
+            if (digits == 1 && value == 0) break;
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        if (digits == 0) return -1;
+        if (value > 255) digits--;
+        return i + digits;
+    }
+
+    /**
+     * {@code [a-z0-9-]*[a-z0-9]} then a colon, then one or more of general text or backslash escapes up to close.
+     */
+    private static boolean isTaggedLiteral(String s, int i, int close) {
+        int colon = -1;
+        for (int j = i; j < close; j++) {
+            char c = s.charAt(j);
+            if (c == ':') {
+                colon = j;
+                break;
+            }
+            if (c != '-' && !in(LABEL, c)) return false;
+        }
+        if (colon <= i || s.charAt(colon - 1) == '-') return false;
+        if (colon + 1 >= close) return false;
+
+        // Backslash is itself general text, so track both readings of one: as text, or as the start of an escape
+        boolean atBoundary = true;
+        boolean inEscape = false;
+        for (int j = colon + 1; j < close; j++) {
+            char c = s.charAt(j);
+            boolean nextBoundary = (atBoundary && in(DTEXT, c)) || (inEscape && in(QUOTED_PAIR, c));
+            boolean nextEscape = atBoundary && c == '\\';
+            if (!nextBoundary && !nextEscape) return false;
+            atBoundary = nextBoundary;
+            inEscape = nextEscape;
+        }
+        return atBoundary;
+    }
+
+    /**
+     * Letters, digits and underscores, between {@link #MIN_USERNAME_LENGTH} and {@link #MAX_USERNAME_LENGTH}
+     * characters.
+     */
+    public static boolean isUsername(String username) {
+        if (username == null || username.length() < MIN_USERNAME_LENGTH || username.length() > MAX_USERNAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            if (!in(USERNAME, username.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * An account verification code: ASCII digits, between {@link #MIN_EMAIL_CODE_LENGTH} and
+     * {@link #MAX_EMAIL_CODE_LENGTH} of them.
+     */
+    public static boolean isEmailCode(String code) {
+        if (code == null || code.length() < MIN_EMAIL_CODE_LENGTH || code.length() > MAX_EMAIL_CODE_LENGTH) return false;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * A password reset code: visible ASCII, at most {@link #MAX_RESET_CODE_LENGTH} characters.
+     */
+    public static boolean isResetCode(String code) {
+        if (code == null || code.isEmpty() || code.length() > MAX_RESET_CODE_LENGTH) return false;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c <= ' ' || c >= 0x7f) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether c may appear in a password: ASCII letters, digits, whitespace and the symbols on a US keyboard.
+     */
+    public static boolean isPasswordCharacter(char c) {
+        return in(PASSWORD, c);
+    }
+}
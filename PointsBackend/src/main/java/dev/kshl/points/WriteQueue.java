@@ -0,0 +1,308 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Funnels writes through a single thread, which commits everything queued since its last commit in one transaction, so
+ * concurrent writers share an fsync instead of each paying for their own. Each write runs in its own savepoint, so one
+ * failing rolls back only itself. A caller is only answered once the batch holding its write has committed, so a
+ * write that returned is exactly as durable as it was when it committed alone. Only writes submitted here are
+ * batched: anything writing through the connection manager directly commits on its own, as before.
+ * <p>
+ * A write may also have a callback which runs on the writer once its batch has committed, in the order the writes ran
+ * and before any caller is answered, for anything which must see writes in commit order.
+ * <p>
+ * When the queue is full, or a write is still queued when its caller stops waiting, it is rejected with a
+ * {@link RejectedExecutionException} and never runs. The web server turns that into a 503.
+ */
+public class WriteQueue implements AutoCloseable {
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int CANCELLED = 2;
+
+    private final TransactionRunner runner;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final int maxQueued;
+    private final Queue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface Batch {
+        void run(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Runs a batch in one transaction and commits it.
+     */
+    @FunctionalInterface
+    public interface TransactionRunner {
+        void run(Batch batch) throws SQLException, BusyException;
+    }
+
+    public static final class Task<T> {
+        private final Work<T> work;
+        private final Consumer<T> onCommit;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final long submitted = System.nanoTime();
+        private volatile long started;
+        private volatile long finished;
+        private T result;
+        private Throwable error;
+
+        private Task(Work<T> work, Consumer<T> onCommit) {
+            this.work = work;
+            this.onCommit = onCommit;
+        }
+
+        /**
+         * @return How long the write waited in the queue, so far if it hasn't started.
+         */
+        public long getWaitNanos() {
+            return (started == 0 ? System.nanoTime() : started) - submitted;
+        }
+
+        /**
+         * @return How long from the write starting to its batch committing, or 0 if it never ran.
+         */
+        public long getExecuteNanos() {
+            return started == 0 || finished == 0 ? 0 : finished - started;
+        }
+    }
+
+    /**
+     * @param windowMicros How long the writer waits for more writes after the first of a batch arrives. With 0, a batch
+     *                     is whatever queued up while the previous one was committing, which adds no latency.
+     * @param maxBatch     Writes per transaction.
+     * @param maxQueued    Writes which may wait for the writer before further ones are rejected.
+     */
+    public WriteQueue(String name, TransactionRunner runner, long windowMicros, int maxBatch, int maxQueued) {
+        this.runner = runner;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxQueued = Math.max(1, maxQueued);
+        this.writer = new Thread(this::run, "WriteQueue-" + name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues work to run on the writer. Wait for it with {@link #await(Task, long)}.
+     *
+     * @throws RejectedExecutionException If the queue is full or closed.
+     */
+    public <T> Task<T> submit(Work<T> work) {
+        return submit(work, null);
+    }
+
+    /**
+     * Like {@link #submit(Work)}, passing what work returned to onCommit on the writer once its batch commits. onCommit
+     * doesn't run if the write fails, and must be quick, since the writer waits for it.
+     */
+    public <T> Task<T> submit(Work<T> work, Consumer<T> onCommit) {
+        if (closed) throw new RejectedExecutionException("Write queue is closed");
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw new RejectedExecutionException("Write queue is full");
+        }
+        Task<T> task = new Task<>(work, onCommit);
+        queue.offer(task);
+        LockSupport.unpark(writer);
+        return task;
+    }
+
+    /**
+     * Waits for task's batch to commit.
+     *
+     * @param waitMillis How long the write may wait in the queue. Once it has started, its outcome is always waited for.
+     * @return What the work returned.
+     * @throws RejectedExecutionException If the write was still queued after waitMillis, in which case it never runs.
+     */
+    public <T> T await(Task<T> task, long waitMillis) throws SQLException, BusyException {
+        boolean interrupted = false;
+        try {
+            try {
+                return task.future.get(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (task.state.compareAndSet(QUEUED, CANCELLED)) {
+                    throw new RejectedExecutionException("Timed out waiting for the writer");
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                if (task.state.compareAndSet(QUEUED, CANCELLED)) {
+                    throw new SQLException("Interrupted waiting for the writer", e);
+                }
+            }
+            // It's already running, so report what actually happened to it
+            while (true) {
+                try {
+                    return task.future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException sqlException) throw sqlException;
+            if (cause instanceof BusyException busyException) throw busyException;
+            if (cause instanceof RuntimeException runtimeException) throw runtimeException;
+            if (cause instanceof Error error) throw error;
+            throw new SQLException(cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Task<?>> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            if (queue.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (windowNanos > 0) {
+                final long deadline = System.nanoTime() + windowNanos;
+                long remaining;
+                while (queued.get() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            Task<?> task;
+            while (batch.size() < maxBatch && (task = queue.poll()) != null) {
+                queued.decrementAndGet();
+                if (task.state.compareAndSet(QUEUED, RUNNING)) batch.add(task);
+            }
+            if (!batch.isEmpty()) commit(batch);
+            batch.clear();
+        }
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            task.future.completeExceptionally(new RejectedExecutionException("Write queue is closed"));
+        }
+    }
+
+    private void commit(List<Task<?>> batch) {
+        try {
+            runner.run(connection -> {
+                for (Task<?> task : batch) {
+                    task.started = System.nanoTime();
+                    task.error = null;
+                    Savepoint savepoint = connection.setSavepoint();
+                    try {
+                        apply(task, connection);
+                        connection.releaseSavepoint(savepoint);
+                    } catch (SQLException | RuntimeException e) {
+                        // If this throws, the transaction itself is broken and the whole batch fails below
+                        connection.rollback(savepoint);
+                        task.error = e;
+                    }
+                }
+            });
+        } catch (Throwable e) {
+            // Nothing in the batch was committed
+            for (Task<?> task : batch) {
+                task.finished = System.nanoTime();
+                task.future.completeExceptionally(e);
+            }
+            return;
+        }
+        batches.increment();
+        committed.add(batch.size());
+        for (Task<?> task : batch) {
+            committed(task);
+        }
+        long now = System.nanoTime();
+        for (Task<?> task : batch) {
+            task.finished = now;
+            complete(task);
+        }
+    }
+
+    private static <T> void committed(Task<T> task) {
+        if (task.error != null || task.onCommit == null) return;
+        try {
+            task.onCommit.accept(task.result);
+        } catch (RuntimeException e) {
+            Main.print("Write callback failed", e);
+        }
+    }
+
+    private static <T> void apply(Task<T> task, Connection connection) throws SQLException {
+        task.result = task.work.apply(connection);
+    }
+
+    private static <T> void complete(Task<T> task) {
+        if (task.error != null) {
+            task.future.completeExceptionally(task.error);
+        } else {
+            task.future.complete(task.result);
+        }
+    }
+
+    /**
+     * @return Writes waiting for the writer.
+     */
+    public int getQueued() {
+        return Math.max(0, queued.get());
+    }
+
+    /**
+     * @return Transactions committed.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return Writes committed, whether or not they succeeded.
+     */
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    /**
+     * Stops the writer once the batch it's running commits. Writes still queued are rejected.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Waits for the writer to stop after {@link #close()}.
+     *
+     * @return Whether it stopped within millis.
+     */
+    public boolean awaitTermination(long millis) throws InterruptedException {
+        writer.join(millis);
+        return !writer.isAlive();
+    }
+}
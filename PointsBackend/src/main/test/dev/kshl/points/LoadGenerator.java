@@ -0,0 +1,414 @@
+package dev.kshl.points;
+
+import dev.kshl.kshlib.exceptions.BusyException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Boots a {@link PointsWebServer} on a throwaway database and drives it over HTTP with many concurrent clients, each
+ * replaying a weighted mix of logins, list fetches, point taps, reorders and signups. Reports latency quantiles and
+ * throughput per operation.
+ * <p>
+ * Every client gets its own accounts and its own address via X-Forwarded-For, so per-sender rate limits apply per
+ * client just as they would to real users. Requests shed with 429 or 503 are counted separately from errors.
+ * <p>
+ * Run from the command line with {@code key=value} arguments matching {@link Config#fromArgs(String...)}, e.g.
+ * {@code clients=200 duration=60 think=250 mix=login:2,list:50,tap:35,reorder:10,signup:3}.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "LoadTest_Password1";
+    private static final int POINTS_PER_ACCOUNT = 8;
+
+    public enum Operation {LOGIN, LIST, TAP, REORDER, SIGNUP}
+
+    /**
+     * Relative weights of each operation. A client picks its next operation at random by weight.
+     */
+    public record Mix(int login, int list, int tap, int reorder, int signup) {
+        public static final Mix DEFAULT = new Mix(2, 50, 35, 10, 3);
+
+        /**
+         * @param mix For example {@code login:2,list:50,tap:35,reorder:10,signup:3}. Omitted operations get 0.
+         */
+        public static Mix parse(String mix) {
+            int[] weights = new int[Operation.values().length];
+            for (String part : mix.split(",")) {
+                String[] kv = part.split(":");
+                if (kv.length != 2) throw new IllegalArgumentException("Invalid mix entry: " + part);
+                weights[Operation.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(kv[1].trim());
+            }
+            return new Mix(weights[0], weights[1], weights[2], weights[3], weights[4]);
+        }
+
+        private int weight(Operation operation) {
+            return switch (operation) {
+                case LOGIN -> login;
+                case LIST -> list;
+                case TAP -> tap;
+                case REORDER -> reorder;
+                case SIGNUP -> signup;
+            };
+        }
+
+        Operation pick() {
+            int total = 0;
+            for (Operation operation : Operation.values()) total += weight(operation);
+            if (total <= 0) throw new IllegalArgumentException("Mix has no weight");
+            int roll = ThreadLocalRandom.current().nextInt(total);
+            for (Operation operation : Operation.values()) {
+                roll -= weight(operation);
+                if (roll < 0) return operation;
+            }
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * @param clients        Concurrent clients, each on its own thread.
+     * @param durationMillis How long clients run for, including their first login.
+     * @param thinkMillis    Pause between a client's requests.
+     * @param serverConfig   Passed to the server as the "server" section of .env.json.
+     */
+    public record Config(int clients, long durationMillis, long thinkMillis, Mix mix, JSONObject serverConfig) {
+        public static Config fromArgs(String... args) {
+            int clients = 100;
+            long duration = 30000;
+            long think = 250;
+            Mix mix = Mix.DEFAULT;
+            JSONObject serverConfig = new JSONObject();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+                String value = arg.substring(eq + 1);
+                switch (arg.substring(0, eq)) {
+                    case "clients" -> clients = Integer.parseInt(value);
+                    case "duration" -> duration = Long.parseLong(value) * 1000L;
+                    case "think" -> think = Long.parseLong(value);
+                    case "mix" -> mix = Mix.parse(value);
+                    case "server" -> serverConfig = new JSONObject(value);
+                    default -> throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+            return new Config(clients, duration, think, mix, serverConfig);
+        }
+    }
+
+    private static class OperationStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    public record OperationReport(Operation operation, long ok, long shed, long errors, long p50Micros, long p99Micros,
+                                  long p999Micros, long maxMicros) {
+    }
+
+    public record Report(int clients, long elapsedMillis, List<OperationReport> operations) {
+        public long total() {
+            return operations.stream().mapToLong(o -> o.ok() + o.shed() + o.errors()).sum();
+        }
+
+        public long errors() {
+            return operations.stream().mapToLong(OperationReport::errors).sum();
+        }
+
+        public long shed() {
+            return operations.stream().mapToLong(OperationReport::shed).sum();
+        }
+
+        public double throughput() {
+            return elapsedMillis == 0 ? 0 : total() * 1000D / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder(String.format("%d clients, %.1fs, %d requests, %.1f req/s, %d shed, %d errors%n",
+                    clients, elapsedMillis / 1000D, total(), throughput(), shed(), errors()));
+            out.append(String.format("%-8s %8s %6s %6s %9s %9s %9s %9s%n", "op", "ok", "shed", "err", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+            for (OperationReport o : operations) {
+                out.append(String.format("%-8s %8d %6d %6d %9.2f %9.2f %9.2f %9.2f%n", o.operation(), o.ok(), o.shed(), o.errors(),
+                        o.p50Micros() / 1000D, o.p99Micros() / 1000D, o.p999Micros() / 1000D, o.maxMicros() / 1000D));
+            }
+            return out.toString();
+        }
+    }
+
+    private final Config config;
+    private final OperationStats[] stats = new OperationStats[Operation.values().length];
+    private final AtomicInteger signups = new AtomicInteger();
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private SQLManager sqlManager;
+    private URI base;
+
+    public LoadGenerator(Config config) {
+        this.config = config;
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new OperationStats();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(new LoadGenerator(Config.fromArgs(args)).run());
+    }
+
+    public Report run() throws Exception {
+        File dir = Files.createTempDirectory("points-load").toFile();
+        sqlManager = new SQLManager(new File(dir, "load.db"));
+        sqlManager.init();
+        PointsWebServer server = null;
+        try {
+            for (int i = 0; i < config.clients(); i++) {
+                createAccount(i);
+            }
+
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            base = URI.create("http://127.0.0.1:" + port);
+            server = new PointsWebServer(port, sqlManager, new StubEmailChallenger(), 1, config.serverConfig()) {
+                @Override
+                protected long getLoginDelayTime() {
+                    return 0; // The brute force delay would otherwise dominate login latency
+                }
+            };
+            Thread serverThread = new Thread(server, "LoadGenerator-Server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            awaitListening(port);
+
+            ExecutorService executor = Executors.newFixedThreadPool(config.clients());
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                final long start = System.currentTimeMillis();
+                final long deadline = start + config.durationMillis();
+                for (int i = 0; i < config.clients(); i++) {
+                    final int client = i;
+                    futures.add(executor.submit(() -> {
+                        new Client(client).run(deadline);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                return report(System.currentTimeMillis() - start);
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            if (server != null) server.close();
+            sqlManager.close();
+            for (File file : Optional.ofNullable(dir.listFiles()).orElse(new File[0])) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+
+    private void createAccount(int client) throws SQLException, BusyException {
+        int uid = sqlManager.getUIDManager().getIDOpt("load" + client, true).orElseThrow();
+        sqlManager.createAccount(uid, "load" + client + "@load.test");
+        sqlManager.getValidatedAccountsManager().add(uid);
+        sqlManager.getPasswordManager().setPassword(uid, PASSWORD, 0);
+        sqlManager.addAll(uid, Collections.nCopies(POINTS_PER_ACCOUNT, ""));
+    }
+
+    private static void awaitListening(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (true) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private Report report(long elapsedMillis) {
+        List<OperationReport> operations = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            OperationStats stats = this.stats[operation.ordinal()];
+            operations.add(new OperationReport(operation, stats.ok.sum(), stats.shed.sum(), stats.errors.sum(),
+                    stats.latency.getValueAtQuantile(0.5), stats.latency.getValueAtQuantile(0.99),
+                    stats.latency.getValueAtQuantile(0.999), stats.latency.getMaxMicros()));
+        }
+        return new Report(config.clients(), elapsedMillis, operations);
+    }
+
+    private class Client {
+        private final int client;
+        private final String address;
+        private String session;
+        private final List<Integer> ids = new ArrayList<>();
+
+        private Client(int client) {
+            this.client = client;
+            this.address = String.format("10.%d.%d.%d", (client >> 16) & 0xFF, (client >> 8) & 0xFF, client & 0xFF);
+        }
+
+        void run(long deadline) throws InterruptedException {
+            while (session == null && System.currentTimeMillis() < deadline) {
+                if (!login()) Thread.sleep(config.thinkMillis() + ThreadLocalRandom.current().nextLong(500));
+            }
+            if (session != null) list();
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(config.thinkMillis());
+                switch (config.mix().pick()) {
+                    case LOGIN -> login();
+                    case LIST -> list();
+                    case TAP -> tap();
+                    case REORDER -> reorder();
+                    case SIGNUP -> signup();
+                }
+            }
+        }
+
+        private boolean login() throws InterruptedException {
+            HttpResponse<String> response = send(Operation.LOGIN, "POST", "/login", null,
+                    new JSONObject().put("username", "load" + client).put("password", PASSWORD));
+            String session = response == null ? null : getSession(response);
+            if (session != null) this.session = session;
+            return session != null;
+        }
+
+        private void list() throws InterruptedException {
+            HttpResponse<String> response = send(Operation.LIST, "GET", "/points/list", session, null);
+            if (response == null || response.statusCode() != 200) return;
+            JSONArray points = new JSONObject(response.body()).getJSONArray("points");
+            ids.clear();
+            for (int i = 0; i < points.length(); i++) {
+                ids.add(points.getJSONObject(i).getInt("id"));
+            }
+        }
+
+        private void tap() throws InterruptedException {
+            if (ids.isEmpty()) return;
+            int id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+            send(Operation.TAP, "POST", "/points/set/points?id=" + id + "&points=" + ThreadLocalRandom.current().nextInt(1000), session, null);
+        }
+
+        private void reorder() throws InterruptedException {
+            if (ids.isEmpty()) return;
+            int id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+            send(Operation.REORDER, "POST", "/points/set/priority?id=" + id + "&up=" + ThreadLocalRandom.current().nextBoolean(), session, null);
+        }
+
+        /**
+         * Creates and verifies a fresh account. The whitelist entry is made directly, outside the timed requests, as
+         * an administrator would ahead of time. Both requests are timed as one signup.
+         */
+        private void signup() throws InterruptedException {
+            String username = "signup" + signups.incrementAndGet();
+            String email = username + "@load.test";
+            try {
+                sqlManager.getEmailWhitelistManager().add(sqlManager.getEmailIDManager().getIDOpt(email, true).orElseThrow());
+            } catch (SQLException | BusyException e) {
+                stats[Operation.SIGNUP.ordinal()].errors.increment();
+                return;
+            }
+            final long start = System.nanoTime();
+            HttpResponse<String> created = send(null, "POST", "/createaccount", null,
+                    new JSONObject().put("username", username).put("password", PASSWORD).put("email", email));
+            String newSession = created == null ? null : getSession(created);
+            HttpResponse<String> verified = newSession == null ? created : send(null, "POST", "/emailcode?code=000000", newSession, null);
+            record(Operation.SIGNUP, verified, System.nanoTime() - start);
+        }
+
+        /**
+         * @param operation The operation to time the request as, or null if the caller records it.
+         * @return The response, or null if the request failed outright.
+         */
+        private HttpResponse<String> send(Operation operation, String method, String path, String session, JSONObject body) throws InterruptedException {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(base.resolve(path))
+                    .timeout(Duration.ofSeconds(30))
+                    .header("X-Forwarded-For", address)
+                    .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body.toString()));
+            if (body != null) builder.header("Content-Type", "application/json");
+            if (session != null) builder.header("Cookie", "session=" + session);
+
+            final long start = System.nanoTime();
+            HttpResponse<String> response;
+            try {
+                response = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                response = null;
+            }
+            if (operation != null) record(operation, response, System.nanoTime() - start);
+            return response;
+        }
+    }
+
+    private void record(Operation operation, HttpResponse<String> response, long nanos) {
+        OperationStats stats = this.stats[operation.ordinal()];
+        stats.latency.recordNanos(nanos);
+        int code = response == null ? -1 : response.statusCode();
+        if (code == 200) {
+            stats.ok.increment();
+        } else if (code == 429 || code == 503) {
+            stats.shed.increment();
+        } else {
+            stats.errors.increment();
+        }
+    }
+
+    private static String getSession(HttpResponse<String> response) {
+        for (String cookie : response.headers().allValues("Set-Cookie")) {
+            for (String part : cookie.split(";")) {
+                part = part.trim();
+                if (part.startsWith("session=") && part.length() > 8) return part.substring(8);
+            }
+        }
+        return null;
+    }
+
+    private static class StubEmailChallenger extends EmailChallenger {
+        StubEmailChallenger() {
+            super(null);
+        }
+
+        @Override
+        public void startChallenge(int uid, String email, boolean resetPassword) {
+        }
+
+        @Override
+        public boolean completeChallenge(int uid, String code) {
+            return true;
+        }
+
+        @Override
+        public int completeResetChallenge(String code) {
+            return -1;
+        }
+    }
+}
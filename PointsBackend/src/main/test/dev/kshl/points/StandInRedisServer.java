@@ -0,0 +1,271 @@
+package dev.kshl.points;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Just enough of a Redis server, on a random local port, to exercise {@link RedisStateStore}. Supports the commands it
+ * uses: SET (PX, NX), GET, GETDEL, DEL, INCR, PEXPIRE, ZADD, ZREMRANGEBYSCORE, ZRANGEBYSCORE, SCAN (MATCH prefix*),
+ * AUTH, SELECT and PING. EVAL runs only RedisStateStore's own scripts, recognised by their text and emulated. All
+ * state is guarded by one lock, so scripts are atomic as they are in Redis.
+ */
+public class StandInRedisServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Long> expiries = new HashMap<>();
+    private final List<Socket> clients = new ArrayList<>();
+
+    public StandInRedisServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(this::accept, "StandInRedisServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                synchronized (clients) {
+                    clients.add(socket);
+                }
+                Thread thread = new Thread(() -> serve(socket), "StandInRedisServer-Client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                List<String> command = readCommand(in);
+                if (command == null) return;
+                String reply;
+                try {
+                    synchronized (values) {
+                        reply = execute(command);
+                    }
+                } catch (RuntimeException e) {
+                    reply = "-ERR " + e.getMessage() + "\r\n";
+                }
+                out.write(reply.getBytes(StandardCharsets.UTF_8));
+                if (in.available() == 0) out.flush();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private String execute(List<String> command) {
+        String key = command.size() > 1 ? command.get(1) : null;
+        if (key != null) expire(key);
+        switch (command.get(0).toUpperCase(Locale.ROOT)) {
+            case "PING":
+                return "+PONG\r\n";
+            case "AUTH":
+            case "SELECT":
+                return "+OK\r\n";
+            case "SET": {
+                long px = 0;
+                boolean nx = false;
+                for (int i = 3; i < command.size(); i++) {
+                    String option = command.get(i).toUpperCase(Locale.ROOT);
+                    if (option.equals("NX")) nx = true;
+                    else if (option.equals("PX")) px = Long.parseLong(command.get(++i));
+                    else throw new IllegalArgumentException("syntax error");
+                }
+                if (nx && values.containsKey(key)) return "$-1\r\n";
+                values.put(key, command.get(2));
+                if (px > 0) expiries.put(key, System.currentTimeMillis() + px);
+                else expiries.remove(key);
+                return "+OK\r\n";
+            }
+            case "GET":
+                return bulk(string(key));
+            case "GETDEL": {
+                String value = string(key);
+                delete(key);
+                return bulk(value);
+            }
+            case "DEL": {
+                int deleted = 0;
+                for (String k : command.subList(1, command.size())) {
+                    expire(k);
+                    if (values.containsKey(k)) deleted++;
+                    delete(k);
+                }
+                return ":" + deleted + "\r\n";
+            }
+            case "INCR": {
+                String value = string(key);
+                long incremented = (value == null ? 0 : Long.parseLong(value)) + 1;
+                values.put(key, String.valueOf(incremented));
+                return ":" + incremented + "\r\n";
+            }
+            case "PEXPIRE": {
+                if (!values.containsKey(key)) return ":0\r\n";
+                expiries.put(key, System.currentTimeMillis() + Long.parseLong(command.get(2)));
+                return ":1\r\n";
+            }
+            case "ZADD": {
+                zset(key).put(command.get(3), Double.parseDouble(command.get(2)));
+                return ":1\r\n";
+            }
+            case "ZREMRANGEBYSCORE": {
+                Map<String, Double> zset = zset(key);
+                int before = zset.size();
+                zset.values().removeIf(score -> inRange(score, command.get(2), command.get(3)));
+                return ":" + (before - zset.size()) + "\r\n";
+            }
+            case "ZRANGEBYSCORE": {
+                Object value = values.get(key);
+                if (value == null) return "*0\r\n";
+                @SuppressWarnings("unchecked") Map<String, Double> zset = (Map<String, Double>) value;
+                List<String> members = new ArrayList<>();
+                zset.entrySet().stream()
+                        .filter(entry -> inRange(entry.getValue(), command.get(2), command.get(3)))
+                        .sorted(Map.Entry.comparingByValue())
+                        .forEach(entry -> members.add(entry.getKey()));
+                return array(members);
+            }
+            case "SCAN": {
+                String pattern = "*";
+                for (int i = 2; i < command.size(); i++) {
+                    if (command.get(i).equalsIgnoreCase("MATCH")) pattern = command.get(++i);
+                    else i++;
+                }
+                if (!pattern.endsWith("*") || pattern.substring(0, pattern.length() - 1).matches(".*(?<!\\\\)[*?\\[].*")) {
+                    throw new IllegalArgumentException("only prefix patterns are supported");
+                }
+                String prefix = pattern.substring(0, pattern.length() - 1).replaceAll("\\\\(.)", "$1");
+                new ArrayList<>(values.keySet()).forEach(this::expire);
+                List<String> keys = values.keySet().stream().filter(k -> k.startsWith(prefix)).toList();
+                return "*2\r\n" + bulk("0") + array(keys);
+            }
+            case "EVAL": {
+                int numKeys = Integer.parseInt(command.get(2));
+                List<String> keys = command.subList(3, 3 + numKeys);
+                List<String> args = command.subList(3 + numKeys, command.size());
+                keys.forEach(this::expire);
+                if (key.equals(RedisStateStore.DELETE_IF_EQUALS_SCRIPT)) {
+                    if (!args.get(0).equals(values.get(keys.get(0)))) return ":0\r\n";
+                    delete(keys.get(0));
+                    return ":1\r\n";
+                }
+                if (key.equals(RedisStateStore.INCREMENT_SCRIPT)) {
+                    String reply = execute(List.of("INCR", keys.get(0)));
+                    if (reply.equals(":1\r\n") && Long.parseLong(args.get(0)) > 0) {
+                        execute(List.of("PEXPIRE", keys.get(0), args.get(0)));
+                    }
+                    return reply;
+                }
+                throw new IllegalArgumentException("unsupported script");
+            }
+            default:
+                throw new IllegalArgumentException("unknown command '" + command.get(0) + "'");
+        }
+    }
+
+    private static boolean inRange(double score, String min, String max) {
+        return compare(score, min, true) && compare(score, max, false);
+    }
+
+    private static boolean compare(double score, String bound, boolean min) {
+        if (bound.equals("-inf")) return true;
+        if (bound.equals("+inf")) return true;
+        boolean exclusive = bound.startsWith("(");
+        double value = Double.parseDouble(exclusive ? bound.substring(1) : bound);
+        if (min) return exclusive ? score > value : score >= value;
+        return exclusive ? score < value : score <= value;
+    }
+
+    private String string(String key) {
+        Object value = values.get(key);
+        if (value != null && !(value instanceof String)) throw new IllegalArgumentException("WRONGTYPE");
+        return (String) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Double> zset(String key) {
+        return (Map<String, Double>) values.computeIfAbsent(key, k -> new TreeMap<String, Double>());
+    }
+
+    private void expire(String key) {
+        Long expires = expiries.get(key);
+        if (expires != null && System.currentTimeMillis() >= expires) delete(key);
+    }
+
+    private void delete(String key) {
+        values.remove(key);
+        expiries.remove(key);
+    }
+
+    private static String bulk(String value) {
+        if (value == null) return "$-1\r\n";
+        return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+    }
+
+    private static String array(List<String> values) {
+        StringBuilder out = new StringBuilder("*").append(values.size()).append("\r\n");
+        values.forEach(value -> out.append(bulk(value)));
+        return out.toString();
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) return null;
+        if (!header.startsWith("*")) throw new IOException("Expected array, got " + header);
+        int length = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            String bulkHeader = readLine(in);
+            if (bulkHeader == null) return null;
+            byte[] bytes = in.readNBytes(Integer.parseInt(bulkHeader.substring(1)));
+            readLine(in);
+            command.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) return null;
+            line.append((char) c);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        in.read();
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestAdaptiveLimiter {
+    @Test
+    public void testBurstOfSlowCompletionsCutsOnce() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(8, 256, 250);
+        for (int i = 0; i < 30; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        // Every one of these was in flight during the same one second stall
+        for (int i = 0; i < 30; i++) {
+            limiter.release(1_000_000_000L, false);
+        }
+        assertEquals(230, limiter.getLimit());
+
+        Thread.sleep(5);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(1_000_000L, true);
+        assertEquals(207, limiter.getLimit(), "A request which started after the cut may cut again");
+    }
+
+    @Test
+    public void testRejectsOverLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 2, 250);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        limiter.release(0, false);
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+    }
+}
@@ -0,0 +1,58 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestBackupManager {
+    @Test
+    public void testBackup(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        sqlManager.addAll(1, List.of("a", "b", "c"));
+
+        File backups = new File(dir, "backups");
+        BackupManager plain = new BackupManager(sqlManager.getSQLiteFile(), backups, false, 0, 0);
+        BackupManager.Backup backup = plain.tryBackup().orElseThrow();
+        assertTrue(backup.file().getName().endsWith(".db"));
+        assertEquals(3, countPoints(backup.file()));
+
+        BackupManager compressed = new BackupManager(sqlManager.getSQLiteFile(), backups, true, 1, 0);
+        sqlManager.add(1, "d");
+        backup = compressed.tryBackup().orElseThrow();
+        assertTrue(backup.file().getName().endsWith(".db.gz"));
+        File restored = new File(dir, "restored.db");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(backup.file()));
+             OutputStream out = new FileOutputStream(restored)) {
+            in.transferTo(out);
+        }
+        assertEquals(4, countPoints(restored));
+
+        String[] remaining = backups.list();
+        assertEquals(1, remaining == null ? 0 : remaining.length, "Older backups should be pruned");
+        sqlManager.close();
+    }
+
+    private static int countPoints(File database) throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM points")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestDatabaseMaintenance {
+    @Test
+    public void testPurgeOrphans(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+
+        int kept = sqlManager.getUIDManager().getIDRequireNew("kept");
+        sqlManager.createAccount(kept, "kept@test.com");
+        sqlManager.addAll(kept, List.of("a", "b"));
+
+        int deleted = sqlManager.getUIDManager().getIDRequireNew("deleted");
+        sqlManager.createAccount(deleted, "deleted@test.com");
+        sqlManager.getAdminManager().add(deleted);
+        sqlManager.deleteAccount(deleted);
+        // Left behind by deleteAccount before it removed everything
+        sqlManager.addAll(deleted, List.of("c", "d", "e"));
+        // A live session is neither orphaned nor expired
+        sqlManager.getTokenManager().generateNew(kept, "127.0.0.1");
+        // One last used longer ago than sessions last is expired
+        sqlManager.getTokenManager().generateNew(kept, "127.0.0.1");
+        execute(sqlManager, "UPDATE sessions SET " + DatabaseMaintenance.SESSION_LAST_USED + "=" + (System.currentTimeMillis() - sqlManager.getTokenManager().getSessionDuration() - 60000)
+                + " WHERE rowid=(SELECT MAX(rowid) FROM sessions)");
+
+        DatabaseMaintenance maintenance = new DatabaseMaintenance(sqlManager, 2, 0, 16, 86400000L, () -> true, 0);
+        DatabaseMaintenance.Report report = maintenance.tryRun().orElseThrow();
+        assertEquals(3, report.deleted().get("points"));
+        assertEquals(1, report.deleted().get("admins"));
+        assertEquals(1, report.deleted().get("email_ids"), "The deleted account's email is no longer referenced");
+        assertEquals(1, report.deleted().get("sessions"), "Only the expired session: " + report.skipped());
+        assertTrue(report.analyzed());
+
+        assertEquals(2, sqlManager.getPeople(kept).size());
+        assertEquals(2, count(sqlManager, "points"));
+        assertEquals(0, count(sqlManager, "admins"));
+        assertTrue(sqlManager.isEmailInUse("kept@test.com"));
+        assertEquals(1, count(sqlManager, "sessions"));
+
+        report = maintenance.tryRun().orElseThrow();
+        assertEquals(0, report.deleted().get("points"));
+        sqlManager.close();
+    }
+
+    @Test
+    public void testPurgeIPs(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+
+        int recent = sqlManager.getIPIDManager().getIDOpt("10.0.0.1", true).orElseThrow();
+        int old = sqlManager.getIPIDManager().getIDOpt("10.0.0.2", true).orElseThrow();
+        int banned = sqlManager.getIPIDManager().getIDOpt("10.0.0.3", true).orElseThrow();
+        int unrecorded = sqlManager.getIPIDManager().getIDOpt("10.0.0.4", true).orElseThrow();
+        for (int ip : List.of(recent, old, banned)) {
+            sqlManager.touchIP(ip);
+        }
+        sqlManager.getBannedIPManager().add(banned);
+        execute(sqlManager, "UPDATE ip_last_seen SET time=0 WHERE ip_id IN (" + old + ", " + banned + ")");
+
+        DatabaseMaintenance maintenance = new DatabaseMaintenance(sqlManager, 2, 0, 16, 86400000L, () -> true, 0);
+        DatabaseMaintenance.Report report = maintenance.tryRun().orElseThrow();
+        assertEquals(1, report.deleted().get("ips"), "Only the IP which is neither banned nor recently seen");
+        assertEquals(1, report.deleted().get("ip_last_seen"));
+        assertTrue(sqlManager.getIPIDManager().getIDOpt("10.0.0.2", false).isEmpty(), "Dropped from the index too");
+        assertEquals(recent, sqlManager.getIPIDManager().getIDOpt("10.0.0.1", false).orElseThrow());
+        assertEquals(banned, sqlManager.getIPIDManager().getIDOpt("10.0.0.3", false).orElseThrow());
+        assertEquals(unrecorded, sqlManager.getIPIDManager().getIDOpt("10.0.0.4", false).orElseThrow(), "IPs with no record are treated as just seen");
+        assertTrue(sqlManager.getBannedIPManager().contains(banned));
+        assertEquals(3, count(sqlManager, "ip_last_seen"));
+        sqlManager.close();
+    }
+
+    private static void execute(SQLManager sqlManager, String sql) throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqlManager.getSQLiteFile().getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static int count(SQLManager sqlManager, String table) throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + sqlManager.getSQLiteFile().getAbsolutePath());
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
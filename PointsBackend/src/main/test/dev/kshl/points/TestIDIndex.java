@@ -0,0 +1,89 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TestIDIndex {
+    @Test
+    public void testIDIndex() {
+        IDIndex index = new IDIndex(1000);
+        for (int i = 1; i <= 500; i++) {
+            index.putID("user" + i, i);
+            index.putValue(i, "user" + i);
+        }
+        assertEquals(500, index.size());
+        for (int i = 1; i <= 500; i++) {
+            assertEquals(i, index.getID("user" + i));
+            assertEquals("user" + i, index.getValue(i));
+        }
+        assertEquals(-1, index.getID("user501"));
+        assertNull(index.getValue(501));
+
+        index.putID("USER7", 7);
+        index.remove(7);
+        assertEquals(-1, index.getID("user7"));
+        assertEquals(-1, index.getID("USER7"));
+        assertNull(index.getValue(7));
+        for (int i = 1; i <= 500; i++) {
+            if (i == 7) continue;
+            assertEquals(i, index.getID("user" + i));
+        }
+    }
+
+    @Test
+    public void testRemoveKeepsProbeChains() {
+        IDIndex index = new IDIndex(100_000);
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(31);
+        for (int i = 1; i <= 20_000; i++) {
+            index.putID("v" + i, i);
+            expected.put("v" + i, i);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            int id = 1 + random.nextInt(20_000);
+            index.remove(id);
+            expected.remove("v" + id);
+        }
+        assertEquals(expected.size(), index.size());
+        for (int i = 1; i <= 20_000; i++) {
+            assertEquals(expected.getOrDefault("v" + i, -1), index.getID("v" + i), "v" + i);
+        }
+    }
+
+    @Test
+    public void testSecondSpellingReplacesFirst() {
+        IDIndex index = new IDIndex(100);
+        index.putID("bob", 3);
+        index.putID("BOB", 3);
+        assertEquals(1, index.size());
+        assertEquals(-1, index.getID("bob"));
+        assertEquals(3, index.getID("BOB"));
+
+        // A value which moves to another ID leaves nothing behind for the old one to remove
+        index.putID("BOB", 4);
+        index.remove(3);
+        assertEquals(4, index.getID("BOB"));
+        index.remove(4);
+        assertEquals(-1, index.getID("BOB"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testCap() {
+        IDIndex index = new IDIndex(10);
+        for (int i = 1; i <= 50; i++) {
+            index.putID("user" + i, i);
+            index.putValue(i, "user" + i);
+        }
+        assertEquals(10, index.size());
+        assertEquals(-1, index.getID("user11"));
+        assertNull(index.getValue(20));
+        assertEquals("user19", index.getValue(19));
+    }
+}
@@ -0,0 +1,34 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestLatencyHistogram {
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(i * 1000L); // 1..1000µs
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMaxMicros());
+        assertWithin(500, histogram.getValueAtQuantile(0.5));
+        assertWithin(990, histogram.getValueAtQuantile(0.99));
+        assertEquals(1000, histogram.getValueAtQuantile(1));
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long micros = 0; micros < 1 << 20; micros += 7) {
+            long upper = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(micros));
+            assertTrue(upper >= micros, micros + " > " + upper);
+            assertTrue(upper <= micros * 1.125 + 1, micros + " is too far from " + upper);
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected * 1.125, "Expected ~" + expected + ", was " + actual);
+    }
+}
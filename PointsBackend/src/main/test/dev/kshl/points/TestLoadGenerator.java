@@ -0,0 +1,38 @@
+package dev.kshl.points;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestLoadGenerator {
+    @Test
+    public void testSmallRun() throws Exception {
+        LoadGenerator.Mix mix = new LoadGenerator.Mix(1, 10, 10, 5, 1);
+        LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Config(8, 3000, 100, mix, new JSONObject())).run();
+
+        assertEquals(8, report.clients());
+        assertTrue(report.elapsedMillis() >= 3000, report::toString);
+        assertEquals(List.of(LoadGenerator.Operation.values()), report.operations().stream().map(LoadGenerator.OperationReport::operation).toList());
+        assertTrue(report.total() > 8 * 10, report::toString);
+        for (LoadGenerator.OperationReport operation : report.operations()) {
+            assertTrue(operation.ok() >= 0 && operation.shed() >= 0 && operation.errors() >= 0, report::toString);
+            if (operation.ok() > 0) {
+                assertTrue(operation.p50Micros() <= operation.p99Micros(), report::toString);
+                assertTrue(operation.p99Micros() <= operation.p999Micros(), report::toString);
+                assertTrue(operation.p999Micros() <= operation.maxMicros(), report::toString);
+            }
+        }
+        LoadGenerator.OperationReport list = report.operations().get(LoadGenerator.Operation.LIST.ordinal());
+        assertTrue(list.ok() > 0, report::toString);
+        assertEquals(2L + report.operations().size(), report.toString().lines().count(), "A summary, a header and a row per operation");
+    }
+
+    @Test
+    public void testParseMix() {
+        assertEquals(new LoadGenerator.Mix(0, 3, 2, 0, 1), LoadGenerator.Mix.parse("list:3, tap:2,signup:1"));
+    }
+}
@@ -0,0 +1,23 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMetrics {
+    @Test
+    public void testCountersAndGauges() {
+        Metrics metrics = new Metrics();
+        metrics.increment("bans");
+        metrics.increment("bans");
+
+        String out = metrics.toPrometheus(Map.of("uid_index_hits", 5L), Map.of("in_flight", 3));
+        assertTrue(out.contains("# TYPE points_bans_total counter\npoints_bans_total 2\n"), out);
+        assertTrue(out.contains("# TYPE points_uid_index_hits_total counter\npoints_uid_index_hits_total 5\n"), out);
+        assertTrue(out.contains("# TYPE points_in_flight gauge\npoints_in_flight 3\n"), out);
+        assertFalse(out.contains("points_uid_index_hits gauge"), out);
+    }
+}
@@ -0,0 +1,58 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestPasswordHasher {
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        PasswordHasher hasher = new PasswordHasher(null, 0, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // One hash running and one queued fill a single thread with a queue of one
+            Future<Integer> running = executor.submit(() -> hasher.submit(() -> {
+                release.await();
+                return 1;
+            }));
+            while (hasher.getStats().submitted() < 1) Thread.sleep(1);
+            Future<Integer> queued = executor.submit(() -> hasher.submit(() -> 2));
+            while (hasher.getStats().queued() < 1) Thread.sleep(1);
+
+            assertThrows(RejectedExecutionException.class, () -> hasher.submit(() -> 3));
+            PasswordHasher.Stats stats = hasher.getStats();
+            assertEquals(1, stats.threads());
+            assertEquals(2, stats.submitted());
+            assertEquals(1, stats.rejected());
+            assertEquals(0, stats.completed());
+
+            release.countDown();
+            assertEquals(1, running.get());
+            assertEquals(2, queued.get());
+            assertEquals(2, hasher.getStats().completed());
+            assertEquals(0, hasher.getStats().queued());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsRethrown() {
+        PasswordHasher hasher = new PasswordHasher(null, 0, 1);
+        assertThrows(SQLException.class, () -> hasher.submit(() -> {
+            throw new SQLException("failed");
+        }));
+        assertEquals(1, hasher.getStats().completed());
+        assertEquals(0, hasher.getStats().rejected());
+    }
+}
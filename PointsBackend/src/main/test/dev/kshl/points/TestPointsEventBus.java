@@ -0,0 +1,115 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestPointsEventBus {
+    @Test
+    public void testOtherUsersEventsDontReset() throws Exception {
+        PointsEventBus bus = new PointsEventBus();
+        long cursor1 = bus.await(1, -1, 0).cursor();
+        long cursor2 = bus.await(2, -1, 0).cursor();
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(1, PointsEventBus.Type.POINTS, 100 + i, null);
+            bus.publish(2, PointsEventBus.Type.POINTS, 200 + i, null);
+            bus.publish(3, PointsEventBus.Type.POINTS, 300 + i, null); // Nobody is listening
+        }
+
+        PointsEventBus.Poll poll1 = bus.await(1, cursor1, 0);
+        assertFalse(poll1.reset());
+        assertEquals(10, poll1.events().size());
+        assertEquals(100, poll1.events().get(0).id());
+        assertEquals(109, poll1.events().get(9).id());
+
+        // Having caught up, the next of this user's events is returned even though others came between
+        bus.publish(2, PointsEventBus.Type.NAME, 210, null);
+        bus.publish(1, PointsEventBus.Type.NAME, 110, null);
+        PointsEventBus.Poll next = bus.await(1, poll1.cursor(), 0);
+        assertFalse(next.reset());
+        assertEquals(1, next.events().size());
+        assertEquals(110, next.events().get(0).id());
+
+        PointsEventBus.Poll poll2 = bus.await(2, cursor2, 0);
+        assertFalse(poll2.reset());
+        assertEquals(11, poll2.events().size());
+    }
+
+    @Test
+    public void testOpenKeepsEventsForFirstPoll() throws Exception {
+        PointsEventBus bus = new PointsEventBus();
+        bus.publish(1, PointsEventBus.Type.POINTS, 1, null); // Nobody is listening yet
+        long cursor = bus.open(1);
+        // Published after the list was read but before the client's first poll
+        bus.publish(1, PointsEventBus.Type.POINTS, 2, null);
+
+        PointsEventBus.Poll poll = bus.await(1, cursor, 0);
+        assertFalse(poll.reset());
+        assertEquals(1, poll.events().size());
+        assertEquals(2, poll.events().get(0).id());
+        assertEquals(poll.cursor(), bus.open(1), "Opening again keeps the channel");
+    }
+
+    @Test
+    public void testOverflowResets() throws Exception {
+        PointsEventBus bus = new PointsEventBus();
+        long cursor = bus.await(1, -1, 0).cursor();
+        for (int i = 0; i < 100; i++) {
+            bus.publish(1, PointsEventBus.Type.POINTS, i, null);
+        }
+        PointsEventBus.Poll poll = bus.await(1, cursor, 0);
+        assertTrue(poll.reset(), "Events this cursor needs were dropped");
+        assertEquals(bus.getCursor(), poll.cursor());
+
+        // Resuming from the reset's cursor works as usual
+        bus.publish(1, PointsEventBus.Type.POINTS, 100, null);
+        PointsEventBus.Poll after = bus.await(1, poll.cursor(), 0);
+        assertFalse(after.reset());
+        assertEquals(1, after.events().size());
+    }
+
+    @Test
+    public void testWaitsForEvent() throws Exception {
+        PointsEventBus bus = new PointsEventBus();
+        long cursor = bus.await(1, -1, 0).cursor();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PointsEventBus.Poll> future = executor.submit(() -> bus.await(1, cursor, 10000));
+            while (bus.getWaiters() < 1) Thread.sleep(1);
+            bus.publish(2, PointsEventBus.Type.POINTS, 1, null);
+            bus.publish(1, PointsEventBus.Type.POINTS, 2, null);
+            PointsEventBus.Poll poll = future.get();
+            assertEquals(1, poll.events().size());
+            assertEquals(2, poll.events().get(0).id());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaitersAreBounded() throws Exception {
+        PointsEventBus bus = new PointsEventBus(1);
+        long cursor = bus.await(1, -1, 0).cursor();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PointsEventBus.Poll> waiting = executor.submit(() -> bus.await(1, cursor, 10000));
+            while (bus.getWaiters() < 1) Thread.sleep(1);
+            assertThrows(RejectedExecutionException.class, () -> bus.await(2, cursor, 10000), "Nothing to return, and no room to wait");
+
+            bus.publish(1, PointsEventBus.Type.POINTS, 1, null);
+            assertEquals(1, bus.await(1, cursor, 10000).events().size(), "Returned without waiting, so it isn't rejected");
+            assertEquals(1, waiting.get().events().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
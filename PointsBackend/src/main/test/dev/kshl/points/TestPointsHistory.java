@@ -0,0 +1,61 @@
+package dev.kshl.points;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestPointsHistory {
+    @Test
+    public void testListsChanges() {
+        PointsHistory history = new PointsHistory(1, 0, 100, 10, 5);
+        history.add(10, 5);
+        history.add(20, -3);
+        assertFalse(history.isDownsampled());
+        JSONArray changes = history.toJSON().getJSONArray("history");
+        assertEquals(2, changes.length());
+        assertEquals(15, changes.getJSONObject(0).getInt("points"));
+        assertEquals(12, changes.getJSONObject(1).getInt("points"));
+        assertEquals(-3, changes.getJSONObject(1).getInt("delta"));
+        assertEquals(12, history.getValue());
+    }
+
+    @Test
+    public void testDownsamples() {
+        PointsHistory history = new PointsHistory(1, 0, 999, 0, 10);
+        for (int t = 0; t < 1000; t++) {
+            history.add(t, t % 2 == 0 ? 3 : -1);
+        }
+        assertTrue(history.isDownsampled());
+        JSONObject json = history.toJSON();
+        JSONArray buckets = json.getJSONArray("history");
+        assertEquals(10, buckets.length());
+        assertEquals(100, json.getLong("bucket_millis"));
+
+        int changes = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            JSONObject bucket = buckets.getJSONObject(i);
+            assertEquals(i * 100L, bucket.getLong("time"));
+            assertTrue(bucket.getInt("min") <= bucket.getInt("points") && bucket.getInt("points") <= bucket.getInt("max"));
+            changes += bucket.getInt("changes");
+        }
+        assertEquals(1000, changes);
+        assertEquals(1000, history.getValue());
+        assertEquals(1000, buckets.getJSONObject(9).getInt("points"));
+        assertEquals(0, buckets.getJSONObject(0).getInt("min"), "A bucket opens at the value before its first change");
+    }
+
+    @Test
+    public void testClockGoingBackStaysInOrder() {
+        PointsHistory history = new PointsHistory(1, 0, 99, 0, 2);
+        history.add(80, 1);
+        history.add(10, 1);
+        history.add(90, 1);
+        JSONArray buckets = history.toJSON().getJSONArray("history");
+        assertEquals(1, buckets.length());
+        assertEquals(3, buckets.getJSONObject(0).getInt("changes"));
+    }
+}
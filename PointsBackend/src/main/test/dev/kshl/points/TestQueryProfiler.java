@@ -0,0 +1,72 @@
+package dev.kshl.points;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestQueryProfiler {
+    @Test
+    public void testAggregates() {
+        QueryProfiler profiler = new QueryProfiler(1000, (sql, millis) -> {
+        });
+        profiler.record("SELECT a", 2_000_000, 1_000_000, 3);
+        profiler.record("SELECT a", 4_000_000, 0, -1);
+        profiler.record("SELECT b", 100_000_000, 0, 1);
+
+        JSONArray statements = profiler.toJSON();
+        assertEquals(2, statements.length());
+        assertEquals("SELECT b", statements.getJSONObject(0).getString("sql"), "Most total time first");
+        JSONObject a = statements.getJSONObject(1);
+        assertEquals(2, a.getLong("count"));
+        assertEquals(6D, a.getDouble("execute_ms"));
+        assertEquals(1D, a.getDouble("wait_ms"));
+        assertEquals(3D, a.getDouble("avg_execute_ms"));
+        assertEquals(4D, a.getDouble("max_ms"));
+        assertEquals(3, a.getLong("rows"), "Unknown row counts aren't added");
+        assertEquals(0, a.getLong("slow"));
+    }
+
+    @Test
+    public void testSlowQueries() {
+        List<String> logged = new ArrayList<>();
+        QueryProfiler profiler = new QueryProfiler(10, (sql, millis) -> logged.add(sql + " " + millis));
+
+        assertFalse(profiler.record("SELECT fast", 9_000_000, 0, 1));
+        assertTrue(profiler.record("SELECT slow", 8_000_000, 4_000_000, 1), "Wait time counts towards slowness");
+        assertFalse(profiler.record("SELECT slow", 20_000_000, 0, 1), "Explained at most once a minute");
+        assertEquals(List.of("SELECT slow 12", "SELECT slow 20"), logged);
+        assertEquals(2, profiler.toJSON().getJSONObject(0).getLong("slow"));
+    }
+
+    @Test
+    public void testReset() {
+        QueryProfiler profiler = new QueryProfiler(1000, (sql, millis) -> {
+        });
+        profiler.record("SELECT a", 1_000_000, 0, 1);
+
+        JSONArray before = profiler.reset();
+        assertEquals(1, before.length());
+        assertEquals("SELECT a", before.getJSONObject(0).getString("sql"));
+        assertEquals(0, profiler.toJSON().length());
+
+        profiler.record("SELECT a", 1_000_000, 0, 1);
+        assertEquals(1, profiler.toJSON().getJSONObject(0).getLong("count"), "Counting starts again after a reset");
+    }
+
+    @Test
+    public void testRowsOf() {
+        assertEquals(0, QueryProfiler.rowsOf(null));
+        assertEquals(3, QueryProfiler.rowsOf(List.of(1, 2, 3)));
+        assertEquals(0, QueryProfiler.rowsOf(Optional.empty()));
+        assertEquals(1, QueryProfiler.rowsOf(Optional.of(1)));
+        assertEquals(1, QueryProfiler.rowsOf(7));
+    }
+}
@@ -0,0 +1,80 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestReadConnectionPool {
+    private static final SQLiteOptions OPTIONS = new SQLiteOptions("NORMAL", -2000, 0, "MEMORY", 2, 1000, 250, false, 0, 256, 4096);
+
+    private static File create(File dir) throws SQLException {
+        File file = new File(dir, "read.db");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("CREATE TABLE t (v INT)");
+            statement.execute("INSERT INTO t VALUES (1), (2), (3)");
+        }
+        return file;
+    }
+
+    @Test
+    public void testBorrowAndRelease(@TempDir File dir) throws Exception {
+        try (ReadConnectionPool pool = new ReadConnectionPool(create(dir), OPTIONS)) {
+            assertEquals(2, pool.size());
+            Connection first = pool.borrow(0);
+            Connection second = pool.borrow(0);
+            assertNotNull(first);
+            assertNotNull(second);
+            assertNotSame(first, second);
+
+            long start = System.currentTimeMillis();
+            assertNull(pool.borrow(50), "Every connection is out");
+            assertTrue(System.currentTimeMillis() - start >= 40, "Should wait for a connection before giving up");
+
+            pool.release(first);
+            assertSame(first, pool.borrow(0));
+            assertEquals(6, ReadConnectionPool.query(first, "SELECT SUM(v) FROM t WHERE v>=?", rs -> {
+                rs.next();
+                return rs.getInt(1);
+            }, 1));
+            pool.release(first);
+            pool.release(second);
+        }
+    }
+
+    @Test
+    public void testReadOnly(@TempDir File dir) throws Exception {
+        try (ReadConnectionPool pool = new ReadConnectionPool(create(dir), OPTIONS)) {
+            Connection connection = pool.borrow(0);
+            try (Statement statement = connection.createStatement()) {
+                assertThrows(SQLException.class, () -> statement.execute("INSERT INTO t VALUES (4)"));
+            } finally {
+                pool.release(connection);
+            }
+        }
+    }
+
+    @Test
+    public void testClose(@TempDir File dir) throws Exception {
+        ReadConnectionPool pool = new ReadConnectionPool(create(dir), OPTIONS);
+        Connection borrowed = pool.borrow(0);
+        pool.close();
+        assertNull(pool.borrow(0), "A closed pool lends nothing");
+        pool.release(borrowed);
+        assertTrue(borrowed.isClosed(), "Connections returned after close are closed");
+    }
+}
@@ -0,0 +1,58 @@
+package dev.kshl.points;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestRequestBody {
+    @Test
+    public void testFlat() {
+        RequestBody body = new RequestBody(" {\"username\": \"snail\", \"points\": -12, \"big\": 5000000000, \"ratio\": 1.5e2, \"on\": true, \"off\": false, \"none\": null} ");
+        assertTrue(body.isPresent());
+        assertEquals("snail", body.getString("username"));
+        assertEquals(-12, body.get("points"));
+        assertEquals(-12, body.getInt("points", 0));
+        assertEquals("-12", body.getString("points"));
+        assertEquals(5000000000L, body.get("big"));
+        assertEquals(150.0, body.get("ratio"));
+        assertTrue(body.getBoolean("on", false));
+        assertFalse(body.getBoolean("off", true));
+        assertEquals(JSONObject.NULL, body.get("none"));
+        assertEquals("", body.getString("none"));
+        assertEquals("", body.getString("missing"));
+        assertNull(body.get("missing"));
+        assertEquals(7, body.getInt("missing", 7));
+    }
+
+    @Test
+    public void testEscapes() {
+        String value = "quote\" slash\\ / \b\f\n\r\t é \u2603";
+        RequestBody body = new RequestBody(new JSONObject().put("new", value).put("key", "x").toString());
+        assertEquals(value, body.getString("new"));
+        assertEquals("snow\u2603man", new RequestBody("{\"a\":\"snow\\u2603man\"}").getString("a"));
+    }
+
+    @Test
+    public void testNested() {
+        RequestBody body = new RequestBody("{\"key\": \"a\", \"value\": {\"x\": 1}, \"list\": [1, 2]}");
+        assertTrue(body.isPresent());
+        assertEquals("a", body.getString("key"));
+        assertEquals(1, ((JSONObject) body.get("value")).getInt("x"));
+        assertEquals(2, ((JSONArray) body.get("list")).length());
+    }
+
+    @Test
+    public void testMalformed() {
+        for (String raw : new String[]{null, "", "   ", "[]", "{", "{\"a\"}", "{\"a\": 1,}", "{\"a\": tru}", "{\"a\": \"b\" x", "{\"a\": 1} {}", "{\"a\": \"\\q\"}", "{\"a\": {\"b\": }"}) {
+            RequestBody body = new RequestBody(raw);
+            assertFalse(body.isPresent(), String.valueOf(raw));
+            assertEquals("", body.getString("a"));
+        }
+        assertTrue(new RequestBody("{}").isPresent());
+    }
+}
@@ -1,13 +1,26 @@
 package dev.kshl.points;
 
+import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class TestSQLManager {
@@ -15,13 +28,325 @@ public class TestSQLManager {
     public void testSQLManager() throws Exception {
         File databaseFile = new File("test/test2.db");
         databaseFile.delete();
+        new File(databaseFile.getPath() + "-wal").delete();
+        new File(databaseFile.getPath() + "-shm").delete();
         assert !databaseFile.exists();
 
-        SQLManager sqlManager = new SQLManager(databaseFile);
+        testSQLManager(() -> new SQLManager(databaseFile));
+    }
+
+    @Test
+    public void testSharded(@TempDir File dir) throws Exception {
+        testSQLManager(() -> new SQLManager(new File(dir, "data.db"), SQLiteOptions.DEFAULT, 4));
+    }
+
+    @Test
+    public void testMoveToShards(@TempDir File dir) throws Exception {
+        File file = new File(dir, "data.db");
+        SQLManager unsharded = new SQLManager(file);
+        unsharded.init();
+        for (int uid = 1; uid <= 10; uid++) {
+            unsharded.addAll(uid, List.of("a" + uid, "b" + uid));
+        }
+        unsharded.setSetting(7, SQLManager.Setting.REDEEM_COST, 35);
+        List<List<SQLManager.Person>> before = new ArrayList<>();
+        for (int uid = 1; uid <= 10; uid++) {
+            before.add(unsharded.getPeople(uid));
+        }
+        unsharded.close();
+
+        SQLManager sharded = new SQLManager(file, SQLiteOptions.DEFAULT, 3);
+        sharded.init();
+        for (int uid = 1; uid <= 10; uid++) {
+            assertEquals(before.get(uid - 1), sharded.getPeople(uid));
+        }
+        assertEquals(35, sharded.getSettings(7).redeemCost());
+        assertEquals(20, sharded.getSettings(8).redeemCost());
+        assertEquals(3, sharded.getShards().size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(SQLManager.getShardFile(file, i).exists());
+        }
+
+        // Ids carry on from where they were, and new rows go to the right shard
+        SQLManager.Person added = sharded.add(4, "c4");
+        assertEquals(List.of("a4", "b4", "c4"), sharded.getPeople(4).stream().map(SQLManager.Person::name).toList());
+        assertTrue(added.id() > 0);
+        sharded.close();
+
+        // Rerunning an interrupted move replaces rows already copied, which must take their search entries with them
+        execute(file, "DELETE FROM shard_config");
+        execute(file, "INSERT INTO points (id, uid, name, points, priority) VALUES (" + added.id() + ", 4, 'z4', 0, 2)");
+        sharded = new SQLManager(file, SQLiteOptions.DEFAULT, 3);
+        sharded.init();
+        assertEquals(List.of("z4"), names(sharded.search(4, "z4", 10)));
+        assertEquals(List.of(), sharded.search(4, "c4", 10));
+        sharded.close();
+        for (int i = 0; i < 3; i++) {
+            execute(SQLManager.getShardFile(file, i), "INSERT INTO points_fts (points_fts, rank) VALUES ('integrity-check', 1)");
+        }
+
+        SQLManager wrongCount = new SQLManager(file, SQLiteOptions.DEFAULT, 2);
+        assertThrows(Exception.class, wrongCount::init, "The shard count can't change");
+        wrongCount.close();
+    }
+
+    @Test
+    public void testIDIndexPreloadAndRemove(@TempDir File dir) throws Exception {
+        File file = new File(dir, "data.db");
+        SQLManager sqlManager = new SQLManager(file);
         sqlManager.init();
-        sqlManager.execute("DROP TABLE IF EXISTS points", 3000);
+        int uid = sqlManager.getUIDManager().getIDOpt("preloaded", true).orElseThrow();
         sqlManager.close();
-        sqlManager = new SQLManager(databaseFile);
+
+        sqlManager = new SQLManager(file);
+        sqlManager.init();
+        IndexedIDManager uids = sqlManager.getUIDManager();
+        assertEquals(1, uids.getIndexSize(), "Existing IDs are indexed when opened");
+        long misses = uids.getMisses();
+        assertEquals(uid, uids.getIDOpt("preloaded", false).orElseThrow());
+        assertEquals("preloaded", uids.getValueOpt(uid).orElseThrow());
+        assertEquals(misses, uids.getMisses());
+
+        assertTrue(uids.remove(uid));
+        assertEquals(0, uids.getIndexSize());
+        assertTrue(uids.getIDOpt("preloaded", false).isEmpty(), "A removed ID is never served from the index");
+        sqlManager.close();
+    }
+
+    @Test
+    public void testShardIndex() {
+        int[] counts = new int[8];
+        for (int uid = 1; uid <= 8000; uid++) {
+            counts[SQLManager.shardIndex(uid, counts.length)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200, "Sequential uids should spread evenly, got " + count);
+        }
+    }
+
+    @Test
+    public void testLedger(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        int id = sqlManager.add(1, "a").id();
+
+        // Never changed, so its history is flat at its current value
+        PointsHistory history = sqlManager.getHistory(1, id, 0, System.currentTimeMillis(), 10).orElseThrow();
+        assertEquals(0, history.getValue());
+        assertEquals(0, history.toJSON().getJSONArray("history").length());
+
+        for (int i = 1; i <= 200; i++) {
+            assert sqlManager.setPoints(1, id, i);
+        }
+        assert sqlManager.setPoints(1, id, 200);
+        long now = System.currentTimeMillis();
+
+        history = sqlManager.getHistory(1, id, 0, now, 1000).orElseThrow();
+        JSONObject json = history.toJSON();
+        assertEquals(0, json.getInt("start"));
+        assertEquals(200, json.getJSONArray("history").length(), "Setting the same value isn't a change");
+        assertEquals(200, history.getValue());
+
+        history = sqlManager.getHistory(1, id, 0, now, 10).orElseThrow();
+        assertTrue(history.isDownsampled());
+        assertTrue(history.toJSON().getJSONArray("history").length() <= 10);
+        assertEquals(200, history.getValue());
+
+        // Starting after snapshots, the start value comes from the nearest one and the deltas after it
+        long midpoint = history.toJSON().getJSONArray("history").getJSONObject(0).getLong("time") + 1;
+        history = sqlManager.getHistory(1, id, midpoint, now, 1000).orElseThrow();
+        int start = history.toJSON().getInt("start");
+        int changes = history.toJSON().getJSONArray("history").length();
+        assertEquals(200, start + changes, "Every change is +1, so the start and the changes after it add up");
+        assertEquals(200, history.getValue());
+        sqlManager.close();
+    }
+
+    @Test
+    public void testPaging(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 25; i++) names.add("p" + i);
+        sqlManager.addAll(1, names);
+        sqlManager.addAll(2, List.of("other"));
+        SQLManager.Person last = sqlManager.getPeople(1).get(24);
+        assert sqlManager.setPriority(1, last.id(), true);
+
+        List<SQLManager.Person> paged = new ArrayList<>();
+        Integer after = null;
+        int pages = 0;
+        do {
+            SQLManager.Page page = sqlManager.getPeople(1, after, 10);
+            paged.addAll(page.people());
+            after = page.next();
+            pages++;
+        } while (after != null);
+        assertEquals(3, pages);
+        assertEquals(sqlManager.getPeople(1), paged);
+
+        SQLManager.Page exact = sqlManager.getPeople(1, null, 25);
+        assertEquals(25, exact.people().size());
+        assertEquals(null, exact.next(), "No empty page after a full one");
+        sqlManager.close();
+
+        // A row from before every insert set a priority is moved to the end of the list on startup
+        File file = new File(dir, "data.db");
+        int unprioritized = paged.get(3).id();
+        execute(file, "UPDATE points SET priority=NULL WHERE id=" + unprioritized);
+        sqlManager = new SQLManager(file);
+        sqlManager.init();
+        SQLManager.Page first = sqlManager.getPeople(1, null, 24);
+        assertEquals(24, first.people().size());
+        SQLManager.Page rest = sqlManager.getPeople(1, first.next(), 10);
+        assertEquals(List.of(unprioritized), rest.people().stream().map(SQLManager.Person::id).toList());
+        assertEquals(unprioritized, sqlManager.getPeople(1).get(24).id());
+        sqlManager.close();
+    }
+
+    @Test
+    public void testSearch(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        List<SQLManager.Person> people = sqlManager.addAll(1, List.of("Alice Smith", "Bob", "alfred", "Smithers"));
+        sqlManager.add(2, "Alice");
+
+        assertEquals(List.of("Alice Smith", "alfred"), names(sqlManager.search(1, "al", 10)), "Prefix matches, in list order, only the user's own");
+        assertEquals(List.of("Alice Smith", "Smithers"), names(sqlManager.search(1, "SMI", 10)));
+        assertEquals(List.of("Alice Smith"), names(sqlManager.search(1, "smi, ali", 10)), "Every word must match");
+        assertEquals(List.of("Alice Smith"), names(sqlManager.search(1, "al", 1)));
+        assertEquals(List.of(), sqlManager.search(1, "lice", 10), "Only word prefixes match");
+        assertEquals(List.of(), sqlManager.search(1, "\"*)(", 10));
+        assertEquals(List.of("Alice Smith", "Smithers"), names(sqlManager.search(1, "smith", 10)));
+        assertEquals(List.of("Smithers"), names(sqlManager.search(1, "smithe", 10)), "Terms longer than the indexed prefix are checked in full");
+        assertEquals(List.of(), sqlManager.search(1, "alix", 10));
+
+        sqlManager.setName(1, people.get(1).id(), "Albert");
+        sqlManager.remove(1, people.get(0).id());
+        assertEquals(List.of("Albert", "alfred"), names(sqlManager.search(1, "al", 10)), "Renames and removals are searchable at once");
+
+        // Existing points are indexed when the index is first created
+        sqlManager.execute("DROP TABLE points_fts", 3000);
+        sqlManager.close();
+        sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        assertEquals(List.of("Albert", "alfred"), names(sqlManager.search(1, "al", 10)));
+        sqlManager.close();
+    }
+
+    @Test
+    public void testSearchWithoutFullTextSearch(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        sqlManager.disableFullTextSearch();
+        sqlManager.addAll(1, List.of("Alice Smith", "Bob", "alfred", "Smithers", "Café"));
+        sqlManager.add(2, "Alice");
+
+        assertEquals(List.of("Alice Smith", "alfred"), names(sqlManager.search(1, "al", 10)), "Prefix matches, in list order, only the user's own");
+        assertEquals(List.of("Alice Smith"), names(sqlManager.search(1, "smi, ali", 10)), "Every word must match");
+        assertEquals(List.of(), sqlManager.search(1, "lice", 10), "Only word prefixes match, as with the index");
+        assertEquals(List.of(), sqlManager.search(1, "ith", 10));
+        assertEquals(List.of("Café"), names(sqlManager.search(1, "CAFE", 10)), "Case and accents are folded, as with the index");
+        assertEquals(List.of("Alice Smith"), names(sqlManager.search(1, "al", 1)));
+        sqlManager.close();
+    }
+
+    @Test
+    public void testSearchMatching() {
+        List<String> terms = SQLManager.getSearchTerms("CAFE smi").stream().map(SQLManager::normalizeSearchTerm).toList();
+        assertTrue(SQLManager.startsWords("Café (Smith)", terms), "Case and accents are folded, like the index does");
+        assertFalse(SQLManager.startsWords("Café Jones", terms));
+        assertTrue(SQLManager.startsWords("a b c d e f g h i j smith cafe", terms), "Every word of a name is checked");
+    }
+
+    @Test
+    public void testSearchTerms() {
+        assertEquals(List.of("smi", "ali", "o2"), SQLManager.getSearchTerms(" smi, ali_o2 "));
+        assertEquals(List.of("café"), SQLManager.getSearchTerms("\"café\"*"));
+        assertEquals(List.of(), SQLManager.getSearchTerms("-*()"));
+        assertEquals(8, SQLManager.getSearchTerms("a b c d e f g h i j").size());
+    }
+
+    private static void execute(File file, String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static List<String> names(List<SQLManager.Person> people) {
+        return people.stream().map(SQLManager.Person::name).toList();
+    }
+
+    @Test
+    public void testRedeem(@TempDir File dir) throws Exception {
+        SQLManager sqlManager = new SQLManager(new File(dir, "data.db"));
+        sqlManager.init();
+        int id = sqlManager.add(1, "a").id();
+        sqlManager.setPoints(1, id, 50);
+        sqlManager.setSetting(1, SQLManager.Setting.ALLOW_NEGATIVE, false);
+
+        List<SQLManager.Redemption> redemptions = sqlManager.redeem(1, List.of(id, id, id, 999));
+        assertEquals(List.of(
+                new SQLManager.Redemption(id, SQLManager.Redemption.Status.REDEEMED, 30),
+                new SQLManager.Redemption(id, SQLManager.Redemption.Status.REDEEMED, 10),
+                new SQLManager.Redemption(id, SQLManager.Redemption.Status.INSUFFICIENT_POINTS, 10),
+                new SQLManager.Redemption(999, SQLManager.Redemption.Status.NOT_FOUND, 0)), redemptions);
+        assertEquals(SQLManager.Redemption.Status.NOT_FOUND, sqlManager.redeem(2, List.of(id)).get(0).status(), "Another user's point");
+
+        sqlManager.setSetting(1, SQLManager.Setting.ALLOW_NEGATIVE, true);
+        assertEquals(-10, sqlManager.redeem(1, List.of(id)).get(0).points());
+        assertEquals(-10, sqlManager.getPerson(1, id).orElseThrow().points());
+        assertEquals(-10, sqlManager.getHistory(1, id, 0, System.currentTimeMillis(), 100).orElseThrow().getValue(), "Redemptions are in the ledger");
+
+        // Concurrent redemptions never overdraw
+        sqlManager.setSetting(1, SQLManager.Setting.ALLOW_NEGATIVE, false);
+        sqlManager.setPoints(1, id, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<SQLManager.Redemption>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    return sqlManager.redeem(1, List.of(id));
+                }));
+            }
+            int redeemed = 0;
+            for (Future<List<SQLManager.Redemption>> future : futures) {
+                if (future.get().get(0).status() == SQLManager.Redemption.Status.REDEEMED) redeemed++;
+            }
+            assertEquals(5, redeemed);
+            assertEquals(0, sqlManager.getPerson(1, id).orElseThrow().points());
+        } finally {
+            executor.shutdownNow();
+            sqlManager.close();
+        }
+    }
+
+    /**
+     * Runs against a MySQL or MariaDB server when POINTS_TEST_DATABASE holds its "database" config, e.g.
+     * {"type":"mariadb","host":"127.0.0.1:3306","database":"points_test","user":"points","password":"..."}.
+     * The tables it uses are dropped first.
+     */
+    @Test
+    @EnabledIfEnvironmentVariable(named = "POINTS_TEST_DATABASE", matches = ".+")
+    public void testServerDatabase() throws Exception {
+        JSONObject config = new JSONObject(System.getenv("POINTS_TEST_DATABASE"));
+        testSQLManager(() -> SQLManager.fromJSON(config, null, SQLiteOptions.DEFAULT));
+    }
+
+    @FunctionalInterface
+    private interface SQLManagerFactory {
+        SQLManager create() throws Exception;
+    }
+
+    private static void testSQLManager(SQLManagerFactory factory) throws Exception {
+        SQLManager sqlManager = factory.create();
+        sqlManager.init();
+        for (String table : List.of("points_fts", "points", "points_ledger", "points_snapshots", "points_redemptions", "setting_allow_negative", "setting_redeem_cost")) {
+            sqlManager.execute("DROP TABLE IF EXISTS " + table, 3000);
+        }
+        sqlManager.close();
+        sqlManager = factory.create();
         sqlManager.init();
 
         List<SQLManager.Person> people = new ArrayList<>();
@@ -65,6 +390,11 @@ public class TestSQLManager {
         assertEquals(5, sqlManager.getPerson(0, person1.id()).orElseThrow().points());
         assert sqlManager.setPoints(0, person1.id(), -2);
         assertEquals(-2, sqlManager.getPerson(0, person1.id()).orElseThrow().points());
+        PointsHistory history = sqlManager.getHistory(0, person1.id(), 0, System.currentTimeMillis(), 500).orElseThrow();
+        assertEquals(0, history.toJSON().getInt("start"));
+        assertEquals(2, history.toJSON().getJSONArray("history").length());
+        assertEquals(-2, history.getValue());
+        assert sqlManager.getHistory(1, person1.id(), 0, System.currentTimeMillis(), 500).isEmpty();
 
         for (SQLManager.Person person : people) {
             sqlManager.remove(0, person.id());
@@ -72,8 +402,29 @@ public class TestSQLManager {
 
         assert sqlManager.getPeople(0).isEmpty();
 
+        List<SQLManager.Person> imported = sqlManager.addAll(2, List.of("a", "b", "c"));
+        assertArrayEquals(imported.stream().map(SQLManager.Person::id).toArray(), sqlManager.getPeople(2).stream().map(SQLManager.Person::id).toArray());
+        assertArrayEquals(new String[]{"a", "b", "c"}, sqlManager.getPeople(2).stream().map(SQLManager.Person::name).toArray());
+        SQLManager.Person appended = sqlManager.add(2, "d");
+        assertEquals(appended.id(), sqlManager.getPeople(2).get(3).id());
+        assert sqlManager.setPriority(2, appended.id(), true);
+        assertEquals(appended.id(), sqlManager.getPeople(2).get(2).id());
+
+        assert sqlManager.getSettings(2).allowNegative();
+        sqlManager.setSetting(2, SQLManager.Setting.ALLOW_NEGATIVE, false);
+        assert !sqlManager.getSettings(2).allowNegative();
+        sqlManager.setSetting(2, SQLManager.Setting.REDEEM_COST, 35);
+        assertEquals(35, sqlManager.getSettings(2).redeemCost());
+        assertEquals(20, sqlManager.getSettings(3).redeemCost());
+        for (int uid : List.of(2, 3)) {
+            for (SQLManager.Setting setting : SQLManager.Setting.values()) {
+                assertEquals(setting.getSettingManager(sqlManager).get(uid), sqlManager.getSettings(uid).get(setting), "Read together as each manager reads it alone");
+            }
+        }
+
         assert !sqlManager.remove(0, 69);
         assert !sqlManager.setPoints(0, 69, 1);
         assert !sqlManager.setName(0, 69, "");
+        sqlManager.close();
     }
 }
@@ -0,0 +1,115 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestSingleFlight {
+    @Test
+    public void testConcurrentReadsShareOneLoad() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    return flights.get(1, () -> {
+                        loading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new SQLException(e);
+                        }
+                        return "load " + loads.incrementAndGet();
+                    });
+                }));
+            }
+            loading.await();
+            while (flights.getShared() < 7) Thread.sleep(1);
+            release.countDown();
+            for (Future<String> future : futures) {
+                assertEquals("load 1", future.get());
+            }
+            assertEquals(1, flights.getLoads());
+
+            // Nothing is kept once the load finishes
+            assertEquals("again", flights.get(1, () -> "again"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidateStartsNewLoad() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> before = executor.submit(() -> {
+                return flights.get(1, () -> {
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new SQLException(e);
+                    }
+                    return "before write";
+                });
+            });
+            loading.await();
+            flights.invalidate(1);
+            assertEquals("after write", flights.get(1, () -> "after write"), "A read after the write must not join the older load");
+            release.countDown();
+            assertEquals("before write", before.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> {
+                return flights.get(1, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new SQLException(e);
+                    }
+                    throw new SQLException("failed");
+                });
+            });
+            while (flights.getLoads() < 1) Thread.sleep(1);
+            Future<String> follower = executor.submit(() -> {
+                return flights.get(1, () -> "not run");
+            });
+            while (flights.getShared() < 1) Thread.sleep(1);
+            release.countDown();
+            for (Future<String> future : List.of(leader, follower)) {
+                ExecutionException e = assertThrows(ExecutionException.class, future::get);
+                assertInstanceOf(SQLException.class, e.getCause());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
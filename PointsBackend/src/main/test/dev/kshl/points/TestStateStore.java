@@ -0,0 +1,91 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestStateStore {
+    @Test
+    public void testLocal() throws Exception {
+        try (StateStore store = new LocalStateStore()) {
+            testStore(store);
+        }
+    }
+
+    @Test
+    public void testRedis() throws Exception {
+        try (StandInRedisServer server = new StandInRedisServer();
+             StateStore store = new RedisStateStore("127.0.0.1", server.getPort(), null, 0, "test:", 2000, 4)) {
+            testStore(store);
+        }
+    }
+
+    @Test
+    public void testRedisSharedBetweenNodes() throws Exception {
+        try (StandInRedisServer server = new StandInRedisServer();
+             StateStore node1 = new RedisStateStore("127.0.0.1", server.getPort(), null, 0, "test:", 2000, 4);
+             StateStore node2 = new RedisStateStore("127.0.0.1", server.getPort(), null, 0, "test:", 2000, 4)) {
+            assertTrue(node1.putIfAbsent("lock", "", 60000));
+            assertFalse(node2.putIfAbsent("lock", "", 60000));
+
+            EmailChallenger challenger1 = new EmailChallenger(null, node1);
+            EmailChallenger challenger2 = new EmailChallenger(null, node2);
+            node1.put("reset-code:abc", "7", 60000);
+            assertEquals(7, challenger2.completeResetChallenge("abc"));
+            assertEquals(-1, challenger1.completeResetChallenge("abc"));
+        }
+    }
+
+    private static void testStore(StateStore store) throws IOException, InterruptedException {
+        assertTrue(store.putIfAbsent("a", "1", 0));
+        assertFalse(store.putIfAbsent("a", "2", 0));
+        assertEquals("1", store.get("a"));
+        assertEquals("1", store.take("a"));
+        assertNull(store.take("a"));
+        assertNull(store.get("a"));
+
+        store.put("ttl", "x", 50);
+        assertEquals("x", store.get("ttl"));
+        Thread.sleep(100);
+        assertNull(store.get("ttl"));
+        assertTrue(store.putIfAbsent("ttl", "y", 0));
+
+        // A lock is only released by the token which took it, not by a holder whose TTL has lapsed
+        assertTrue(store.putIfAbsent("lock", "owner", 0));
+        assertFalse(store.deleteIfEquals("lock", "stale"));
+        assertEquals("owner", store.get("lock"));
+        assertTrue(store.deleteIfEquals("lock", "owner"));
+        assertNull(store.get("lock"));
+        assertFalse(store.deleteIfEquals("lock", "owner"));
+
+        assertEquals(1, store.increment("count", 0));
+        assertEquals(2, store.increment("count", 0));
+        store.delete("count");
+        assertEquals(1, store.increment("count", 50));
+        Thread.sleep(100);
+        assertEquals(1, store.increment("count", 0));
+
+        store.addEvent("events", 1000, 500);
+        store.addEvent("events", 1200, 500);
+        store.addEvent("events", 1200, 500);
+        assertEquals(List.of(1000L, 1200L, 1200L), store.getEvents("events", 0));
+        assertEquals(List.of(1200L, 1200L), store.getEvents("events", 1100));
+        store.addEvent("events", 1600, 500);
+        assertEquals(List.of(1200L, 1200L, 1600L), store.getEvents("events", 0));
+        assertEquals(List.of(), store.getEvents("none", 0));
+
+        store.put("prefix:1", "1", 0);
+        store.put("prefix:2", "2", 0);
+        store.put("other", "3", 0);
+        store.deletePrefix("prefix:");
+        assertNull(store.get("prefix:1"));
+        assertNull(store.get("prefix:2"));
+        assertEquals("3", store.get("other"));
+    }
+}
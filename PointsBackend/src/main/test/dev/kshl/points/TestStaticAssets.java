@@ -0,0 +1,90 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestStaticAssets {
+    @Test
+    public void testStaticAssets() throws Exception {
+        File root = Files.createTempDirectory("points-static").toFile();
+        byte[] index = "<html></html>".getBytes(StandardCharsets.UTF_8);
+        byte[] script = "console.log('points');".repeat(100).getBytes(StandardCharsets.UTF_8);
+        Files.write(new File(root, "index.html").toPath(), index);
+        File js = new File(root, "static/js/main.1a2b3c4d.js");
+        Files.createDirectories(js.getParentFile().toPath());
+        Files.write(js.toPath(), script);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(script);
+        }
+        Files.write(new File(js.getPath() + ".gz").toPath(), gzipped.toByteArray());
+        Files.write(new File(root.getParentFile(), "secret.txt").toPath(), new byte[]{1});
+
+        StaticAssets assets = new StaticAssets(root, 1 << 20, 1 << 10, true);
+
+        StaticAssets.Asset asset = assets.get("/", null, null);
+        assertArrayEquals(index, asset.body());
+        assertEquals("text/html; charset=utf-8", asset.headers().get("Content-Type"));
+        assertEquals("no-cache", asset.headers().get("Cache-Control"));
+        assertArrayEquals(index, assets.get("/reset", null, null).body(), "Client-side routes fall back to index.html");
+
+        StaticAssets.Asset plain = assets.get("/static/js/main.1a2b3c4d.js", "identity", null);
+        assertArrayEquals(script, plain.body());
+        assertTrue(plain.headers().get("Cache-Control").contains("immutable"));
+        StaticAssets.Asset compressed = assets.get("/static/js/main.1a2b3c4d.js", "gzip, deflate, br;q=0", null);
+        assertEquals("gzip", compressed.headers().get("Content-Encoding"));
+        assertArrayEquals(gzipped.toByteArray(), compressed.body());
+        assertNotEquals(plain.headers().get("ETag"), compressed.headers().get("ETag"), "Each encoding has its own ETag");
+
+        StaticAssets.Asset revalidated = assets.get("/static/js/main.1a2b3c4d.js", "identity", plain.headers().get("ETag"));
+        assertTrue(revalidated.notModified());
+
+        assertNull(assets.get("/missing.js", null, null));
+        assertNull(assets.get("/../secret.txt", null, null));
+        assertNull(assets.get("/static/js/main.1a2b3c4d.js.gz", null, null));
+
+        // Served from memory the second time, including the script, which is over the per-file limit so kept outside the LRU
+        long misses = assets.getCacheMisses();
+        assets.get("/index.html", null, null);
+        assertSame(plain.body(), assets.get("/static/js/main.1a2b3c4d.js", "identity", null).body(), "Copied out of the file once");
+        assertEquals(misses, assets.getCacheMisses());
+        assertTrue(assets.getCacheHits() > 0);
+        assertTrue(assets.getCachedBytes() < script.length);
+
+        Files.write(new File(root, "index.html").toPath(), "<html>changed</html>".getBytes(StandardCharsets.UTF_8));
+        assertTrue(new File(root, "index.html").setLastModified(System.currentTimeMillis() + 10000));
+        StaticAssets.Asset changed = assets.get("/", null, asset.headers().get("ETag"));
+        assertEquals("<html>changed</html>", new String(changed.body(), StandardCharsets.UTF_8));
+
+        // Same length, so only the ETag stored with the cached bytes tells the versions apart
+        assets.get("/", null, null);
+        Files.write(new File(root, "index.html").toPath(), "<html>CHANGED</html>".getBytes(StandardCharsets.UTF_8));
+        assertTrue(new File(root, "index.html").setLastModified(System.currentTimeMillis() + 20000));
+        assertEquals("<html>CHANGED</html>", new String(assets.get("/", null, null).body(), StandardCharsets.UTF_8));
+
+        // Changed without its size or modification time changing, after being described but before being read
+        File text = new File(root, "notes.txt");
+        Files.write(text.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+        long modified = text.lastModified();
+        String described = assets.get("/notes.txt", null, "*").headers().get("ETag");
+        Files.write(text.toPath(), "other".getBytes(StandardCharsets.UTF_8));
+        assertTrue(text.setLastModified(modified));
+        StaticAssets.Asset raced = assets.get("/notes.txt", null, null);
+        assertEquals("other", new String(raced.body(), StandardCharsets.UTF_8));
+        assertNotEquals(described, raced.headers().get("ETag"), "The ETag is of the bytes sent");
+        assertTrue(assets.get("/notes.txt", null, raced.headers().get("ETag")).notModified(), "Described again from the bytes on disk");
+    }
+}
@@ -0,0 +1,157 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestValidators {
+    private static final String ALPHABET = "ab09-._@[]:\\\"\t\u0001 A!1.2.3.4255256\u00e9";
+    private static final Pattern USERNAME = Pattern.compile("[a-zA-Z0-9_]+");
+    private static final Pattern EMAIL_CODE = Pattern.compile("\\d{6,}");
+    private static final Pattern PASSWORD = Pattern.compile("[a-zA-Z0-9_\\-\\s!@#$%^&*()+=`~'\";\\[\\]{},.<>/?\\\\|]+");
+
+    @Test
+    public void testEmail() {
+        for (String email : List.of("a@b.c", "first.last@sub.example.com", "\"quoted\\\"name\"@x.io", "a@[127.0.0.1]", "a@[1.2.3.tag:any]text]", "x-y@a-b.c0")) {
+            assertTrue(Validators.isEmail(email), email);
+        }
+        for (String email : List.of("", "a", "a@", "@b.c", "a@b", "A@b.c", "a..b@c.d", ".a@b.c", "a@-b.c", "a@b-.c", "a@[256.1.1.1]", "a@[01.1.1.1]", "a@[1.2.3]", "a@[1.2.3.4", "\"a@b.c")) {
+            assertFalse(Validators.isEmail(email), email);
+        }
+        assertFalse(Validators.isEmail("a".repeat(250) + "@b.co"), "Longer than an SMTP path");
+    }
+
+    /**
+     * Random mutations of valid addresses and random short strings must be judged the same as by the regular
+     * expression the validator replaced.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testEmailMatchesPattern() {
+        String[] seeds = {"a@b.c", "\"x\"@a.b", "a@[1.2.3.4]", "a@[1.2.3.a:b]", "a@[255.0.10.x-y:\\\t]", "a.b@c-d.e"};
+        Random random = new Random(1);
+        for (int i = 0; i < 200_000; i++) {
+            String input = i % 2 == 0 ? mutate(seeds[random.nextInt(seeds.length)], random) : randomString(random, 14);
+            assertEquals(MailHelper.EMAIL_PATTERN.matcher(input).matches(), Validators.isEmail(input), input);
+        }
+    }
+
+    @Test
+    public void testUsernameCodesAndPasswords() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100_000; i++) {
+            String input = randomString(random, 24);
+            boolean usernameLength = input.length() >= Validators.MIN_USERNAME_LENGTH && input.length() <= Validators.MAX_USERNAME_LENGTH;
+            assertEquals(usernameLength && USERNAME.matcher(input).matches(), Validators.isUsername(input), input);
+            boolean passwordCharacters = input.chars().allMatch(c -> Validators.isPasswordCharacter((char) c));
+            assertEquals(!input.isEmpty() && PASSWORD.matcher(input).matches(), !input.isEmpty() && passwordCharacters, input);
+
+            String digits = Integer.toString(random.nextInt(1 << 30)) + (random.nextInt(4) == 0 ? "x" : "");
+            assertEquals(EMAIL_CODE.matcher(digits).matches(), Validators.isEmailCode(digits), digits);
+        }
+        assertFalse(Validators.isEmailCode("1".repeat(Validators.MAX_EMAIL_CODE_LENGTH + 1)));
+        assertTrue(Validators.isResetCode("AbC123xyz"));
+        assertFalse(Validators.isResetCode("has space"));
+        assertFalse(Validators.isResetCode("a".repeat(Validators.MAX_RESET_CODE_LENGTH + 1)));
+    }
+
+    /**
+     * Inputs built to make a backtracking matcher explode, each at the length cap, and one far beyond it.
+     */
+    @Test
+    public void testWorstCase() {
+        List<String> inputs = List.of(
+                "a@" + "a-".repeat(120) + "!",
+                "a@" + "a.".repeat(125) + "-",
+                "a@" + "aa.".repeat(83) + ".",
+                "\"" + "\\\\".repeat(126) + "@",
+                "a@[1.2.3.x:" + "\\".repeat(240) + "\t",
+                "a".repeat(Validators.MAX_EMAIL_LENGTH - 1) + "@",
+                "a".repeat(1 << 20) + "@b.c"
+        );
+        for (String input : inputs) {
+            assertFalse(Validators.isEmail(input));
+        }
+    }
+
+    /**
+     * The same adversarial inputs at n and 2n repetitions, both under the length cap. A linear validator takes about
+     * twice as long on the longer one, a quadratic one four times, a backtracking one far more. Comparing the two
+     * rather than asserting a wall-clock bound keeps this independent of the machine's speed.
+     */
+    @Test
+    public void testLinearTime() {
+        Map<String, IntFunction<String>> families = Map.of(
+                "hyphens", n -> "a@" + "a-".repeat(n) + "!",
+                "dots", n -> "a@" + "a.".repeat(n) + "-",
+                "labels", n -> "a@" + "aa.".repeat(n) + ".",
+                "quoted", n -> "\"" + "\\\\".repeat(n) + "@",
+                "literal", n -> "a@[1.2.3.x:" + "\\".repeat(n) + "\t",
+                "local", n -> "a".repeat(n) + "@"
+        );
+        families.forEach((name, family) -> {
+            int n = 1;
+            while (family.apply(n * 4).length() <= Validators.MAX_EMAIL_LENGTH) n *= 2;
+            String small = family.apply(n);
+            String large = family.apply(n * 2);
+            assertFalse(Validators.isEmail(large));
+
+            for (int i = 0; i < 10_000; i++) { // Warm up
+                Validators.isEmail(small);
+                Validators.isEmail(large);
+            }
+            long smallNanos = bestOf(small);
+            long largeNanos = bestOf(large);
+            assertTrue(largeNanos < smallNanos * 3, name + ": " + small.length() + " chars took " + smallNanos + "ns, " + large.length() + " took " + largeNanos + "ns");
+        });
+    }
+
+    /**
+     * @return The fastest of several timings of a batch of calls, which is the least disturbed by GC and scheduling.
+     */
+    private static long bestOf(String input) {
+        long best = Long.MAX_VALUE;
+        for (int trial = 0; trial < 7; trial++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 2000; i++) Validators.isEmail(input);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static String mutate(String seed, Random random) {
+        StringBuilder builder = new StringBuilder(seed);
+        int mutations = 1 + random.nextInt(3);
+        for (int i = 0; i < mutations; i++) {
+            int position = random.nextInt(builder.length() + 1);
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            switch (random.nextInt(3)) {
+                case 0 -> builder.insert(position, c);
+                case 1 -> {
+                    if (position < builder.length()) builder.deleteCharAt(position);
+                }
+                default -> {
+                    if (position < builder.length()) builder.setCharAt(position, c);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        int length = random.nextInt(maxLength);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return builder.toString();
+    }
+}
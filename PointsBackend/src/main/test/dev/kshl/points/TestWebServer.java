@@ -9,15 +9,23 @@ import dev.kshl.kshlib.net.WebServer.Request;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.doReturn;
@@ -114,7 +122,7 @@ public class TestWebServer {
 
     @Test
     public void testAdminCommandAuthorization() throws Exception {
-        List<String> adminEndpoints = List.of("setpassword", "makedemo");
+        List<String> adminEndpoints = List.of("setpassword", "makedemo", "sqlprofile", "sqlprofile/reset");
         for (String adminEndpoint : adminEndpoints) {
             Request mockRequest = createMockRequest("/" + adminEndpoint, null);
             doReturn(new PointsWebServer.AuthResult(true, 1, 1, false, true)).when(server).validateSessionCookie(mockRequest);
@@ -122,6 +130,68 @@ public class TestWebServer {
         }
     }
 
+    @Test
+    public void testEndpointRateBudget() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Request mockRequest = createMockRequest("/emailcode", null, HTTPRequestType.POST, Map.of("code", "abc"));
+            doReturn(new PointsWebServer.AuthResult(true, 1, 1, false, false)).when(server).validateSessionCookie(mockRequest);
+            WebServer.WebException e = assertThrows(WebServer.WebException.class, () -> server.handle(mockRequest));
+            assertEquals(HTTPResponseCode.UNPROCESSABLE_ENTITY.getCode(), e.responseCode.getCode());
+        }
+        Request mockRequest = createMockRequest("/emailcode", null, HTTPRequestType.POST, Map.of("code", "abc"));
+        doReturn(new PointsWebServer.AuthResult(true, 1, 1, false, false)).when(server).validateSessionCookie(mockRequest);
+        WebServer.WebException e = assertThrows(WebServer.WebException.class, () -> server.handle(mockRequest));
+        assertEquals(HTTPResponseCode.SERVICE_UNAVAILABLE.getCode(), e.responseCode.getCode());
+    }
+
+    @Test
+    public void testShedHashingFreesUsername() throws Exception {
+        JSONObject config = new JSONObject().put("password_hashing", new JSONObject().put("core_fraction", 0).put("queue_size", 1));
+        PointsWebServer shedding = new PointsWebServer(8080, mockSqlManager, mock(EmailChallenger.class), 0, config);
+        PasswordHasher hasher = shedding.getPasswordHasher();
+
+        String username = "shed" + System.currentTimeMillis() % 100000000L;
+        String email = username + "@example.com";
+        mockSqlManager.getEmailWhitelistManager().add(mockSqlManager.getEmailIDManager().getIDOpt(email, true).orElseThrow());
+
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // Fill the hashing thread and its queue so the new account's hash is rejected
+            for (int i = 0; i < 2; i++) {
+                executor.submit(() -> hasher.submit(() -> {
+                    release.await();
+                    return null;
+                }));
+            }
+            while (hasher.getStats().submitted() < 2) Thread.sleep(1);
+
+            Request mockRequest = createMockRequest("/createaccount", new JSONObject().put("username", username).put("password", "Password123!").put("email", email));
+            WebServer.WebException e = assertThrows(WebServer.WebException.class, () -> shedding.handle(mockRequest));
+            assertEquals(HTTPResponseCode.SERVICE_UNAVAILABLE.getCode(), e.responseCode.getCode());
+            assertTrue(mockSqlManager.getUIDManager().getIDOpt(username, false).isEmpty(), "The username must not stay taken");
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnknownEndpointIsNotFrontend(@TempDir File root) throws Exception {
+        Files.write(new File(root, "index.html").toPath(), "<html></html>".getBytes(StandardCharsets.UTF_8));
+        JSONObject config = new JSONObject().put("static", new JSONObject().put("directory", root.getPath()));
+        PointsWebServer serving = new PointsWebServer(8080, mockSqlManager, mock(EmailChallenger.class), 0, config);
+
+        assertNotNull(serving.handle(createMockRequest("/reset", null)), "Client-side routes are served index.html");
+        for (String path : List.of("/points/lst", "/settings/get", "/api/points/lst", "/backup/now")) {
+            assertNull(serving.handle(createMockRequest(path, null)), path + " must not fall back to index.html");
+        }
+    }
+
+    private Request createMockRequest(String endpoint, JSONObject body, HTTPRequestType type, Map<String, String> query) {
+        return new Request(System.currentTimeMillis(), "127.0.0.1", endpoint, type, new Headers(), query, body == null ? "" : body.toString(), body);
+    }
+
     private Request createMockRequest(String endpoint, JSONObject body) {
         return new Request(System.currentTimeMillis(), "127.0.0.1", endpoint, body == null ? HTTPRequestType.GET : HTTPRequestType.POST, new Headers(), Map.of(), body == null ? "" : body.toString(), body);
     }
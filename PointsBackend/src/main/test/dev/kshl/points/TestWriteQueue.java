@@ -0,0 +1,139 @@
+package dev.kshl.points;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestWriteQueue {
+    private static Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE t (v INT UNIQUE)");
+        }
+        connection.setAutoCommit(false);
+        connection.commit();
+        return connection;
+    }
+
+    private static WriteQueue.TransactionRunner runner(Connection connection, CountDownLatch gate) {
+        return batch -> {
+            try {
+                if (gate != null) gate.await();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            try {
+                batch.run(connection);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        };
+    }
+
+    private static int insert(Connection connection, int v) throws SQLException {
+        return StatementCache.executeUpdate(connection, "INSERT INTO t (v) VALUES (?)", v);
+    }
+
+    private static int count(Connection connection) throws SQLException {
+        return StatementCache.query(connection, "SELECT COUNT(*) FROM t", rs -> {
+            return rs.next() ? rs.getInt(1) : 0;
+        });
+    }
+
+    @Test
+    public void testQueuedWritesShareCommits() throws Exception {
+        Connection connection = open();
+        CountDownLatch gate = new CountDownLatch(1);
+        WriteQueue queue = new WriteQueue("test", runner(connection, gate), 0, 256, 1024);
+        try {
+            WriteQueue.Task<Integer> blocker = queue.submit(c -> insert(c, -1));
+            while (queue.getQueued() > 0) Thread.sleep(1);
+            // Everything queued behind the first commit goes in the second
+            List<WriteQueue.Task<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final int v = i;
+                tasks.add(queue.submit(c -> insert(c, v)));
+            }
+            gate.countDown();
+            assertEquals(1, queue.await(blocker, 10000));
+            for (WriteQueue.Task<Integer> task : tasks) {
+                assertEquals(1, queue.await(task, 10000));
+            }
+            assertEquals(201, count(connection));
+            assertEquals(201, queue.getCommitted());
+            assertEquals(2, queue.getBatches());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testFailureRollsBackOnlyItself() throws Exception {
+        Connection connection = open();
+        CountDownLatch gate = new CountDownLatch(1);
+        WriteQueue queue = new WriteQueue("test", runner(connection, gate), 0, 256, 1024);
+        try {
+            List<Integer> committed = new ArrayList<>();
+            WriteQueue.Task<Integer> blocker = queue.submit(c -> insert(c, 0), r -> committed.add(0));
+            while (queue.getQueued() > 0) Thread.sleep(1);
+            WriteQueue.Task<Integer> first = queue.submit(c -> insert(c, 1), r -> committed.add(1));
+            WriteQueue.Task<Integer> duplicate = queue.submit(c -> {
+                insert(c, 2);
+                // Violates the unique constraint, so both inserts of this write must be undone
+                return insert(c, 1);
+            }, r -> committed.add(2));
+            WriteQueue.Task<Integer> last = queue.submit(c -> insert(c, 3), r -> committed.add(3));
+            gate.countDown();
+
+            assertEquals(1, queue.await(blocker, 10000));
+            assertEquals(1, queue.await(first, 10000));
+            assertThrows(SQLException.class, () -> queue.await(duplicate, 10000));
+            assertEquals(1, queue.await(last, 10000));
+            try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("SELECT v FROM t ORDER BY v")) {
+                List<Integer> values = new ArrayList<>();
+                while (rs.next()) values.add(rs.getInt(1));
+                assertEquals(List.of(0, 1, 3), values);
+            }
+            assertEquals(List.of(0, 1, 3), committed, "Callbacks run in commit order, and only for writes which succeeded");
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testRejectsWhenStalled() throws Exception {
+        Connection connection = open();
+        CountDownLatch gate = new CountDownLatch(1);
+        WriteQueue queue = new WriteQueue("test", runner(connection, gate), 0, 256, 2);
+        try {
+            WriteQueue.Task<Integer> running = queue.submit(c -> insert(c, 0));
+            while (queue.getQueued() > 0) Thread.sleep(1);
+
+            WriteQueue.Task<Integer> waiting = queue.submit(c -> insert(c, 1));
+            assertThrows(RejectedExecutionException.class, () -> queue.await(waiting, 50), "Still queued, so it gives up");
+            // The abandoned write holds its place until the writer discards it
+            WriteQueue.Task<Integer> next = queue.submit(c -> insert(c, 2));
+            assertThrows(RejectedExecutionException.class, () -> queue.submit(c -> insert(c, 3)), "The queue is full");
+
+            gate.countDown();
+            assertEquals(1, queue.await(running, 10000), "Already running, so it's waited for");
+            assertEquals(1, queue.await(next, 10000));
+            assertEquals(2, count(connection), "The abandoned write never ran");
+        } finally {
+            queue.close();
+        }
+    }
+}
@@ -21,20 +21,58 @@ export default function Points(props: Props) {
   const [points, setPoints] = useState<Point[]>([]);
   const [deleteMode, setDeleteMode] = useState<boolean>();
 
-  const fetchPoints = async () => {
+  // Returns the stream cursor the list is current as of, or -1 if it couldn't be fetched
+  const fetchPoints = async (): Promise<number> => {
     try {
       const response = await fetch(`${props.endpoint}/points/list`, {
         method: 'GET',
       });
       const data = await response.json();
       setPoints(data.points);
+      return data.cursor ?? -1;
     } catch (error) {
       console.error('Error fetching points:', error);
+      return -1;
     }
   };
 
+  // Fetches the list, then long-polls for changes made from the user's other sessions since it was read
   useEffect(() => {
-    fetchPoints();
+    let active = true;
+    const stream = async () => {
+      let cursor = await fetchPoints();
+      while (active) {
+        try {
+          const response = await fetch(`${props.endpoint}/points/stream?since=${cursor}`, {
+            method: 'GET',
+          });
+          if (!response.ok) {
+            await new Promise((resolve) => setTimeout(resolve, 5000));
+            continue;
+          }
+          const data = await response.json();
+          if (cursor >= 0 && (data.reset || data.events.some((event: any) => event.type !== 'POINTS' && event.type !== 'NAME'))) {
+            fetchPoints();
+          } else {
+            data.events.forEach((event: any) => {
+              setPoints((prevPoints) =>
+                prevPoints.map((point) =>
+                  point.id === event.id ? { ...point, ...event.data } : point
+                )
+              );
+            });
+          }
+          cursor = data.cursor;
+        } catch (error) {
+          console.error('Error streaming points:', error);
+          await new Promise((resolve) => setTimeout(resolve, 5000));
+        }
+      }
+    };
+    stream();
+    return () => {
+      active = false;
+    };
   }, []);
 
   const handlePointsChange = async (id: number, newPoints: number) => {